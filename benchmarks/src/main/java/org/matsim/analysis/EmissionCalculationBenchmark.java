@@ -0,0 +1,139 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.contrib.emissions.utils.EmissionsConfigGroup;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Warm and cold emission calculation of the emissions contrib, reported as link leave events per second (secondary result
+ * "linkLeaveEvents").  The events of {@link SyntheticEquilEvents} are passed to an events manager with the
+ * {@link org.matsim.contrib.emissions.EmissionModule}; road types and vehicle types are set up as in the Berlin analysis.
+ * <p>
+ * The (average) HBEFA files are not part of the repository: {@code -p hbefaWarmFile=... -p hbefaColdFile=...}.
+ *
+ * @author agent
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EmissionCalculationBenchmark {
+
+	@Param("scenarios/equil")
+	public String equilDirectory;
+
+	@Param("")
+	public String hbefaWarmFile;
+
+	@Param("")
+	public String hbefaColdFile;
+
+	@Param("100")
+	public int copies;
+
+	private EventsManager eventsManager;
+	private Event[] events;
+	private int numberOfLinkLeaveEvents;
+
+	@Setup
+	public void setup() {
+		if (this.hbefaWarmFile.isEmpty() || this.hbefaColdFile.isEmpty()) {
+			throw new RuntimeException("Please set the HBEFA files: -p hbefaWarmFile=... -p hbefaColdFile=... Aborting...");
+		}
+		Scenario scenario = SyntheticEquilEvents.loadScenario(this.equilDirectory);
+		List<Event> eventList = SyntheticEquilEvents.createEvents(scenario, this.copies);
+
+		EmissionsConfigGroup eConfig = ConfigUtils.addOrGetModule(scenario.getConfig(), EmissionsConfigGroup.class);
+		eConfig.setAverageWarmEmissionFactorsFile(this.hbefaWarmFile);
+		eConfig.setAverageColdEmissionFactorsFile(this.hbefaColdFile);
+		BerlinEmissionsSetup.configure(eConfig);
+
+		HbefaRoadTypeAnnotator.annotate(scenario.getNetwork());
+		VehicleType carVehicleType = VehicleUtils.getFactory().createVehicleType(Id.create("car", VehicleType.class));
+		carVehicleType.setDescription(BerlinEmissionsSetup.CAR_EMISSIONS_DESCRIPTION);
+		scenario.getVehicles().addVehicleType(carVehicleType);
+		for (Event event : eventList) {
+			if (event instanceof VehicleEntersTrafficEvent) {
+				Id<Vehicle> vehicleId = ((VehicleEntersTrafficEvent) event).getVehicleId();
+				if (!scenario.getVehicles().getVehicles().containsKey(vehicleId)) {
+					scenario.getVehicles().addVehicle(VehicleUtils.getFactory().createVehicle(vehicleId, carVehicleType));
+				}
+			}
+			if (event instanceof LinkLeaveEvent) {
+				this.numberOfLinkLeaveEvents++;
+			}
+		}
+		this.events = eventList.toArray(new Event[0]);
+
+		this.eventsManager = EventsUtils.createEventsManager();
+		RunOfflineAirPollutionAnalysis.createEmissionModule(scenario.getConfig(), scenario, this.eventsManager);
+	}
+
+	@Benchmark
+	public void replay(Counters counters) {
+		// the handlers keep the state of the vehicles (e.g. parking durations) which must not carry over to the next invocation
+		this.eventsManager.resetHandlers(0);
+		for (Event event : this.events) {
+			this.eventsManager.processEvent(event);
+		}
+		counters.linkLeaveEvents += this.numberOfLinkLeaveEvents;
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long linkLeaveEvents;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			this.linkLeaveEvents = 0;
+		}
+	}
+
+}
@@ -0,0 +1,148 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.MatsimEventsReader;
+import org.matsim.core.events.algorithms.EventWriterXML;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading an equil-sized events file: gzipped xml vs. the binary format of {@link BinaryEventsWriter}, and gzipped xml through
+ * {@link ParallelGzipInputStream}, for a single-member file (core writer) and a multi-member file ({@link AsyncEventWriterXML}).  The
+ * events are created with {@link SyntheticEquilEvents}; run from the project directory or set {@code -p equilDirectory=...}.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EventsParsingBenchmark {
+
+	@Param("scenarios/equil")
+	public String equilDirectory;
+
+	@Param("100")
+	public int copies;
+
+	private File directory;
+	private String xmlFile;
+	private String binaryFile;
+	private String multiMemberXmlFile;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		List<Event> events = SyntheticEquilEvents.createEvents(SyntheticEquilEvents.loadScenario(this.equilDirectory), this.copies);
+		this.directory = Files.createTempDirectory("events-benchmark").toFile();
+		this.xmlFile = new File(this.directory, "output_events.xml.gz").getPath();
+		this.binaryFile = BinaryEventsFormat.getBinaryFileName(this.xmlFile);
+		this.multiMemberXmlFile = new File(this.directory, "output_events_members.xml.gz").getPath();
+
+		EventWriterXML xmlWriter = new EventWriterXML(this.xmlFile);
+		BinaryEventsWriter binaryWriter = new BinaryEventsWriter(this.binaryFile);
+		AsyncEventWriterXML multiMemberXmlWriter = new AsyncEventWriterXML(this.multiMemberXmlFile);
+		for (Event event : events) {
+			xmlWriter.handleEvent(event);
+			binaryWriter.handleEvent(event);
+			multiMemberXmlWriter.handleEvent(event);
+		}
+		xmlWriter.closeFile();
+		binaryWriter.closeFile();
+		multiMemberXmlWriter.closeFile();
+
+		// the member index is only written on request
+		try (InputStream in = new ParallelGzipInputStream(this.multiMemberXmlFile, ParallelGzipInputStream.getDefaultNumberOfThreads(), true)) {
+			byte[] buffer = new byte[1 << 16];
+			while (in.read(buffer) >= 0) {
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		new File(this.xmlFile).delete();
+		new File(this.binaryFile).delete();
+		new File(this.multiMemberXmlFile).delete();
+		new File(this.multiMemberXmlFile + ParallelGzipInputStream.INDEX_SUFFIX).delete();
+		this.directory.delete();
+	}
+
+	@Benchmark
+	public void readXml(Blackhole blackhole) {
+		new MatsimEventsReader(createEventsManager(blackhole)).readFile(this.xmlFile);
+	}
+
+	@Benchmark
+	public void readXmlPrefetched(Blackhole blackhole) {
+		RunOfflineAirPollutionAnalysis.readEventsXml(createEventsManager(blackhole), this.xmlFile);
+	}
+
+	@Benchmark
+	public void readXmlMultiMemberParallel(Blackhole blackhole) {
+		RunOfflineAirPollutionAnalysis.readEventsXml(createEventsManager(blackhole), this.multiMemberXmlFile);
+	}
+
+	@Benchmark
+	public void readBinary(Blackhole blackhole) {
+		new BinaryEventsReader(createEventsManager(blackhole)).readFile(this.binaryFile);
+	}
+
+	private static EventsManager createEventsManager(Blackhole blackhole) {
+		EventsManager eventsManager = EventsUtils.createEventsManager();
+		eventsManager.addHandler(new BasicEventHandler() {
+			@Override
+			public void handleEvent(Event event) {
+				blackhole.consume(event);
+			}
+
+			@Override
+			public void reset(int iteration) {
+			}
+		});
+		return eventsManager;
+	}
+
+}
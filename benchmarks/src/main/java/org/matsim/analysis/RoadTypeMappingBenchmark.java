@@ -0,0 +1,98 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The HBEFA road type mapping over all links of a network of Berlin size: sequential loop (as formerly in
+ * {@link RunOfflineAirPollutionAnalysis}) vs. {@link HbefaRoadTypeAnnotator}.  The free speeds and lanes are random.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RoadTypeMappingBenchmark {
+
+	@Param("100000")
+	public int numberOfLinks;
+
+	private Network network;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(4711);
+		double[] freespeeds = { 4.2, 5.6, 6.9, 8.3, 11.1, 13.9, 16.7, 22.2, 27.8, 33.3 };
+		this.network = NetworkUtils.createNetwork();
+		NetworkFactory factory = this.network.getFactory();
+		Node previous = factory.createNode(Id.createNodeId(0), new Coord(0., 0.));
+		this.network.addNode(previous);
+		for (int i = 1; i <= this.numberOfLinks; i++) {
+			Node node = factory.createNode(Id.createNodeId(i), new Coord(100. * i, 0.));
+			this.network.addNode(node);
+			Link link = factory.createLink(Id.createLinkId(i), previous, node);
+			link.setLength(100.);
+			link.setFreespeed(freespeeds[random.nextInt(freespeeds.length)]);
+			link.setCapacity(1000.);
+			link.setNumberOfLanes(1 + random.nextInt(4));
+			this.network.addLink(link);
+			previous = node;
+		}
+	}
+
+	@Benchmark
+	public Network sequentialLoop() {
+		for (Link link : this.network.getLinks().values()) {
+			link.getAttributes().putAttribute(HbefaRoadTypeAnnotator.ROAD_TYPE_ATTRIBUTE, HbefaRoadTypeAnnotator.getRoadType(link));
+		}
+		return this.network;
+	}
+
+	@Benchmark
+	public Network annotator() {
+		HbefaRoadTypeAnnotator.annotate(this.network);
+		return this.network;
+	}
+
+}
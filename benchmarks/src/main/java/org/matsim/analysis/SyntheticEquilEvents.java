@@ -0,0 +1,119 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.ActivityStartEvent;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.PersonArrivalEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.misc.Time;
+import org.matsim.vehicles.Vehicle;
+
+/**
+ * Events of the equil scenario without running the mobsim: the selected plans of {@code scenarios/equil} are "driven" at free speed,
+ * the population is copied {@code copies} times.
+ *
+ * @author agent
+ */
+final class SyntheticEquilEvents {
+
+	private SyntheticEquilEvents() {
+	}
+
+	static Scenario loadScenario(String equilDirectory) {
+		Config config = ConfigUtils.createConfig();
+		config.network().setInputFile(equilDirectory + "/network.xml");
+		config.plans().setInputFile(equilDirectory + "/plans100.xml");
+		return ScenarioUtils.loadScenario(config);
+	}
+
+	static List<Event> createEvents(Scenario scenario, int copies) {
+		List<Event> events = new ArrayList<>();
+		for (int copy = 0; copy < copies; copy++) {
+			for (Person person : scenario.getPopulation().getPersons().values()) {
+				Id<Person> personId = Id.createPersonId(person.getId() + "_" + copy);
+				Id<Vehicle> vehicleId = Id.createVehicleId(personId);
+				double time = 0.;
+				Activity previousActivity = null;
+				for (PlanElement element : person.getSelectedPlan().getPlanElements()) {
+					if (element instanceof Activity) {
+						Activity activity = (Activity) element;
+						if (previousActivity != null) {
+							events.add(new ActivityStartEvent(time, personId, activity.getLinkId(), null, activity.getType()));
+						}
+						if (activity.getEndTime() != Time.UNDEFINED_TIME) {
+							time = Math.max(time, activity.getEndTime());
+						} else if (activity.getMaximumDuration() != Time.UNDEFINED_TIME) {
+							time += activity.getMaximumDuration();
+						} else {
+							time += 3600.;
+						}
+						events.add(new ActivityEndEvent(time, personId, activity.getLinkId(), null, activity.getType()));
+						previousActivity = activity;
+					} else {
+						Leg leg = (Leg) element;
+						NetworkRoute route = (NetworkRoute) leg.getRoute();
+						events.add(new PersonDepartureEvent(time, personId, route.getStartLinkId(), leg.getMode()));
+						events.add(new PersonEntersVehicleEvent(time, personId, vehicleId));
+						events.add(new VehicleEntersTrafficEvent(time, personId, route.getStartLinkId(), vehicleId, leg.getMode(), 1.0));
+						Id<Link> currentLinkId = route.getStartLinkId();
+						List<Id<Link>> linkIds = new ArrayList<>(route.getLinkIds());
+						if (!route.getStartLinkId().equals(route.getEndLinkId())) {
+							linkIds.add(route.getEndLinkId());
+						}
+						for (Id<Link> linkId : linkIds) {
+							events.add(new LinkLeaveEvent(time, vehicleId, currentLinkId));
+							events.add(new LinkEnterEvent(time, vehicleId, linkId));
+							Link link = scenario.getNetwork().getLinks().get(linkId);
+							time += Math.ceil(link.getLength() / link.getFreespeed());
+							currentLinkId = linkId;
+						}
+						events.add(new VehicleLeavesTrafficEvent(time, personId, currentLinkId, vehicleId, leg.getMode(), 1.0));
+						events.add(new PersonLeavesVehicleEvent(time, personId, vehicleId));
+						events.add(new PersonArrivalEvent(time, personId, currentLinkId, leg.getMode()));
+					}
+				}
+			}
+		}
+		return events;
+	}
+
+}
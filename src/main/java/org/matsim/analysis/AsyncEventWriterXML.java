@@ -0,0 +1,248 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.core.events.algorithms.EventWriter;
+import org.matsim.core.events.handler.BasicEventHandler;
+
+/**
+ * Writes events in the same xml format as {@link org.matsim.core.events.algorithms.EventWriterXML}, but the formatting and the
+ * compression do not happen on the thread that produces the events.
+ * <p>
+ * The events are collected in blocks.  Each full block is formatted and gzipped on one of the worker threads as an independent gzip
+ * member; a writer thread appends the members in the order of the blocks (a file of concatenated gzip members is a valid gzip file).
+ * At most two blocks per worker are in flight, after that {@link #handleEvent(Event)} blocks until the writer catches up.  Files which
+ * do not end with ".gz" are written uncompressed.
+ *
+ * @author agent
+ */
+public final class AsyncEventWriterXML implements EventWriter, BasicEventHandler {
+	private static final Logger log = Logger.getLogger(AsyncEventWriterXML.class);
+
+	private static final int BLOCK_SIZE = 1 << 14;
+	private static final String HEADER = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<events version=\"1.0\">\n";
+	private static final String FOOTER = "</events>";
+
+	private final String fileName;
+	private final boolean gzip;
+	private final OutputStream out;
+	private final ExecutorService workers;
+	private final BlockingQueue<Future<byte[]>> blocks;
+	private final Thread writerThread;
+	private volatile Throwable exception = null;
+
+	private Event[] block = new Event[BLOCK_SIZE];
+	private int size = 0;
+	private long eventsWritten = 0;
+	private boolean closed = false;
+
+	public AsyncEventWriterXML(String fileName) {
+		this(fileName, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+	}
+
+	/**
+	 * @param numberOfThreads threads formatting and compressing the blocks, in addition to the thread writing the file
+	 */
+	public AsyncEventWriterXML(String fileName, int numberOfThreads) {
+		this.fileName = fileName;
+		this.gzip = fileName.endsWith(".gz");
+		try {
+			this.out = new FileOutputStream(fileName);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		this.workers = Executors.newFixedThreadPool(numberOfThreads, runnable -> {
+			Thread thread = new Thread(runnable, "event-writer-worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.blocks = new ArrayBlockingQueue<>(2 * numberOfThreads);
+		this.writerThread = new Thread(this::write, "event-writer");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+		submit(() -> encode(HEADER));
+	}
+
+	@Override
+	public void handleEvent(Event event) {
+		this.block[this.size++] = event;
+		if (this.size == BLOCK_SIZE) {
+			submitBlock();
+		}
+	}
+
+	@Override
+	public void reset(int iteration) {
+	}
+
+	/**
+	 * Writes the remaining events, waits for the writer thread and closes the file.
+	 */
+	@Override
+	public void closeFile() {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		try {
+			// throws if the writer thread failed
+			submitBlock();
+			submit(() -> encode(FOOTER));
+		} finally {
+			try {
+				// an empty array marks the end; a failed writer thread drains the queue up to it
+				put(this.workers.submit(() -> new byte[0]));
+				this.writerThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} finally {
+				this.workers.shutdown();
+				try {
+					this.out.close();
+				} catch (IOException e) {
+					if (this.exception == null) this.exception = e;
+				}
+			}
+		}
+		if (this.exception != null) {
+			throw new RuntimeException("Writing the events to " + this.fileName + " failed. Aborting...", this.exception);
+		}
+		log.info(this.eventsWritten + " events written to " + this.fileName);
+	}
+
+	private void submitBlock() {
+		if (this.size == 0) return;
+		Event[] events = this.block;
+		int numberOfEvents = this.size;
+		this.block = new Event[BLOCK_SIZE];
+		this.size = 0;
+		this.eventsWritten += numberOfEvents;
+		submit(() -> encode(format(events, numberOfEvents)));
+	}
+
+	private void submit(Callable<byte[]> task) {
+		if (this.exception != null) {
+			throw new RuntimeException("Writing the events to " + this.fileName + " failed. Aborting...", this.exception);
+		}
+		put(this.workers.submit(task));
+	}
+
+	private void put(Future<byte[]> future) {
+		try {
+			this.blocks.put(future);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void write() {
+		try {
+			while (true) {
+				byte[] bytes = this.blocks.take().get();
+				if (bytes.length == 0) break;
+				if (this.exception == null) {
+					this.out.write(bytes);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.exception = e;
+		} catch (ExecutionException e) {
+			this.exception = e.getCause();
+			drain();
+		} catch (IOException e) {
+			this.exception = e;
+			drain();
+		}
+	}
+
+	private void drain() {
+		// so that the producer does not block forever; the exception is thrown on its next block
+		try {
+			while (this.blocks.take().get().length > 0) {
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			drain();
+		}
+	}
+
+	private byte[] encode(String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		if (!this.gzip) {
+			return bytes;
+		}
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 8 + 64);
+		try (GZIPOutputStream gzipOut = new GZIPOutputStream(buffer, 1 << 16)) {
+			gzipOut.write(bytes);
+		}
+		return buffer.toByteArray();
+	}
+
+	private static String format(Event[] events, int numberOfEvents) {
+		StringBuilder text = new StringBuilder(numberOfEvents * 160);
+		for (int i = 0; i < numberOfEvents; i++) {
+			text.append("\t<event ");
+			for (Map.Entry<String, String> attribute : events[i].getAttributes().entrySet()) {
+				text.append(attribute.getKey()).append("=\"");
+				appendEscaped(text, attribute.getValue());
+				text.append("\" ");
+			}
+			text.append(" />\n");
+		}
+		return text.toString();
+	}
+
+	private static void appendEscaped(StringBuilder text, String value) {
+		if (value == null) return;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '&': text.append("&amp;"); break;
+			case '<': text.append("&lt;"); break;
+			case '>': text.append("&gt;"); break;
+			case '"': text.append("&quot;"); break;
+			default: text.append(c);
+			}
+		}
+	}
+
+}
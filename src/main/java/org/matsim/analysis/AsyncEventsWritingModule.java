@@ -0,0 +1,108 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.util.Map;
+
+import javax.inject.Inject;
+
+import org.apache.log4j.Logger;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.groups.ControlerConfigGroup;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.BeforeMobsimEvent;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.listener.BeforeMobsimListener;
+import org.matsim.core.controler.listener.IterationEndsListener;
+
+/**
+ * Writes the events of the iterations with {@link AsyncEventWriterXML} instead of the events writer of the controler, i.e. the mobsim
+ * does not wait for the formatting and compression.  The write events interval of the config is used.  The controler's own event
+ * writing is switched off by binding a copy of the controler config group with interval 0; the config itself, and thus
+ * output_config.xml, keeps the real interval.  The file names are the same as the controler's, so that the events of the last
+ * iteration are still copied into the output directory.
+ *
+ * @author agent
+ */
+public final class AsyncEventsWritingModule extends AbstractModule {
+	private static final Logger log = Logger.getLogger(AsyncEventsWritingModule.class);
+
+	@Override
+	public void install() {
+		ControlerConfigGroup controlerConfig = getConfig().controler();
+		bind(ControlerConfigGroup.class).toInstance(copyWithoutEventWriting(controlerConfig));
+		addControlerListenerBinding().toInstance(new AsyncEventsWritingListener(controlerConfig.getWriteEventsInterval()));
+	}
+
+	/**
+	 * @return a copy of the controler config group for the injected components, the events handling of the controler among them
+	 */
+	static ControlerConfigGroup copyWithoutEventWriting(ControlerConfigGroup controlerConfig) {
+		ControlerConfigGroup copy = new ControlerConfigGroup();
+		for (Map.Entry<String, String> param : controlerConfig.getParams().entrySet()) {
+			if (param.getValue() != null && !param.getValue().isEmpty()) {
+				copy.addParam(param.getKey(), param.getValue());
+			}
+		}
+		copy.setWriteEventsInterval(0);
+		log.info("The events are written by the " + AsyncEventWriterXML.class.getSimpleName() + " every "
+				+ controlerConfig.getWriteEventsInterval() + " iterations.");
+		return copy;
+	}
+
+	static final class AsyncEventsWritingListener implements BeforeMobsimListener, IterationEndsListener {
+
+		@Inject private Config config;
+		@Inject private EventsManager eventsManager;
+		@Inject private OutputDirectoryHierarchy controlerIO;
+
+		private final int writeEventsInterval;
+		private AsyncEventWriterXML eventWriter;
+
+		AsyncEventsWritingListener(int writeEventsInterval) {
+			this.writeEventsInterval = writeEventsInterval;
+		}
+
+		boolean isActive(int iteration) {
+			if (writeEventsInterval <= 0) return false;
+			return iteration % writeEventsInterval == 0 || iteration == config.controler().getLastIteration();
+		}
+
+		@Override
+		public void notifyBeforeMobsim(BeforeMobsimEvent event) {
+			if (!isActive(event.getIteration())) return;
+			eventWriter = new AsyncEventWriterXML(controlerIO.getIterationFilename(event.getIteration(), "events.xml.gz"),
+					Math.max(1, config.global().getNumberOfThreads() - 1));
+			eventsManager.addHandler(eventWriter);
+		}
+
+		@Override
+		public void notifyIterationEnds(IterationEndsEvent event) {
+			// as in the controler, the events manager has finished processing by now
+			if (eventWriter == null) return;
+			eventsManager.removeHandler(eventWriter);
+			eventWriter.closeFile();
+			eventWriter = null;
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.contrib.emissions.utils.EmissionsConfigGroup;
+import org.matsim.contrib.emissions.utils.EmissionsConfigGroup.HbefaRoadTypeSource;
+import org.matsim.contrib.emissions.utils.EmissionsConfigGroup.NonScenarioVehicles;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.Vehicles;
+
+/**
+ * The emission settings shared by the offline analysis and the online emission calculation: road types from the link attributes
+ * (see {@link HbefaRoadTypeAnnotator}) and average HBEFA vehicle categories for the "car" and "freight" vehicle types.
+ *
+ * @author agent
+ */
+public final class BerlinEmissionsSetup {
+
+	public static final String CAR_EMISSIONS_DESCRIPTION = "BEGIN_EMISSIONSPASSENGER_CAR;average;average;averageEND_EMISSIONS";
+	public static final String FREIGHT_EMISSIONS_DESCRIPTION = "BEGIN_EMISSIONSHEAVY_GOODS_VEHICLE;average;average;averageEND_EMISSIONS";
+
+	private BerlinEmissionsSetup() {
+	}
+
+	public static void configure(EmissionsConfigGroup eConfig) {
+		eConfig.setHbefaRoadTypeSource(HbefaRoadTypeSource.fromLinkAttributes);
+		eConfig.setNonScenarioVehicles(NonScenarioVehicles.ignore);
+	}
+
+	/**
+	 * Annotates the network and sets the vehicle type descriptions.
+	 */
+	public static void prepareScenario(Scenario scenario) {
+		HbefaRoadTypeAnnotator.annotate(scenario.getNetwork());
+		setVehicleTypeDescriptions(scenario.getVehicles());
+	}
+
+	public static void setVehicleTypeDescriptions(Vehicles vehicles) {
+		VehicleType carVehicleType = vehicles.getVehicleTypes().get(Id.create("car", VehicleType.class));
+		VehicleType freightVehicleType = vehicles.getVehicleTypes().get(Id.create("freight", VehicleType.class));
+		if (carVehicleType == null || freightVehicleType == null) {
+			throw new RuntimeException("The vehicle types 'car' and 'freight' are required for the emission calculation. Aborting...");
+		}
+		carVehicleType.setDescription(CAR_EMISSIONS_DESCRIPTION);
+		freightVehicleType.setDescription(FREIGHT_EMISSIONS_DESCRIPTION);
+	}
+
+}
@@ -0,0 +1,77 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+/**
+ * Constants of the binary events format written by {@link BinaryEventsWriter} and read by {@link BinaryEventsReader}.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ * int magic, int version, long length and long last modification time of the events file it was converted from (-1 if unknown)
+ * blocks: int n (n &gt; 0), then the columns of n events:
+ *         byte type[n], double time[n], int person[n], int link[n], int vehicle[n], int facility[n], int string[n], double position[n]
+ * int 0 (end of blocks)
+ * id tables (persons, links, vehicles, facilities, strings): int size, then size UTF strings
+ * skipped event types: int size, then size times (UTF event type, long number of events)
+ * long offset of the id tables, int magic
+ * </pre>
+ * Ids are stored as indices into the id tables, -1 stands for "no id".  The string column holds the mode or the activity type.
+ * Only the event types needed to replay emissions and to attribute them to persons and trips are stored; the others are counted in
+ * the file, see {@link BinaryEventsReader#getSkippedEventTypes()}.
+ *
+ * @author agent
+ */
+final class BinaryEventsFormat {
+
+	static final int MAGIC = 0x4D455631; // "MEV1"
+	static final int VERSION = 2;
+	static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+	static final int BLOCK_SIZE = 1 << 16;
+	static final int BYTES_PER_EVENT = 1 + 8 + 4 * 5 + 8;
+	static final int TRAILER_SIZE = 8 + 4;
+
+	static final byte LINK_ENTER = 1;
+	static final byte LINK_LEAVE = 2;
+	static final byte VEHICLE_ENTERS_TRAFFIC = 3;
+	static final byte VEHICLE_LEAVES_TRAFFIC = 4;
+	static final byte PERSON_DEPARTURE = 5;
+	static final byte PERSON_ARRIVAL = 6;
+	static final byte PERSON_ENTERS_VEHICLE = 7;
+	static final byte PERSON_LEAVES_VEHICLE = 8;
+	static final byte ACTIVITY_END = 9;
+	static final byte ACTIVITY_START = 10;
+
+	static final int NO_ID = -1;
+
+	private BinaryEventsFormat() {
+	}
+
+	/**
+	 * @return the name of the binary file that belongs to an events file, e.g. run.output_events.bin for run.output_events.xml.gz
+	 */
+	static String getBinaryFileName(String eventsFile) {
+		String name = eventsFile;
+		if (name.endsWith(".gz")) name = name.substring(0, name.length() - 3);
+		if (name.endsWith(".xml")) name = name.substring(0, name.length() - 4);
+		return name + ".bin";
+	}
+
+}
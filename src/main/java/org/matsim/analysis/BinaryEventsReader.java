@@ -0,0 +1,276 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import static org.matsim.analysis.BinaryEventsFormat.*;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.ActivityStartEvent;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.PersonArrivalEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.vehicles.Vehicle;
+
+/**
+ * Reads events written by {@link BinaryEventsWriter} and passes them to an {@link EventsManager}, in the same order as in the
+ * original events file.  The file is memory-mapped window by window; each block is decoded column by column.
+ *
+ * @author agent
+ */
+public final class BinaryEventsReader {
+	private static final Logger log = Logger.getLogger(BinaryEventsReader.class);
+
+	private static final long WINDOW_SIZE = 1L << 28;
+
+	private final EventsManager eventsManager;
+
+	private final byte[] types = new byte[BLOCK_SIZE];
+	private final double[] times = new double[BLOCK_SIZE];
+	private final int[] personColumn = new int[BLOCK_SIZE];
+	private final int[] linkColumn = new int[BLOCK_SIZE];
+	private final int[] vehicleColumn = new int[BLOCK_SIZE];
+	private final int[] facilityColumn = new int[BLOCK_SIZE];
+	private final int[] stringColumn = new int[BLOCK_SIZE];
+	private final double[] positions = new double[BLOCK_SIZE];
+
+	private Id<Person>[] persons;
+	private Id<Link>[] links;
+	private Id<Vehicle>[] vehicles;
+	private Id<ActivityFacility>[] facilities;
+	private String[] strings;
+	private final Map<String, Long> skippedEventTypes = new TreeMap<>();
+
+	public BinaryEventsReader(EventsManager eventsManager) {
+		this.eventsManager = eventsManager;
+	}
+
+	public void readFile(String fileName) {
+		log.info("Reading binary events from " + fileName);
+		long eventsRead = 0;
+		try (RandomAccessFile file = new RandomAccessFile(fileName, "r"); FileChannel channel = file.getChannel()) {
+			long fileSize = channel.size();
+			ByteBuffer trailer = channel.map(MapMode.READ_ONLY, fileSize - TRAILER_SIZE, TRAILER_SIZE);
+			long tablesOffset = trailer.getLong();
+			if (trailer.getInt() != MAGIC) {
+				throw new RuntimeException(fileName + " is not a binary events file or is incomplete. Aborting...");
+			}
+			ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, 8);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new RuntimeException(fileName + " was written by another version of " + BinaryEventsWriter.class.getSimpleName()
+						+ ". Please convert the events file again. Aborting...");
+			}
+			readIdTables(channel, tablesOffset);
+			if (!this.skippedEventTypes.isEmpty()) {
+				log.warn(fileName + " does not contain all events of the original events file. Skipped event types: " + this.skippedEventTypes);
+			}
+
+			MappedByteBuffer window = null;
+			long windowStart = 0;
+			long position = HEADER_SIZE;
+			while (true) {
+				if (window == null || position + 4 > windowStart + window.capacity()) {
+					windowStart = position;
+					window = channel.map(MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, tablesOffset - windowStart));
+				}
+				window.position((int) (position - windowStart));
+				int size = window.getInt();
+				if (size == 0) {
+					break;
+				}
+				long blockLength = 4 + (long) size * BYTES_PER_EVENT;
+				if (position + blockLength > windowStart + window.capacity()) {
+					windowStart = position;
+					window = channel.map(MapMode.READ_ONLY, windowStart, Math.min(Math.max(WINDOW_SIZE, blockLength), tablesOffset - windowStart));
+					window.position(4);
+				}
+				decodeBlock(window, size);
+				processBlock(size);
+				eventsRead += size;
+				position += blockLength;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		log.info(eventsRead + " events read.");
+	}
+
+	private void readIdTables(FileChannel channel, long tablesOffset) throws IOException {
+		channel.position(tablesOffset);
+		// do not close the stream; this would close the channel
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+		this.persons = createIds(readStrings(in), Person.class);
+		this.links = createIds(readStrings(in), Link.class);
+		this.vehicles = createIds(readStrings(in), Vehicle.class);
+		this.facilities = createIds(readStrings(in), ActivityFacility.class);
+		this.strings = readStrings(in);
+		this.skippedEventTypes.clear();
+		int numberOfSkippedEventTypes = in.readInt();
+		for (int i = 0; i < numberOfSkippedEventTypes; i++) {
+			this.skippedEventTypes.put(in.readUTF(), in.readLong());
+		}
+	}
+
+	/**
+	 * @return the number of events per event type which were not converted into the binary file that was read last
+	 */
+	public Map<String, Long> getSkippedEventTypes() {
+		return this.skippedEventTypes;
+	}
+
+	/**
+	 * @return true if the binary file is of the current version and was converted from the events file as it is now (same length and
+	 * last modification time)
+	 */
+	public static boolean isConvertedFrom(String binaryEventsFile, String eventsFile) {
+		File source = new File(eventsFile);
+		try (DataInputStream in = new DataInputStream(new FileInputStream(binaryEventsFile))) {
+			return in.readInt() == MAGIC && in.readInt() == VERSION && source.isFile()
+					&& in.readLong() == source.length() && in.readLong() == source.lastModified();
+		} catch (IOException e) {
+			log.warn("Could not read the header of " + binaryEventsFile + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	private static String[] readStrings(DataInputStream in) throws IOException {
+		String[] values = new String[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readUTF().intern();
+		}
+		return values;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> Id<T>[] createIds(String[] values, Class<T> type) {
+		Id<T>[] ids = new Id[values.length];
+		for (int i = 0; i < values.length; i++) {
+			ids[i] = Id.create(values[i], type);
+		}
+		return ids;
+	}
+
+	private void decodeBlock(ByteBuffer buffer, int size) {
+		buffer.get(this.types, 0, size);
+		getDoubles(buffer, this.times, size);
+		getInts(buffer, this.personColumn, size);
+		getInts(buffer, this.linkColumn, size);
+		getInts(buffer, this.vehicleColumn, size);
+		getInts(buffer, this.facilityColumn, size);
+		getInts(buffer, this.stringColumn, size);
+		getDoubles(buffer, this.positions, size);
+	}
+
+	private static void getDoubles(ByteBuffer buffer, double[] column, int size) {
+		buffer.asDoubleBuffer().get(column, 0, size);
+		buffer.position(buffer.position() + 8 * size);
+	}
+
+	private static void getInts(ByteBuffer buffer, int[] column, int size) {
+		buffer.asIntBuffer().get(column, 0, size);
+		buffer.position(buffer.position() + 4 * size);
+	}
+
+	private void processBlock(int size) {
+		for (int i = 0; i < size; i++) {
+			this.eventsManager.processEvent(createEvent(i));
+		}
+	}
+
+	private Event createEvent(int i) {
+		double time = this.times[i];
+		switch (this.types[i]) {
+		case LINK_ENTER:
+			return new LinkEnterEvent(time, this.vehicles[this.vehicleColumn[i]], this.links[this.linkColumn[i]]);
+		case LINK_LEAVE:
+			return new LinkLeaveEvent(time, this.vehicles[this.vehicleColumn[i]], this.links[this.linkColumn[i]]);
+		case VEHICLE_ENTERS_TRAFFIC:
+			return new VehicleEntersTrafficEvent(time, person(i), link(i), vehicle(i), string(i), this.positions[i]);
+		case VEHICLE_LEAVES_TRAFFIC:
+			return new VehicleLeavesTrafficEvent(time, person(i), link(i), vehicle(i), string(i), this.positions[i]);
+		case PERSON_DEPARTURE:
+			return new PersonDepartureEvent(time, person(i), link(i), string(i));
+		case PERSON_ARRIVAL:
+			return new PersonArrivalEvent(time, person(i), link(i), string(i));
+		case PERSON_ENTERS_VEHICLE:
+			return new PersonEntersVehicleEvent(time, person(i), vehicle(i));
+		case PERSON_LEAVES_VEHICLE:
+			return new PersonLeavesVehicleEvent(time, person(i), vehicle(i));
+		case ACTIVITY_END:
+			return new ActivityEndEvent(time, person(i), link(i), facility(i), string(i));
+		case ACTIVITY_START:
+			return new ActivityStartEvent(time, person(i), link(i), facility(i), string(i));
+		default:
+			throw new RuntimeException("Unknown event type " + this.types[i] + " in binary events file. Aborting...");
+		}
+	}
+
+	private Id<Person> person(int i) {
+		int index = this.personColumn[i];
+		return index == NO_ID ? null : this.persons[index];
+	}
+
+	private Id<Link> link(int i) {
+		int index = this.linkColumn[i];
+		return index == NO_ID ? null : this.links[index];
+	}
+
+	private Id<Vehicle> vehicle(int i) {
+		int index = this.vehicleColumn[i];
+		return index == NO_ID ? null : this.vehicles[index];
+	}
+
+	private Id<ActivityFacility> facility(int i) {
+		int index = this.facilityColumn[i];
+		return index == NO_ID ? null : this.facilities[index];
+	}
+
+	private String string(int i) {
+		int index = this.stringColumn[i];
+		return index == NO_ID ? null : this.strings[index];
+	}
+
+}
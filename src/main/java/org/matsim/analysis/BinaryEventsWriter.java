@@ -0,0 +1,242 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import static org.matsim.analysis.BinaryEventsFormat.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.ActivityStartEvent;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.PersonArrivalEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.core.events.handler.BasicEventHandler;
+
+/**
+ * Writes events in the binary format described in {@link BinaryEventsFormat}.  Events of other types are skipped; the number of
+ * skipped events per type is stored in the file.
+ *
+ * @author agent
+ */
+public final class BinaryEventsWriter implements BasicEventHandler {
+	private static final Logger log = Logger.getLogger(BinaryEventsWriter.class);
+
+	private final String fileName;
+	private final DataOutputStream out;
+	private long bytesWritten = 0;
+
+	private final IdTable persons = new IdTable();
+	private final IdTable links = new IdTable();
+	private final IdTable vehicles = new IdTable();
+	private final IdTable facilities = new IdTable();
+	private final IdTable strings = new IdTable();
+
+	private final byte[] types = new byte[BLOCK_SIZE];
+	private final double[] times = new double[BLOCK_SIZE];
+	private final int[] personColumn = new int[BLOCK_SIZE];
+	private final int[] linkColumn = new int[BLOCK_SIZE];
+	private final int[] vehicleColumn = new int[BLOCK_SIZE];
+	private final int[] facilityColumn = new int[BLOCK_SIZE];
+	private final int[] stringColumn = new int[BLOCK_SIZE];
+	private final double[] positions = new double[BLOCK_SIZE];
+	private final ByteBuffer blockBuffer = ByteBuffer.allocate(4 + BLOCK_SIZE * BYTES_PER_EVENT);
+	private int size = 0;
+
+	private long eventsWritten = 0;
+	private final Map<String, Integer> skippedEventTypes = new TreeMap<>();
+
+	public BinaryEventsWriter(String fileName) {
+		this(fileName, null);
+	}
+
+	/**
+	 * @param sourceEventsFile the events file the events are read from; its length and last modification time are stored so that
+	 * readers can detect a binary file which does not belong to the current events file (see {@link BinaryEventsReader#isConvertedFrom})
+	 */
+	public BinaryEventsWriter(String fileName, String sourceEventsFile) {
+		this.fileName = fileName;
+		File source = sourceEventsFile == null ? null : new File(sourceEventsFile);
+		boolean isLocalFile = source != null && source.isFile();
+		try {
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 20));
+			this.out.writeInt(MAGIC);
+			this.out.writeInt(VERSION);
+			this.out.writeLong(isLocalFile ? source.length() : -1);
+			this.out.writeLong(isLocalFile ? source.lastModified() : -1);
+			this.bytesWritten += HEADER_SIZE;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void handleEvent(Event event) {
+		if (event instanceof LinkEnterEvent) {
+			LinkEnterEvent e = (LinkEnterEvent) event;
+			add(LINK_ENTER, e.getTime(), NO_ID, this.links.get(e.getLinkId()), this.vehicles.get(e.getVehicleId()), NO_ID, NO_ID, 0.);
+		} else if (event instanceof LinkLeaveEvent) {
+			LinkLeaveEvent e = (LinkLeaveEvent) event;
+			add(LINK_LEAVE, e.getTime(), NO_ID, this.links.get(e.getLinkId()), this.vehicles.get(e.getVehicleId()), NO_ID, NO_ID, 0.);
+		} else if (event instanceof VehicleEntersTrafficEvent) {
+			VehicleEntersTrafficEvent e = (VehicleEntersTrafficEvent) event;
+			add(VEHICLE_ENTERS_TRAFFIC, e.getTime(), this.persons.get(e.getPersonId()), this.links.get(e.getLinkId()),
+					this.vehicles.get(e.getVehicleId()), NO_ID, this.strings.get(e.getNetworkMode()), e.getRelativePositionOnLink());
+		} else if (event instanceof VehicleLeavesTrafficEvent) {
+			VehicleLeavesTrafficEvent e = (VehicleLeavesTrafficEvent) event;
+			add(VEHICLE_LEAVES_TRAFFIC, e.getTime(), this.persons.get(e.getPersonId()), this.links.get(e.getLinkId()),
+					this.vehicles.get(e.getVehicleId()), NO_ID, this.strings.get(e.getNetworkMode()), e.getRelativePositionOnLink());
+		} else if (event instanceof PersonDepartureEvent) {
+			PersonDepartureEvent e = (PersonDepartureEvent) event;
+			add(PERSON_DEPARTURE, e.getTime(), this.persons.get(e.getPersonId()), this.links.get(e.getLinkId()), NO_ID, NO_ID,
+					this.strings.get(e.getLegMode()), 0.);
+		} else if (event instanceof PersonArrivalEvent) {
+			PersonArrivalEvent e = (PersonArrivalEvent) event;
+			add(PERSON_ARRIVAL, e.getTime(), this.persons.get(e.getPersonId()), this.links.get(e.getLinkId()), NO_ID, NO_ID,
+					this.strings.get(e.getLegMode()), 0.);
+		} else if (event instanceof PersonEntersVehicleEvent) {
+			PersonEntersVehicleEvent e = (PersonEntersVehicleEvent) event;
+			add(PERSON_ENTERS_VEHICLE, e.getTime(), this.persons.get(e.getPersonId()), NO_ID, this.vehicles.get(e.getVehicleId()), NO_ID, NO_ID, 0.);
+		} else if (event instanceof PersonLeavesVehicleEvent) {
+			PersonLeavesVehicleEvent e = (PersonLeavesVehicleEvent) event;
+			add(PERSON_LEAVES_VEHICLE, e.getTime(), this.persons.get(e.getPersonId()), NO_ID, this.vehicles.get(e.getVehicleId()), NO_ID, NO_ID, 0.);
+		} else if (event instanceof ActivityEndEvent) {
+			ActivityEndEvent e = (ActivityEndEvent) event;
+			add(ACTIVITY_END, e.getTime(), this.persons.get(e.getPersonId()), this.links.get(e.getLinkId()), NO_ID,
+					this.facilities.get(e.getFacilityId()), this.strings.get(e.getActType()), 0.);
+		} else if (event instanceof ActivityStartEvent) {
+			ActivityStartEvent e = (ActivityStartEvent) event;
+			add(ACTIVITY_START, e.getTime(), this.persons.get(e.getPersonId()), this.links.get(e.getLinkId()), NO_ID,
+					this.facilities.get(e.getFacilityId()), this.strings.get(e.getActType()), 0.);
+		} else {
+			Integer count = this.skippedEventTypes.get(event.getEventType());
+			this.skippedEventTypes.put(event.getEventType(), count == null ? 1 : count + 1);
+		}
+	}
+
+	@Override
+	public void reset(int iteration) {
+	}
+
+	private void add(byte type, double time, int person, int link, int vehicle, int facility, int string, double position) {
+		this.types[this.size] = type;
+		this.times[this.size] = time;
+		this.personColumn[this.size] = person;
+		this.linkColumn[this.size] = link;
+		this.vehicleColumn[this.size] = vehicle;
+		this.facilityColumn[this.size] = facility;
+		this.stringColumn[this.size] = string;
+		this.positions[this.size] = position;
+		this.size++;
+		if (this.size == BLOCK_SIZE) {
+			writeBlock();
+		}
+	}
+
+	private void writeBlock() {
+		if (this.size == 0) return;
+		ByteBuffer buffer = this.blockBuffer;
+		buffer.clear();
+		buffer.putInt(this.size);
+		buffer.put(this.types, 0, this.size);
+		for (int i = 0; i < this.size; i++) buffer.putDouble(this.times[i]);
+		for (int i = 0; i < this.size; i++) buffer.putInt(this.personColumn[i]);
+		for (int i = 0; i < this.size; i++) buffer.putInt(this.linkColumn[i]);
+		for (int i = 0; i < this.size; i++) buffer.putInt(this.vehicleColumn[i]);
+		for (int i = 0; i < this.size; i++) buffer.putInt(this.facilityColumn[i]);
+		for (int i = 0; i < this.size; i++) buffer.putInt(this.stringColumn[i]);
+		for (int i = 0; i < this.size; i++) buffer.putDouble(this.positions[i]);
+		try {
+			this.out.write(buffer.array(), 0, buffer.position());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		this.bytesWritten += buffer.position();
+		this.eventsWritten += this.size;
+		this.size = 0;
+	}
+
+	public void closeFile() {
+		writeBlock();
+		try {
+			this.out.writeInt(0);
+			this.bytesWritten += 4;
+			long tablesOffset = this.bytesWritten;
+			for (IdTable table : new IdTable[] { this.persons, this.links, this.vehicles, this.facilities, this.strings }) {
+				this.out.writeInt(table.values.size());
+				for (String value : table.values) {
+					this.out.writeUTF(value);
+				}
+			}
+			this.out.writeInt(this.skippedEventTypes.size());
+			for (Map.Entry<String, Integer> entry : this.skippedEventTypes.entrySet()) {
+				this.out.writeUTF(entry.getKey());
+				this.out.writeLong(entry.getValue());
+			}
+			this.out.writeLong(tablesOffset);
+			this.out.writeInt(MAGIC);
+			this.out.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		log.info(this.eventsWritten + " events written to " + this.fileName);
+		if (!this.skippedEventTypes.isEmpty()) {
+			log.info("Skipped event types (not needed for the emission analysis): " + this.skippedEventTypes);
+		}
+	}
+
+	/**
+	 * Interns ids (or strings) in the order of their first appearance.
+	 */
+	private static final class IdTable {
+		private final Map<Object, Integer> indices = new HashMap<>();
+		private final List<String> values = new ArrayList<>();
+
+		int get(Object id) {
+			if (id == null) return NO_ID;
+			Integer index = this.indices.get(id);
+			if (index == null) {
+				index = this.values.size();
+				this.indices.put(id, index);
+				this.values.add(id.toString());
+			}
+			return index;
+		}
+	}
+
+}
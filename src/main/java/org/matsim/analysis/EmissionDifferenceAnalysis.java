@@ -0,0 +1,188 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.contrib.emissions.EmissionModule;
+import org.matsim.contrib.emissions.utils.EmissionsConfigGroup;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.events.EventsUtils;
+
+/**
+ * Compares the emissions of a policy case with a base case without writing the emission events: both events files are replayed at
+ * the same time, each on its own thread(s) with its own emission module, and only the difference (policy minus base) of the link
+ * emission tables is written.
+ * <p>
+ * The two replays do not depend on each other, so they are not synchronized; the memory is bounded by the two link emission tables.
+ * The tables of both runs are indexed by the links of both networks, so that links which only exist in one of the cases (e.g. a new
+ * road of the policy case) keep their emissions.
+ *
+ * @author agent
+ */
+public final class EmissionDifferenceAnalysis {
+	private static final Logger log = Logger.getLogger(EmissionDifferenceAnalysis.class);
+
+	private final double timeBinSize;
+	private final int numberOfThreadsPerRun;
+
+	/**
+	 * @param numberOfThreadsPerRun threads computing the emissions of each run, see {@link ParallelEmissionEventsReplay}
+	 */
+	public EmissionDifferenceAnalysis(double timeBinSize, int numberOfThreadsPerRun) {
+		this.timeBinSize = timeBinSize;
+		this.numberOfThreadsPerRun = numberOfThreadsPerRun;
+	}
+
+	/**
+	 * @param args root directory, base case run directory and run id, policy case run directory and run id (the run directories relative
+	 * to the root directory); optionally the time bin size in seconds (default: 3600) and the number of threads per run (default: 1)
+	 */
+	public static void main(String[] args) {
+		if (args.length < 5) {
+			throw new RuntimeException("Please set the root directory, the base case run directory and run id and the policy case run directory and run id. Aborting...");
+		}
+		String rootDirectory = args[0];
+		if (!rootDirectory.endsWith("/")) rootDirectory = rootDirectory + "/";
+		String baseRunDirectory = rootDirectory + args[1];
+		if (!baseRunDirectory.endsWith("/")) baseRunDirectory = baseRunDirectory + "/";
+		String baseRunId = args[2];
+		String policyRunDirectory = rootDirectory + args[3];
+		if (!policyRunDirectory.endsWith("/")) policyRunDirectory = policyRunDirectory + "/";
+		String policyRunId = args[4];
+
+		double timeBinSize = 3600.;
+		if (args.length >= 6) {
+			timeBinSize = Double.parseDouble(args[5]);
+		}
+
+		int numberOfThreadsPerRun = 1;
+		if (args.length >= 7) {
+			numberOfThreadsPerRun = Integer.parseInt(args[6]);
+		}
+
+		Config baseConfig = loadConfig(rootDirectory, baseRunDirectory, baseRunId);
+		Scenario baseScenario = loadScenario(baseConfig);
+		Config policyConfig = loadConfig(rootDirectory, policyRunDirectory, policyRunId);
+		Scenario policyScenario = loadScenario(policyConfig);
+
+		LinkEmissionsAggregator difference = new EmissionDifferenceAnalysis(timeBinSize, numberOfThreadsPerRun).run(
+				baseConfig, baseScenario, baseRunDirectory + baseRunId + ".output_events.xml.gz",
+				policyConfig, policyScenario, policyRunDirectory + policyRunId + ".output_events.xml.gz");
+
+		String outputFilePrefix = policyRunDirectory + policyRunId + "." + policyConfig.controler().getLastIteration() + ".emissions.links.difference-to-" + baseRunId;
+		difference.writeCsv(outputFilePrefix + ".csv.gz");
+		difference.writeBinary(outputFilePrefix + ".bin");
+	}
+
+	private static Config loadConfig(String rootDirectory, String runDirectory, String runId) {
+		Config config = ConfigUtils.loadConfig(runDirectory + runId + ".output_config.xml");
+		config.vehicles().setVehiclesFile(runDirectory + runId + ".output_vehicles.xml.gz");
+
+		EmissionsConfigGroup eConfig = ConfigUtils.addOrGetModule(config, EmissionsConfigGroup.class);
+		eConfig.setAverageColdEmissionFactorsFile(rootDirectory + RunOfflineAirPollutionAnalysis.hbefaFileCold);
+		eConfig.setAverageWarmEmissionFactorsFile(rootDirectory + RunOfflineAirPollutionAnalysis.hbefaFileWarm);
+		BerlinEmissionsSetup.configure(eConfig);
+		return config;
+	}
+
+	private static Scenario loadScenario(Config config) {
+		Scenario scenario = EmissionsScenarioLoader.loadNetworkAndVehicles(config);
+		HbefaRoadTypeAnnotator.annotate(scenario.getNetwork());
+		BerlinEmissionsSetup.setVehicleTypeDescriptions(scenario.getVehicles());
+		return scenario;
+	}
+
+	/**
+	 * @return the link emissions of the policy case minus the ones of the base case
+	 */
+	public LinkEmissionsAggregator run(Config baseConfig, Scenario baseScenario, String baseEventsFile,
+			Config policyConfig, Scenario policyScenario, String policyEventsFile) {
+		NetworkLinkIndex linkIndex = NetworkLinkIndex.union(baseScenario.getNetwork(), policyScenario.getNetwork());
+		double endTime = Math.max(baseConfig.qsim().getEndTime(), policyConfig.qsim().getEndTime());
+
+		// the emission modules are created one after the other; only the replays run in parallel
+		Replay base = new Replay("base", baseConfig, baseScenario, baseEventsFile, new LinkEmissionsAggregator(linkIndex, this.timeBinSize, endTime));
+		Replay policy = new Replay("policy", policyConfig, policyScenario, policyEventsFile, new LinkEmissionsAggregator(linkIndex, this.timeBinSize, endTime));
+
+		Thread baseThread = new Thread(base, "emissions-difference-base");
+		Thread policyThread = new Thread(policy, "emissions-difference-policy");
+		baseThread.start();
+		policyThread.start();
+		try {
+			baseThread.join();
+			policyThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		for (Replay replay : new Replay[] { base, policy }) {
+			if (replay.exception != null) {
+				throw new RuntimeException("Replaying the " + replay.name + " case failed. Aborting...", replay.exception);
+			}
+		}
+
+		LinkEmissionsAggregator difference = policy.linkEmissions;
+		difference.addAll(base.linkEmissions, -1.);
+		log.info("Emission difference computed.");
+		return difference;
+	}
+
+	private final class Replay implements Runnable {
+		final String name;
+		final LinkEmissionsAggregator linkEmissions;
+		private final String eventsFile;
+		private final EventsManager eventsManager = EventsUtils.createEventsManager();
+		private final ParallelEmissionEventsReplay parallelReplay;
+		volatile Throwable exception = null;
+
+		Replay(String name, Config config, Scenario scenario, String eventsFile, LinkEmissionsAggregator linkEmissions) {
+			this.name = name;
+			this.eventsFile = eventsFile;
+			this.linkEmissions = linkEmissions;
+			EventsManager outputEventsManager = EventsUtils.createEventsManager();
+			outputEventsManager.addHandler(linkEmissions);
+			if (numberOfThreadsPerRun <= 1) {
+				EmissionModule emissionModule = RunOfflineAirPollutionAnalysis.createEmissionModule(config, scenario, this.eventsManager);
+				emissionModule.getEmissionEventsManager().addHandler(new ForwardingEventHandler(outputEventsManager));
+				this.parallelReplay = null;
+			} else {
+				this.parallelReplay = new ParallelEmissionEventsReplay(config, scenario, numberOfThreadsPerRun, outputEventsManager);
+				this.eventsManager.addHandler(this.parallelReplay);
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				log.info("Replaying the " + this.name + " case: " + this.eventsFile);
+				RunOfflineAirPollutionAnalysis.readEvents(this.eventsManager, this.eventsFile);
+				if (this.parallelReplay != null) {
+					this.parallelReplay.finish();
+				}
+			} catch (Throwable e) {
+				this.exception = e;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,335 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.utils.io.IOUtils;
+
+/**
+ * Distributes link emissions onto a raster in the coordinate system of the network (GK4 for Berlin).
+ * <p>
+ * Each link is sampled at points along the link; each point spreads its share of the link emissions onto the cells around it with a
+ * Gaussian kernel (cut off at three standard deviations), or into its own cell if the kernel does not reach any cell center.  The
+ * resulting weights are normalized per link, i.e. the emissions are preserved, and computed only once per network.  They are stored as a sparse matrix in compressed row format (links x cells) in
+ * primitive arrays.  Only the cells some kernel reaches (see {@link #getRasterCells()}) are held per time bin, not the whole bounding
+ * box.  Applying the weights to a {@link LinkEmissionsAggregator} is done in parallel over the time bins, with as many time bins in
+ * memory at once as the threads and the free heap allow.
+ *
+ * @author agent
+ */
+public final class EmissionRasterizer {
+	private static final Logger log = Logger.getLogger(EmissionRasterizer.class);
+
+	private final NetworkLinkIndex linkIndex;
+	private final double cellSize;
+	private final double minX;
+	private final double minY;
+	private final int numberOfColumns;
+	private final int numberOfRows;
+
+	// the cells (row * numberOfColumns + column) reached by any link, ascending
+	private final int[] rasterCells;
+
+	// compressed sparse rows: the weights of link l are at rowStart[l] ... rowStart[l+1]-1, cells are positions in rasterCells
+	private final int[] rowStart;
+	private final int[] cells;
+	private final double[] weights;
+
+	/**
+	 * @param smoothingRadius standard deviation of the Gaussian kernel in m
+	 */
+	public EmissionRasterizer(NetworkLinkIndex linkIndex, double cellSize, double smoothingRadius) {
+		if (cellSize <= 0. || smoothingRadius <= 0.) {
+			throw new RuntimeException("Cell size and smoothing radius have to be positive. Aborting...");
+		}
+		this.linkIndex = linkIndex;
+		this.cellSize = cellSize;
+		double cutOff = 3. * smoothingRadius;
+
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		for (int l = 0; l < linkIndex.size(); l++) {
+			Link link = linkIndex.getLink(l);
+			for (Coord coord : new Coord[] { link.getFromNode().getCoord(), link.getToNode().getCoord() }) {
+				minX = Math.min(minX, coord.getX());
+				minY = Math.min(minY, coord.getY());
+				maxX = Math.max(maxX, coord.getX());
+				maxY = Math.max(maxY, coord.getY());
+			}
+		}
+		this.minX = Math.floor((minX - cutOff) / cellSize) * cellSize;
+		this.minY = Math.floor((minY - cutOff) / cellSize) * cellSize;
+		this.numberOfColumns = (int) Math.ceil((maxX + cutOff - this.minX) / cellSize) + 1;
+		this.numberOfRows = (int) Math.ceil((maxY + cutOff - this.minY) / cellSize) + 1;
+
+		long start = System.currentTimeMillis();
+		int[][] linkCells = new int[linkIndex.size()][];
+		double[][] linkWeights = new double[linkIndex.size()][];
+		IntStream.range(0, linkIndex.size()).parallel().forEach(l -> {
+			computeWeights(linkIndex.getLink(l), smoothingRadius, cutOff, l, linkCells, linkWeights);
+		});
+
+		this.rowStart = new int[linkIndex.size() + 1];
+		for (int l = 0; l < linkIndex.size(); l++) {
+			this.rowStart[l + 1] = this.rowStart[l] + linkCells[l].length;
+		}
+		this.cells = new int[this.rowStart[linkIndex.size()]];
+		this.weights = new double[this.rowStart[linkIndex.size()]];
+		for (int l = 0; l < linkIndex.size(); l++) {
+			System.arraycopy(linkCells[l], 0, this.cells, this.rowStart[l], linkCells[l].length);
+			System.arraycopy(linkWeights[l], 0, this.weights, this.rowStart[l], linkWeights[l].length);
+		}
+
+		int[] sortedCells = this.cells.clone();
+		Arrays.parallelSort(sortedCells);
+		int numberOfRasterCells = 0;
+		for (int k = 0; k < sortedCells.length; k++) {
+			if (k == 0 || sortedCells[k] != sortedCells[k - 1]) {
+				sortedCells[numberOfRasterCells++] = sortedCells[k];
+			}
+		}
+		this.rasterCells = Arrays.copyOf(sortedCells, numberOfRasterCells);
+		IntStream.range(0, this.cells.length).parallel().forEach(k -> this.cells[k] = Arrays.binarySearch(this.rasterCells, this.cells[k]));
+
+		log.info("Raster of " + this.numberOfColumns + " x " + this.numberOfRows + " cells, " + this.rasterCells.length + " of them reached by links; "
+				+ this.cells.length + " link-cell weights computed in " + (System.currentTimeMillis() - start) + " ms.");
+	}
+
+	private void computeWeights(Link link, double smoothingRadius, double cutOff, int l, int[][] linkCells, double[][] linkWeights) {
+		Coord from = link.getFromNode().getCoord();
+		Coord to = link.getToNode().getCoord();
+		double length = Math.hypot(to.getX() - from.getX(), to.getY() - from.getY());
+		int numberOfPoints = Math.max(1, (int) Math.ceil(length / (0.5 * Math.min(this.cellSize, smoothingRadius))));
+		int cellRange = (int) Math.ceil(cutOff / this.cellSize);
+
+		// dense window around the link's bounding box
+		int minColumn = getColumn(Math.min(from.getX(), to.getX())) - cellRange;
+		int minRow = getRow(Math.min(from.getY(), to.getY())) - cellRange;
+		int windowColumns = getColumn(Math.max(from.getX(), to.getX())) + cellRange - minColumn + 1;
+		int windowRows = getRow(Math.max(from.getY(), to.getY())) + cellRange - minRow + 1;
+		double[] window = new double[windowColumns * windowRows];
+
+		double twoSigmaSquare = 2. * smoothingRadius * smoothingRadius;
+		double cutOffSquare = cutOff * cutOff;
+		for (int i = 0; i < numberOfPoints; i++) {
+			double fraction = (i + 0.5) / numberOfPoints;
+			double x = from.getX() + fraction * (to.getX() - from.getX());
+			double y = from.getY() + fraction * (to.getY() - from.getY());
+			int column = getColumn(x);
+			int row = getRow(y);
+			// each point spreads the same share; a kernel much narrower than a cell may not reach any cell center
+			double pointSum = 0.;
+			for (int pass = 0; pass < 2; pass++) {
+				for (int c = column - cellRange; c <= column + cellRange; c++) {
+					for (int r = row - cellRange; r <= row + cellRange; r++) {
+						double dx = this.minX + (c + 0.5) * this.cellSize - x;
+						double dy = this.minY + (r + 0.5) * this.cellSize - y;
+						double distanceSquare = dx * dx + dy * dy;
+						if (distanceSquare > cutOffSquare) continue;
+						double value = Math.exp(-distanceSquare / twoSigmaSquare);
+						if (pass == 0) {
+							pointSum += value;
+						} else if (pointSum > 0.) {
+							window[(r - minRow) * windowColumns + (c - minColumn)] += value / pointSum;
+						}
+					}
+				}
+			}
+			if (pointSum == 0.) {
+				// all into the cell of the point
+				window[(row - minRow) * windowColumns + (column - minColumn)] += 1.;
+			}
+		}
+
+		double sum = 0.;
+		int nonZero = 0;
+		for (double value : window) {
+			if (value > 0.) {
+				sum += value;
+				nonZero++;
+			}
+		}
+		int[] cells = new int[nonZero];
+		double[] weights = new double[nonZero];
+		int k = 0;
+		for (int i = 0; i < window.length; i++) {
+			if (window[i] > 0.) {
+				int r = minRow + i / windowColumns;
+				int c = minColumn + i % windowColumns;
+				cells[k] = r * this.numberOfColumns + c;
+				weights[k] = window[i] / sum;
+				k++;
+			}
+		}
+		linkCells[l] = cells;
+		linkWeights[l] = weights;
+	}
+
+	private int getColumn(double x) {
+		return (int) ((x - this.minX) / this.cellSize);
+	}
+
+	private int getRow(double y) {
+		return (int) ((y - this.minY) / this.cellSize);
+	}
+
+	/**
+	 * @return the emissions per cell in g, cell-major: value of the k-th cell of {@link #getRasterCells()} and pollutant p at
+	 * {@code k * numberOfPollutants + p}
+	 */
+	public double[] rasterize(LinkEmissionsAggregator linkEmissions, int timeBin) {
+		checkLinkIndex(linkEmissions);
+		int numberOfPollutants = linkEmissions.getPollutants().size();
+		double[] raster = new double[this.rasterCells.length * numberOfPollutants];
+		double[] linkValues = new double[numberOfPollutants];
+		for (int l = 0; l < this.linkIndex.size(); l++) {
+			if (!linkEmissions.hasValues(l)) continue;
+			boolean zero = true;
+			for (int p = 0; p < numberOfPollutants; p++) {
+				linkValues[p] = linkEmissions.getValue(l, timeBin, p);
+				if (linkValues[p] != 0.) zero = false;
+			}
+			if (zero) continue;
+			for (int k = this.rowStart[l]; k < this.rowStart[l + 1]; k++) {
+				int offset = this.cells[k] * numberOfPollutants;
+				double weight = this.weights[k];
+				for (int p = 0; p < numberOfPollutants; p++) {
+					raster[offset + p] += weight * linkValues[p];
+				}
+			}
+		}
+		return raster;
+	}
+
+	/**
+	 * Rasterizes all time bins in parallel and writes one row per time bin and cell with emissions: cell center, time bin and the
+	 * emissions of all pollutants in g.  At most {@code numberOfThreads} rasters are in memory at once, and only as many as fit into
+	 * half of the free heap.
+	 */
+	public void writeCsv(LinkEmissionsAggregator linkEmissions, String fileName, int numberOfThreads) {
+		checkLinkIndex(linkEmissions);
+		int numberOfPollutants = linkEmissions.getPollutants().size();
+		int numberOfCells = this.rasterCells.length;
+		int batchSize = getNumberOfRastersInMemory(Math.max(1, numberOfThreads), 8L * numberOfCells * numberOfPollutants);
+		try (BufferedWriter writer = IOUtils.getBufferedWriter(fileName)) {
+			writer.write("x;y;timeBinStart;timeBinEnd");
+			for (String pollutant : linkEmissions.getPollutants()) {
+				writer.write(";" + pollutant + " [g]");
+			}
+			writer.newLine();
+
+			StringBuilder row = new StringBuilder();
+			for (int firstBin = 0; firstBin < linkEmissions.getNumberOfTimeBins(); firstBin += batchSize) {
+				int first = firstBin;
+				int last = Math.min(firstBin + batchSize, linkEmissions.getNumberOfTimeBins());
+				double[][] rasters = new double[last - first][];
+				IntStream.range(first, last).parallel().forEach(bin -> rasters[bin - first] = rasterize(linkEmissions, bin));
+
+				for (int bin = first; bin < last; bin++) {
+					double[] raster = rasters[bin - first];
+					for (int cell = 0; cell < numberOfCells; cell++) {
+						int offset = cell * numberOfPollutants;
+						boolean zero = true;
+						for (int p = 0; p < numberOfPollutants && zero; p++) {
+							if (raster[offset + p] != 0.) zero = false;
+						}
+						if (zero) continue;
+						int rasterCell = this.rasterCells[cell];
+						row.setLength(0);
+						row.append(this.minX + (rasterCell % this.numberOfColumns + 0.5) * this.cellSize).append(';')
+								.append(this.minY + (rasterCell / this.numberOfColumns + 0.5) * this.cellSize).append(';')
+								.append(bin * linkEmissions.getTimeBinSize()).append(';')
+								.append((bin + 1) * linkEmissions.getTimeBinSize());
+						for (int p = 0; p < numberOfPollutants; p++) {
+							row.append(';').append(raster[offset + p]);
+						}
+						writer.write(row.toString());
+						writer.newLine();
+					}
+					rasters[bin - first] = null;
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		log.info("Raster emissions written to " + fileName);
+	}
+
+	private static int getNumberOfRastersInMemory(int numberOfThreads, long bytesPerRaster) {
+		Runtime runtime = Runtime.getRuntime();
+		long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		long fitting = Math.max(1, freeHeap / 2 / Math.max(1, bytesPerRaster));
+		if (fitting < numberOfThreads) {
+			log.warn("Only " + fitting + " rasters of " + bytesPerRaster / (1024 * 1024) + " MB fit into the free heap; rasterizing " + fitting
+					+ " instead of " + numberOfThreads + " time bins at once.");
+		}
+		return (int) Math.min(numberOfThreads, fitting);
+	}
+
+	private void checkLinkIndex(LinkEmissionsAggregator linkEmissions) {
+		if (linkEmissions.getLinkIndex() != this.linkIndex) {
+			throw new RuntimeException("The link emissions and the raster weights are based on different link indices. Aborting...");
+		}
+	}
+
+	public int getNumberOfColumns() {
+		return this.numberOfColumns;
+	}
+
+	public int getNumberOfRows() {
+		return this.numberOfRows;
+	}
+
+	/**
+	 * @return the weights of a link, in the order of {@link #getCells(int)}; they sum up to 1
+	 */
+	public double[] getWeights(int link) {
+		return Arrays.copyOfRange(this.weights, this.rowStart[link], this.rowStart[link + 1]);
+	}
+
+	/**
+	 * @return the cells of a link as {@code row * numberOfColumns + column}
+	 */
+	public int[] getCells(int link) {
+		int[] cells = Arrays.copyOfRange(this.cells, this.rowStart[link], this.rowStart[link + 1]);
+		for (int k = 0; k < cells.length; k++) {
+			cells[k] = this.rasterCells[cells[k]];
+		}
+		return cells;
+	}
+
+	/**
+	 * @return the cells reached by any link as {@code row * numberOfColumns + column}, ascending; the order of {@link #rasterize}
+	 */
+	public int[] getRasterCells() {
+		return this.rasterCells.clone();
+	}
+
+}
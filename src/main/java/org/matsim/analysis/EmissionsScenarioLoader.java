@@ -0,0 +1,82 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.net.URL;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigGroup;
+import org.matsim.core.network.io.MatsimNetworkReader;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.vehicles.MatsimVehicleReader;
+
+/**
+ * Loads only what the emission calculation needs: the network and the vehicles.  Population, transit schedule, transit vehicles,
+ * facilities etc. are not read, even if the config points to them.
+ * <p>
+ * Network and vehicles are read in parallel.  The network is read with the core reader, i.e. with allowed modes, attributes and the
+ * transformation from the input CRS of the network to the global CRS.  Network change events are not read.
+ *
+ * @author agent
+ */
+public final class EmissionsScenarioLoader {
+	private static final Logger log = Logger.getLogger(EmissionsScenarioLoader.class);
+
+	private EmissionsScenarioLoader() {
+	}
+
+	public static Scenario loadNetworkAndVehicles(Config config) {
+		Scenario scenario = ScenarioUtils.createScenario(config);
+		URL networkFile = config.network().getInputFileURL(config.getContext());
+		URL vehiclesFile = config.vehicles().getVehiclesFile() == null ? null : ConfigGroup.getInputFileURL(config.getContext(), config.vehicles().getVehiclesFile());
+
+		long start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<?> network = executor.submit(() -> new MatsimNetworkReader(config.network().getInputCRS(),
+					config.global().getCoordinateSystem(), scenario.getNetwork()).parse(networkFile));
+			Future<?> vehicles = null;
+			if (vehiclesFile != null) {
+				vehicles = executor.submit(() -> new MatsimVehicleReader(scenario.getVehicles()).parse(vehiclesFile));
+			} else {
+				log.warn("No vehicles file. Emissions can only be computed for vehicles which are not part of the scenario...");
+			}
+			network.get();
+			if (vehicles != null) vehicles.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Could not load the network or the vehicles. Aborting...", e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+		log.info("Network (" + scenario.getNetwork().getLinks().size() + " links) and vehicles (" + scenario.getVehicles().getVehicles().size()
+				+ " vehicles) loaded in " + (System.currentTimeMillis() - start) + " ms.");
+		return scenario;
+	}
+
+}
@@ -0,0 +1,51 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsUtils;
+
+/**
+ * Converts an events file (e.g. run.output_events.xml.gz) once into the binary format of {@link BinaryEventsWriter}.  By default,
+ * the binary file is written next to the events file (run.output_events.bin), where {@link RunOfflineAirPollutionAnalysis} picks
+ * it up instead of the xml file as long as the xml file is not changed.
+ *
+ * @author agent
+ */
+public class EventsToBinaryConverter {
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			throw new RuntimeException("Please set the events file (and optionally the output file). Aborting...");
+		}
+		String eventsFile = args[0];
+		String binaryEventsFile = args.length > 1 ? args[1] : BinaryEventsFormat.getBinaryFileName(eventsFile);
+		convert(eventsFile, binaryEventsFile);
+	}
+
+	public static void convert(String eventsFile, String binaryEventsFile) {
+		EventsManager eventsManager = EventsUtils.createEventsManager();
+		BinaryEventsWriter writer = new BinaryEventsWriter(binaryEventsFile, eventsFile);
+		eventsManager.addHandler(writer);
+		RunOfflineAirPollutionAnalysis.readEventsXml(eventsManager, eventsFile);
+		writer.closeFile();
+	}
+
+}
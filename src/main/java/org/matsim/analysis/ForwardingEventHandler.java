@@ -0,0 +1,48 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.handler.BasicEventHandler;
+
+/**
+ * Passes every event on to another events manager.
+ *
+ * @author agent
+ */
+public final class ForwardingEventHandler implements BasicEventHandler {
+
+	private final EventsManager target;
+
+	public ForwardingEventHandler(EventsManager target) {
+		this.target = target;
+	}
+
+	@Override
+	public void handleEvent(Event event) {
+		this.target.processEvent(event);
+	}
+
+	@Override
+	public void reset(int iteration) {
+	}
+
+}
@@ -0,0 +1,123 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+
+/**
+ * Writes the HBEFA road type into the {@value #ROAD_TYPE_ATTRIBUTE} attribute of every link, based on
+ * the free speed and the number of lanes.  Used by the offline analysis and by the online emission calculation.
+ * <p>
+ * The road types are computed in parallel.
+ *
+ * @author agent
+ */
+public final class HbefaRoadTypeAnnotator {
+	/**
+	 * The link attribute the emissions contrib reads with {@code HbefaRoadTypeSource.fromLinkAttributes}.
+	 */
+	public static final String ROAD_TYPE_ATTRIBUTE = "hbefa_road_type";
+
+	/**
+	 * All road types the mapping produces.
+	 */
+	public static final List<String> ROAD_TYPES = Collections.unmodifiableList(Arrays.asList(
+			"URB/Access/30", "URB/Access/40",
+			"URB/Local/50", "URB/Distr/50", "URB/Trunk-City/50",
+			"URB/Local/60", "URB/Trunk-City/60", "URB/MW-City/60",
+			"URB/MW-City/70", "URB/MW-Nat./80", "RUR/MW/>130"));
+
+	private HbefaRoadTypeAnnotator() {
+	}
+
+	/**
+	 * Computes the road types and writes them into the link attributes.
+	 */
+	public static void annotate(Network network) {
+		Link[] links = network.getLinks().values().toArray(new Link[0]);
+		// every link has its own attributes, so this can be done in parallel
+		IntStream.range(0, links.length).parallel().forEach(i ->
+				links[i].getAttributes().putAttribute(ROAD_TYPE_ATTRIBUTE, ROAD_TYPES.get(getRoadTypeCode(links[i]))));
+	}
+
+	/**
+	 * The road type mapping for the Berlin network.  The free speeds of non-motorway links were reduced during network creation and
+	 * are doubled here.
+	 */
+	public static String getRoadType(Link link) {
+		return ROAD_TYPES.get(getRoadTypeCode(link));
+	}
+
+	private static int getRoadTypeCode(Link link) {
+
+		double freespeed = Double.NaN;
+
+		if (link.getFreespeed() <= 13.888889) {
+			freespeed = link.getFreespeed() * 2;
+			// for non motorway roads, the free speed level was reduced
+		} else {
+			freespeed = link.getFreespeed();
+			// for motorways, the original speed levels seems ok.
+		}
+
+		if(freespeed <= 8.333333333){ //30kmh
+			return 0;
+		} else if(freespeed <= 11.111111111){ //40kmh
+			return 1;
+		} else if(freespeed <= 13.888888889){ //50kmh
+			double lanes = link.getNumberOfLanes();
+			if(lanes <= 1.0){
+				return 2;
+			} else if(lanes <= 2.0){
+				return 3;
+			} else if(lanes > 2.0){
+				return 4;
+			} else{
+				throw new RuntimeException("NoOfLanes not properly defined");
+			}
+		} else if(freespeed <= 16.666666667){ //60kmh
+			double lanes = link.getNumberOfLanes();
+			if(lanes <= 1.0){
+				return 5;
+			} else if(lanes <= 2.0){
+				return 6;
+			} else if(lanes > 2.0){
+				return 7;
+			} else{
+				throw new RuntimeException("NoOfLanes not properly defined");
+			}
+		} else if(freespeed <= 19.444444444){ //70kmh
+			return 8;
+		} else if(freespeed <= 22.222222222){ //80kmh
+			return 9;
+		} else if(freespeed > 22.222222222){ //faster
+			return 10;
+		} else{
+			throw new RuntimeException("Link not considered...");
+		}
+	}
+
+}
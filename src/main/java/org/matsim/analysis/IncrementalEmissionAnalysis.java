@@ -0,0 +1,447 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.contrib.emissions.EmissionModule;
+import org.matsim.contrib.emissions.events.ColdEmissionEvent;
+import org.matsim.contrib.emissions.events.ColdEmissionEventHandler;
+import org.matsim.contrib.emissions.events.WarmEmissionEvent;
+import org.matsim.contrib.emissions.events.WarmEmissionEventHandler;
+import org.matsim.contrib.emissions.utils.EmissionsConfigGroup;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigGroup;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+
+/**
+ * Link emission tables which are only recomputed where the inputs changed, for repeated analyses of the same run.
+ * <p>
+ * The first pass splits the vehicle related events by vehicle type into binary events files ("travel data": the link enter and
+ * leave times and the parking durations the emission calculation needs).  The warm and cold link emissions are computed and cached
+ * per vehicle type, together with a key of their inputs (vehicle type description, HBEFA files, emissions config, time bins) and the
+ * HBEFA road type, length and free speed of every link.  Later passes
+ * <ul>
+ * <li>reuse the emissions of a vehicle type if nothing changed,</li>
+ * <li>recompute a vehicle type from its travel data if its key changed, e.g. a new description of the freight vehicle type,</li>
+ * <li>recompute only the warm emissions on the links with a new road type, length or free speed otherwise.</li>
+ * </ul>
+ * The travel data is rebuilt if the events or vehicles file changed.  Warm emissions of a link only depend on the events and the
+ * attributes of that link, cold emissions do not depend on the network.  Emission events are not produced.
+ *
+ * @author agent
+ */
+public final class IncrementalEmissionAnalysis {
+	private static final Logger log = Logger.getLogger(IncrementalEmissionAnalysis.class);
+
+	private static final int VERSION = 2;
+	private static final String TRAVEL_DATA_KEY_FILE = "travel-data.key";
+
+	private final Config config;
+	private final Scenario scenario;
+	private final File cacheDirectory;
+	private final double timeBinSize;
+	private final NetworkLinkIndex linkIndex;
+
+	public IncrementalEmissionAnalysis(Config config, Scenario scenario, String cacheDirectory, double timeBinSize) {
+		this.config = config;
+		this.scenario = scenario;
+		this.cacheDirectory = new File(cacheDirectory);
+		if (!this.cacheDirectory.exists() && !this.cacheDirectory.mkdirs()) {
+			throw new RuntimeException("Could not create the cache directory " + cacheDirectory + ". Aborting...");
+		}
+		this.timeBinSize = timeBinSize;
+		this.linkIndex = new NetworkLinkIndex(scenario.getNetwork());
+	}
+
+	/**
+	 * @return the warm and cold emissions of all vehicle types
+	 */
+	public LinkEmissionsAggregator run(String eventsFile) {
+		String travelDataKey = updateTravelData(eventsFile);
+		String[] linkProperties = getLinkProperties();
+
+		LinkEmissionsAggregator total = createAggregator();
+		for (VehicleType vehicleType : this.scenario.getVehicles().getVehicleTypes().values()) {
+			String name = getFileName(vehicleType.getId());
+			File travelDataFile = new File(this.cacheDirectory, name + ".travel-data.bin");
+			if (!travelDataFile.exists()) {
+				log.info("No vehicle of type " + vehicleType.getId() + " in the events.");
+				continue;
+			}
+			File keyFile = new File(this.cacheDirectory, name + ".key");
+			File warmFile = new File(this.cacheDirectory, name + ".warm.bin");
+			File coldFile = new File(this.cacheDirectory, name + ".cold.bin");
+			File linkPropertiesFile = new File(this.cacheDirectory, name + ".links.gz");
+			String key = computeKey(travelDataKey, vehicleType);
+
+			LinkEmissionsAggregator warm;
+			LinkEmissionsAggregator cold;
+			if (!key.equals(readKey(keyFile))) {
+				log.info("Computing the emissions of vehicle type " + vehicleType.getId() + ".");
+				warm = createAggregator();
+				cold = createAggregator();
+				replay(travelDataFile.getPath(), null, warm, cold);
+			} else {
+				warm = LinkEmissionsAggregator.readBinary(this.linkIndex, warmFile.getPath());
+				cold = LinkEmissionsAggregator.readBinary(this.linkIndex, coldFile.getPath());
+				boolean[] changedLinks = getChangedLinks(readLinkProperties(linkPropertiesFile.getPath()), linkProperties);
+				int numberOfChangedLinks = count(changedLinks);
+				if (numberOfChangedLinks == 0) {
+					log.info("Reusing the emissions of vehicle type " + vehicleType.getId() + ".");
+					total.addAll(warm);
+					total.addAll(cold);
+					continue;
+				}
+				log.info("Recomputing the warm emissions of vehicle type " + vehicleType.getId() + " on " + numberOfChangedLinks + " changed links.");
+				LinkEmissionsAggregator changedWarm = createAggregator();
+				replay(travelDataFile.getPath(), changedLinks, changedWarm, null);
+				for (int link = 0; link < changedLinks.length; link++) {
+					if (changedLinks[link]) warm.setLinkValues(link, changedWarm);
+				}
+			}
+
+			// the key comes last, so that an interrupted update is not taken for a valid one
+			keyFile.delete();
+			warm.writeBinary(warmFile.getPath());
+			cold.writeBinary(coldFile.getPath());
+			writeLinkProperties(linkPropertiesFile.getPath(), linkProperties);
+			writeKey(keyFile, key);
+
+			total.addAll(warm);
+			total.addAll(cold);
+		}
+		return total;
+	}
+
+	/**
+	 * Splits the events by vehicle type, unless this was already done for the same events and vehicles files.
+	 *
+	 * @return the key of the travel data
+	 */
+	private String updateTravelData(String eventsFile) {
+		String binaryEventsFile = BinaryEventsFormat.getBinaryFileName(eventsFile);
+		String vehiclesFile = this.config.vehicles().getVehiclesFile();
+		String key = hash(Integer.toString(VERSION), Integer.toString(BinaryEventsFormat.VERSION), describeFile(eventsFile), describeFile(binaryEventsFile),
+				vehiclesFile == null ? "" : describeFile(ConfigGroup.getInputFileURL(this.config.getContext(), vehiclesFile)));
+		File keyFile = new File(this.cacheDirectory, TRAVEL_DATA_KEY_FILE);
+		if (key.equals(readKey(keyFile))) {
+			log.info("Using the travel data in " + this.cacheDirectory + ".");
+			return key;
+		}
+
+		log.info("Splitting the events by vehicle type into " + this.cacheDirectory + "...");
+		keyFile.delete();
+		File[] oldFiles = this.cacheDirectory.listFiles((directory, name) -> name.endsWith(".travel-data.bin"));
+		if (oldFiles != null) {
+			for (File file : oldFiles) {
+				file.delete();
+			}
+		}
+		TravelDataSplitter splitter = new TravelDataSplitter();
+		EventsManager eventsManager = EventsUtils.createEventsManager();
+		eventsManager.addHandler(splitter);
+		RunOfflineAirPollutionAnalysis.readEvents(eventsManager, eventsFile);
+		splitter.close();
+		writeKey(keyFile, key);
+		return key;
+	}
+
+	private String computeKey(String travelDataKey, VehicleType vehicleType) {
+		EmissionsConfigGroup eConfig = ConfigUtils.addOrGetModule(this.config, EmissionsConfigGroup.class);
+		return hash(Integer.toString(VERSION), travelDataKey, String.valueOf(vehicleType.getDescription()), eConfig.getParams().toString(),
+				describeFile(eConfig.getAverageWarmEmissionFactorsFile()), describeFile(eConfig.getAverageColdEmissionFactorsFile()),
+				Double.toString(this.timeBinSize), Double.toString(this.config.qsim().getEndTime()));
+	}
+
+	/**
+	 * Passes the travel data through an {@link EmissionModule}.
+	 *
+	 * @param links only the events on these links (and those without a link), null for all events
+	 * @param cold null if the cold emissions are not needed
+	 */
+	private void replay(String travelDataFile, boolean[] links, LinkEmissionsAggregator warm, LinkEmissionsAggregator cold) {
+		EventsManager eventsManager = EventsUtils.createEventsManager();
+		EmissionModule emissionModule = RunOfflineAirPollutionAnalysis.createEmissionModule(this.config, this.scenario, eventsManager);
+		emissionModule.getEmissionEventsManager().addHandler(new WarmEmissionEventHandler() {
+			@Override
+			public void handleEvent(WarmEmissionEvent event) {
+				warm.handleEvent(event);
+			}
+
+			@Override
+			public void reset(int iteration) {
+			}
+		});
+		if (cold != null) {
+			emissionModule.getEmissionEventsManager().addHandler(new ColdEmissionEventHandler() {
+				@Override
+				public void handleEvent(ColdEmissionEvent event) {
+					cold.handleEvent(event);
+				}
+
+				@Override
+				public void reset(int iteration) {
+				}
+			});
+		}
+
+		EventsManager inputEventsManager = eventsManager;
+		if (links != null) {
+			inputEventsManager = EventsUtils.createEventsManager();
+			inputEventsManager.addHandler(new LinkFilter(links, eventsManager));
+		}
+		new BinaryEventsReader(inputEventsManager).readFile(travelDataFile);
+	}
+
+	/**
+	 * @return per link what its warm emissions depend on besides the events: road type, length and free speed
+	 */
+	private String[] getLinkProperties() {
+		String[] linkProperties = new String[this.linkIndex.size()];
+		for (int link = 0; link < linkProperties.length; link++) {
+			Link networkLink = this.linkIndex.getLink(link);
+			Object roadType = networkLink.getAttributes().getAttribute(HbefaRoadTypeAnnotator.ROAD_TYPE_ATTRIBUTE);
+			linkProperties[link] = (roadType == null ? "" : roadType.toString()) + ";" + networkLink.getLength() + ";" + networkLink.getFreespeed();
+		}
+		return linkProperties;
+	}
+
+	private boolean[] getChangedLinks(Map<String, String> cachedLinkProperties, String[] linkProperties) {
+		boolean[] changed = new boolean[linkProperties.length];
+		for (int link = 0; link < linkProperties.length; link++) {
+			changed[link] = !linkProperties[link].equals(cachedLinkProperties.get(this.linkIndex.getLinkId(link).toString()));
+		}
+		return changed;
+	}
+
+	private void writeLinkProperties(String fileName, String[] linkProperties) {
+		try (DataOutputStream out = new DataOutputStream(LinkEmissionsAggregator.createOutputStream(fileName))) {
+			out.writeInt(linkProperties.length);
+			for (int link = 0; link < linkProperties.length; link++) {
+				out.writeUTF(this.linkIndex.getLinkId(link).toString());
+				out.writeUTF(linkProperties[link]);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static Map<String, String> readLinkProperties(String fileName) {
+		Map<String, String> linkProperties = new HashMap<>();
+		if (!new File(fileName).exists()) {
+			return linkProperties;
+		}
+		try (DataInputStream in = new DataInputStream(LinkEmissionsAggregator.createInputStream(fileName))) {
+			int size = in.readInt();
+			for (int i = 0; i < size; i++) {
+				linkProperties.put(in.readUTF(), in.readUTF());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return linkProperties;
+	}
+
+	private LinkEmissionsAggregator createAggregator() {
+		return new LinkEmissionsAggregator(this.linkIndex, this.timeBinSize, this.config.qsim().getEndTime());
+	}
+
+	private static int count(boolean[] values) {
+		int count = 0;
+		for (boolean value : values) {
+			if (value) count++;
+		}
+		return count;
+	}
+
+	private static String getFileName(Id<VehicleType> vehicleTypeId) {
+		try {
+			return URLEncoder.encode(vehicleTypeId.toString(), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String readKey(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+			return lines.isEmpty() ? null : lines.get(0);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void writeKey(File file, String key) {
+		try (BufferedWriter writer = IOUtils.getBufferedWriter(file.getPath())) {
+			writer.write(key);
+			writer.newLine();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return name, size and modification time of a local file, only the name otherwise
+	 */
+	private static String describeFile(String file) {
+		if (file == null) {
+			return "";
+		}
+		File localFile = new File(file);
+		return localFile.exists() ? localFile.getAbsolutePath() + ";" + localFile.length() + ";" + localFile.lastModified() : file;
+	}
+
+	private static String describeFile(URL url) {
+		try {
+			return "file".equals(url.getProtocol()) ? describeFile(new File(url.toURI()).getPath()) : url.toString();
+		} catch (URISyntaxException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String hash(String... parts) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (String part : parts) {
+				digest.update(part.getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+			}
+			StringBuilder hash = new StringBuilder();
+			for (byte b : digest.digest()) {
+				hash.append(String.format("%02x", b));
+			}
+			return hash.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Writes the vehicle related events of each vehicle type into its own binary events file.
+	 */
+	private final class TravelDataSplitter implements BasicEventHandler {
+		private final Map<Id<Vehicle>, BinaryEventsWriter> writersByVehicle = new HashMap<>();
+		private final Map<Id<VehicleType>, BinaryEventsWriter> writersByType = new HashMap<>();
+
+		@Override
+		public void handleEvent(Event event) {
+			Id<Vehicle> vehicleId = ParallelEmissionEventsReplay.getVehicleId(event);
+			if (vehicleId == null) return;
+			BinaryEventsWriter writer = this.writersByVehicle.get(vehicleId);
+			if (writer == null) {
+				Vehicle vehicle = scenario.getVehicles().getVehicles().get(vehicleId);
+				if (vehicle == null) {
+					// not part of the scenario, ignored by the emission calculation as well
+					return;
+				}
+				Id<VehicleType> typeId = vehicle.getType().getId();
+				writer = this.writersByType.get(typeId);
+				if (writer == null) {
+					writer = new BinaryEventsWriter(new File(cacheDirectory, getFileName(typeId) + ".travel-data.bin").getPath());
+					this.writersByType.put(typeId, writer);
+				}
+				this.writersByVehicle.put(vehicleId, writer);
+			}
+			writer.handleEvent(event);
+		}
+
+		@Override
+		public void reset(int iteration) {
+		}
+
+		void close() {
+			for (BinaryEventsWriter writer : this.writersByType.values()) {
+				writer.closeFile();
+			}
+		}
+	}
+
+	/**
+	 * Passes on the events on the given links and the events without a link.
+	 */
+	private final class LinkFilter implements BasicEventHandler {
+		private final boolean[] links;
+		private final EventsManager target;
+
+		LinkFilter(boolean[] links, EventsManager target) {
+			this.links = links;
+			this.target = target;
+		}
+
+		@Override
+		public void handleEvent(Event event) {
+			Id<Link> linkId = null;
+			if (event instanceof LinkEnterEvent) {
+				linkId = ((LinkEnterEvent) event).getLinkId();
+			} else if (event instanceof LinkLeaveEvent) {
+				linkId = ((LinkLeaveEvent) event).getLinkId();
+			} else if (event instanceof VehicleEntersTrafficEvent) {
+				linkId = ((VehicleEntersTrafficEvent) event).getLinkId();
+			} else if (event instanceof VehicleLeavesTrafficEvent) {
+				linkId = ((VehicleLeavesTrafficEvent) event).getLinkId();
+			}
+			if (linkId != null) {
+				int link = linkIndex.getIndex(linkId);
+				if (link < 0 || !this.links[link]) return;
+			}
+			this.target.processEvent(event);
+		}
+
+		@Override
+		public void reset(int iteration) {
+		}
+	}
+
+}
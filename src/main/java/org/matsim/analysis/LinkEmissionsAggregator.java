@@ -0,0 +1,381 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.contrib.emissions.events.ColdEmissionEvent;
+import org.matsim.contrib.emissions.events.ColdEmissionEventHandler;
+import org.matsim.contrib.emissions.events.WarmEmissionEvent;
+import org.matsim.contrib.emissions.events.WarmEmissionEventHandler;
+import org.matsim.contrib.emissions.types.ColdPollutant;
+import org.matsim.contrib.emissions.types.WarmPollutant;
+import org.matsim.core.utils.io.IOUtils;
+
+/**
+ * Sums up warm and cold emissions per link and time bin while the emission events stream by.
+ * <p>
+ * Warm and cold pollutants with the same name end up in the same column.  The values of a link are kept in one primitive array
+ * (time bin x pollutant) which is only allocated once the link sees its first emission event.  Events after the last time bin are
+ * added to the last time bin.
+ *
+ * @author agent
+ */
+public final class LinkEmissionsAggregator implements WarmEmissionEventHandler, ColdEmissionEventHandler {
+	private static final Logger log = Logger.getLogger(LinkEmissionsAggregator.class);
+
+	static final int BINARY_FORMAT_MAGIC = 0x4C454D31; // "LEM1"
+
+	private final NetworkLinkIndex linkIndex;
+	private final double timeBinSize;
+	private final int numberOfTimeBins;
+	private final List<String> pollutants;
+	private final int[] warmPollutantIndices;
+	private final int[] coldPollutantIndices;
+	private final double[][] values;
+
+	private int unknownLinkWarnings = 0;
+	private int lateEventWarnings = 0;
+
+	/**
+	 * @param timeBinSize in seconds, e.g. 900 or 3600
+	 * @param endTime in seconds, usually the end time of the qsim
+	 */
+	public LinkEmissionsAggregator(Network network, double timeBinSize, double endTime) {
+		this(new NetworkLinkIndex(network), timeBinSize, endTime);
+	}
+
+	public LinkEmissionsAggregator(NetworkLinkIndex linkIndex, double timeBinSize, double endTime) {
+		this(getNumberOfTimeBins(timeBinSize, endTime), linkIndex, timeBinSize);
+	}
+
+	private LinkEmissionsAggregator(int numberOfTimeBins, NetworkLinkIndex linkIndex, double timeBinSize) {
+		this.linkIndex = linkIndex;
+		this.timeBinSize = timeBinSize;
+		this.numberOfTimeBins = numberOfTimeBins;
+
+		Map<String, Integer> pollutantIndices = new LinkedHashMap<>();
+		this.warmPollutantIndices = new int[WarmPollutant.values().length];
+		for (WarmPollutant pollutant : WarmPollutant.values()) {
+			this.warmPollutantIndices[pollutant.ordinal()] = getOrCreateIndex(pollutantIndices, pollutant.name());
+		}
+		this.coldPollutantIndices = new int[ColdPollutant.values().length];
+		for (ColdPollutant pollutant : ColdPollutant.values()) {
+			this.coldPollutantIndices[pollutant.ordinal()] = getOrCreateIndex(pollutantIndices, pollutant.name());
+		}
+		this.pollutants = Collections.unmodifiableList(new ArrayList<>(pollutantIndices.keySet()));
+
+		this.values = new double[linkIndex.size()][];
+	}
+
+	private static int getNumberOfTimeBins(double timeBinSize, double endTime) {
+		if (timeBinSize <= 0.) {
+			throw new IllegalArgumentException("Time bin size must be positive. Aborting...");
+		}
+		return Math.max(1, (int) Math.ceil(endTime / timeBinSize));
+	}
+
+	private static int getOrCreateIndex(Map<String, Integer> indices, String name) {
+		Integer index = indices.get(name);
+		if (index == null) {
+			index = indices.size();
+			indices.put(name, index);
+		}
+		return index;
+	}
+
+	@Override
+	public void handleEvent(WarmEmissionEvent event) {
+		int link = toLinkIndex(event.getLinkId());
+		if (link < 0) return;
+		int bin = getTimeBin(event.getTime());
+		for (Map.Entry<WarmPollutant, Double> entry : event.getWarmEmissions().entrySet()) {
+			add(link, bin, this.warmPollutantIndices[entry.getKey().ordinal()], entry.getValue());
+		}
+	}
+
+	@Override
+	public void handleEvent(ColdEmissionEvent event) {
+		int link = toLinkIndex(event.getLinkId());
+		if (link < 0) return;
+		int bin = getTimeBin(event.getTime());
+		for (Map.Entry<ColdPollutant, Double> entry : event.getColdEmissions().entrySet()) {
+			add(link, bin, this.coldPollutantIndices[entry.getKey().ordinal()], entry.getValue());
+		}
+	}
+
+	@Override
+	public void reset(int iteration) {
+		for (int i = 0; i < this.values.length; i++) {
+			this.values[i] = null;
+		}
+	}
+
+	/**
+	 * Adds a value to a link and time bin.  This is what the event handler methods do; it is public so that tables can also be filled
+	 * from other sources.
+	 */
+	public void add(int link, int timeBin, int pollutant, double value) {
+		double[] linkValues = this.values[link];
+		if (linkValues == null) {
+			linkValues = new double[this.numberOfTimeBins * this.pollutants.size()];
+			this.values[link] = linkValues;
+		}
+		linkValues[timeBin * this.pollutants.size() + pollutant] += value;
+	}
+
+	/**
+	 * Adds all values of another table with the same links, time bins and pollutants.
+	 */
+	public void addAll(LinkEmissionsAggregator other) {
+		addAll(other, 1.);
+	}
+
+	/**
+	 * Adds all values of another table with the same links, time bins and pollutants, multiplied by a factor (e.g. -1 for the
+	 * difference).
+	 */
+	public void addAll(LinkEmissionsAggregator other, double factor) {
+		checkCompatible(other);
+		for (int link = 0; link < this.values.length; link++) {
+			double[] otherValues = other.values[link];
+			if (otherValues == null) continue;
+			for (int i = 0; i < otherValues.length; i++) {
+				if (otherValues[i] != 0.) {
+					add(link, i / this.pollutants.size(), i % this.pollutants.size(), factor * otherValues[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replaces all values of a link by the ones of another table with the same links, time bins and pollutants.
+	 */
+	void setLinkValues(int link, LinkEmissionsAggregator other) {
+		checkCompatible(other);
+		double[] otherValues = other.values[link];
+		this.values[link] = otherValues == null ? null : otherValues.clone();
+	}
+
+	private void checkCompatible(LinkEmissionsAggregator other) {
+		if (other.values.length != this.values.length || other.numberOfTimeBins != this.numberOfTimeBins
+				|| other.timeBinSize != this.timeBinSize || !other.pollutants.equals(this.pollutants)) {
+			throw new IllegalArgumentException("The link emission tables differ in links, time bins or pollutants. Aborting...");
+		}
+	}
+
+	private int toLinkIndex(Id<Link> linkId) {
+		int link = this.linkIndex.getIndex(linkId);
+		if (link < 0 && this.unknownLinkWarnings < 5) {
+			log.warn("Emission event on link " + linkId + " which is not part of the network. Ignoring the event.");
+			this.unknownLinkWarnings++;
+			if (this.unknownLinkWarnings == 5) log.warn("Further warnings of this type are not printed out.");
+		}
+		return link;
+	}
+
+	public int getTimeBin(double time) {
+		int bin = (int) (time / this.timeBinSize);
+		if (bin >= this.numberOfTimeBins) {
+			if (this.lateEventWarnings < 5) {
+				log.warn("Emission event at time " + time + " after the last time bin. Adding it to the last time bin.");
+				this.lateEventWarnings++;
+				if (this.lateEventWarnings == 5) log.warn("Further warnings of this type are not printed out.");
+			}
+			bin = this.numberOfTimeBins - 1;
+		}
+		return Math.max(bin, 0);
+	}
+
+	public NetworkLinkIndex getLinkIndex() {
+		return this.linkIndex;
+	}
+
+	public double getTimeBinSize() {
+		return this.timeBinSize;
+	}
+
+	public int getNumberOfTimeBins() {
+		return this.numberOfTimeBins;
+	}
+
+	public List<String> getPollutants() {
+		return this.pollutants;
+	}
+
+	/**
+	 * @return the emissions of a link and time bin in g, 0 if there are none
+	 */
+	public double getValue(int link, int timeBin, int pollutant) {
+		double[] linkValues = this.values[link];
+		return linkValues == null ? 0. : linkValues[timeBin * this.pollutants.size() + pollutant];
+	}
+
+	public boolean hasValues(int link) {
+		return this.values[link] != null;
+	}
+
+	/**
+	 * Writes one row per link and time bin with emissions.
+	 */
+	public void writeCsv(String fileName) {
+		int numberOfPollutants = this.pollutants.size();
+		try (BufferedWriter writer = IOUtils.getBufferedWriter(fileName)) {
+			writer.write("linkId;timeBinStart;timeBinEnd");
+			for (String pollutant : this.pollutants) {
+				writer.write(";" + pollutant + " [g]");
+			}
+			writer.newLine();
+
+			StringBuilder row = new StringBuilder();
+			for (int link = 0; link < this.values.length; link++) {
+				double[] linkValues = this.values[link];
+				if (linkValues == null) continue;
+				String linkId = this.linkIndex.getLinkId(link).toString();
+				for (int bin = 0; bin < this.numberOfTimeBins; bin++) {
+					if (isZero(linkValues, bin * numberOfPollutants, numberOfPollutants)) continue;
+					row.setLength(0);
+					row.append(linkId).append(';').append(bin * this.timeBinSize).append(';').append((bin + 1) * this.timeBinSize);
+					for (int p = 0; p < numberOfPollutants; p++) {
+						row.append(';').append(linkValues[bin * numberOfPollutants + p]);
+					}
+					writer.write(row.toString());
+					writer.newLine();
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		log.info("Link emissions written to " + fileName);
+	}
+
+	/**
+	 * Writes the table in a compact binary format: a header with the time bins and pollutant names, followed by the link id and all
+	 * (time bin x pollutant) values of every link with emissions.  The file is gzipped if the name ends with ".gz".
+	 */
+	public void writeBinary(String fileName) {
+		try (DataOutputStream out = new DataOutputStream(createOutputStream(fileName))) {
+			out.writeInt(BINARY_FORMAT_MAGIC);
+			out.writeDouble(this.timeBinSize);
+			out.writeInt(this.numberOfTimeBins);
+			out.writeInt(this.pollutants.size());
+			for (String pollutant : this.pollutants) {
+				out.writeUTF(pollutant);
+			}
+			int linksWithValues = 0;
+			for (double[] linkValues : this.values) {
+				if (linkValues != null) linksWithValues++;
+			}
+			out.writeInt(linksWithValues);
+			for (int link = 0; link < this.values.length; link++) {
+				double[] linkValues = this.values[link];
+				if (linkValues == null) continue;
+				out.writeUTF(this.linkIndex.getLinkId(link).toString());
+				for (double value : linkValues) {
+					out.writeDouble(value);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		log.info("Link emissions written to " + fileName);
+	}
+
+	/**
+	 * Reads a table written by {@link #writeBinary(String)}.  Links which are not part of the index are skipped.
+	 */
+	public static LinkEmissionsAggregator readBinary(NetworkLinkIndex linkIndex, String fileName) {
+		try (DataInputStream in = new DataInputStream(createInputStream(fileName))) {
+			if (in.readInt() != BINARY_FORMAT_MAGIC) {
+				throw new RuntimeException(fileName + " is not a link emissions file. Aborting...");
+			}
+			double timeBinSize = in.readDouble();
+			int numberOfTimeBins = in.readInt();
+			LinkEmissionsAggregator aggregator = new LinkEmissionsAggregator(numberOfTimeBins, linkIndex, timeBinSize);
+			int numberOfPollutants = in.readInt();
+			List<String> pollutants = new ArrayList<>();
+			for (int i = 0; i < numberOfPollutants; i++) {
+				pollutants.add(in.readUTF());
+			}
+			if (!pollutants.equals(aggregator.pollutants)) {
+				throw new RuntimeException("Pollutants " + pollutants + " in " + fileName + " do not match " + aggregator.pollutants + ". Aborting...");
+			}
+			int linksWithValues = in.readInt();
+			for (int i = 0; i < linksWithValues; i++) {
+				int link = linkIndex.getIndex(Id.createLinkId(in.readUTF()));
+				double[] linkValues = new double[numberOfTimeBins * numberOfPollutants];
+				for (int j = 0; j < linkValues.length; j++) {
+					linkValues[j] = in.readDouble();
+				}
+				if (link >= 0) {
+					aggregator.values[link] = linkValues;
+				}
+			}
+			return aggregator;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	static InputStream createInputStream(String fileName) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(fileName), 1 << 16);
+		if (fileName.endsWith(".gz")) {
+			in = new GZIPInputStream(in, 1 << 16);
+		}
+		return in;
+	}
+
+	static OutputStream createOutputStream(String fileName) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16);
+		if (fileName.endsWith(".gz")) {
+			out = new GZIPOutputStream(out, 1 << 16);
+		}
+		return out;
+	}
+
+	private static boolean isZero(double[] array, int from, int length) {
+		for (int i = from; i < from + length; i++) {
+			if (array[i] != 0.) return false;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,91 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+
+/**
+ * Dense integer index (0 ... size-1) of the links of a network, in the iteration order of the network, so that per-link values can be
+ * kept in primitive arrays.
+ *
+ * @author agent
+ */
+public final class NetworkLinkIndex {
+
+	private final Map<Id<Link>, Integer> indices;
+	private final Link[] links;
+
+	public NetworkLinkIndex(Network network) {
+		this(network.getLinks().values());
+	}
+
+	private NetworkLinkIndex(Collection<? extends Link> links) {
+		this.indices = new HashMap<>(2 * links.size());
+		this.links = new Link[links.size()];
+		int index = 0;
+		for (Link link : links) {
+			this.indices.put(link.getId(), index);
+			this.links[index] = link;
+			index++;
+		}
+	}
+
+	/**
+	 * @return an index of the links of both networks: the links of the first network, then the links which are only part of the second
+	 */
+	public static NetworkLinkIndex union(Network first, Network second) {
+		List<Link> links = new ArrayList<>(first.getLinks().values());
+		for (Link link : second.getLinks().values()) {
+			if (!first.getLinks().containsKey(link.getId())) {
+				links.add(link);
+			}
+		}
+		return new NetworkLinkIndex(links);
+	}
+
+	/**
+	 * @return the index of the link, or -1 if the link is not part of the network
+	 */
+	public int getIndex(Id<Link> linkId) {
+		Integer index = this.indices.get(linkId);
+		return index == null ? -1 : index;
+	}
+
+	public Link getLink(int index) {
+		return this.links[index];
+	}
+
+	public Id<Link> getLinkId(int index) {
+		return this.links[index].getId();
+	}
+
+	public int size() {
+		return this.links.length;
+	}
+
+}
@@ -0,0 +1,142 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import javax.inject.Inject;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.contrib.emissions.EmissionModule;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.controler.listener.IterationStartsListener;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.handler.BasicEventHandler;
+
+/**
+ * Computes the emissions from the live event stream of selected iterations, instead of writing the events and replaying them with
+ * {@link RunOfflineAirPollutionAnalysis}.  The scenario has to be prepared with {@link BerlinEmissionsSetup#prepareScenario(Scenario)}.
+ * <p>
+ * The {@link EmissionModule} lives in its own events manager; in the selected iterations, all events of the mobsim are passed on to
+ * it.  Per iteration, the emission events and the link emission tables are written into the iteration directory.
+ *
+ * @author agent
+ */
+public final class OnlineEmissionsModule extends AbstractModule {
+
+	private final int interval;
+	private final boolean lastIteration;
+
+	/**
+	 * @param interval computes the emissions in every n-th iteration, 0 for none
+	 * @param lastIteration computes the emissions in the last iteration
+	 */
+	public OnlineEmissionsModule(int interval, boolean lastIteration) {
+		this.interval = interval;
+		this.lastIteration = lastIteration;
+	}
+
+	@Override
+	public void install() {
+		OnlineEmissionsHandler handler = new OnlineEmissionsHandler(interval, lastIteration);
+		addEventHandlerBinding().toInstance(handler);
+		addControlerListenerBinding().toInstance(handler);
+	}
+
+	static final class OnlineEmissionsHandler implements BasicEventHandler, IterationStartsListener, IterationEndsListener {
+		private static final Logger log = Logger.getLogger(OnlineEmissionsHandler.class);
+
+		private static final double TIME_BIN_SIZE = 3600.;
+
+		@Inject private Scenario scenario;
+		@Inject private OutputDirectoryHierarchy controlerIO;
+
+		private final int interval;
+		private final boolean lastIteration;
+
+		private EventsManager inputEventsManager;
+		private EventsManager emissionEventsManager;
+		private LinkEmissionsAggregator linkEmissionsAggregator;
+		private AsyncEventWriterXML emissionEventWriter;
+		private boolean active = false;
+
+		OnlineEmissionsHandler(int interval, boolean lastIteration) {
+			this.interval = interval;
+			this.lastIteration = lastIteration;
+		}
+
+		boolean isActive(int iteration) {
+			if (interval > 0 && iteration % interval == 0) return true;
+			return lastIteration && iteration == scenario.getConfig().controler().getLastIteration();
+		}
+
+		@Override
+		public void notifyIterationStarts(IterationStartsEvent event) {
+			active = isActive(event.getIteration());
+			if (!active) return;
+
+			if (inputEventsManager == null) {
+				inputEventsManager = EventsUtils.createEventsManager();
+				EmissionModule emissionModule = RunOfflineAirPollutionAnalysis.createEmissionModule(scenario.getConfig(), scenario, inputEventsManager);
+				emissionEventsManager = emissionModule.getEmissionEventsManager();
+				linkEmissionsAggregator = new LinkEmissionsAggregator(scenario.getNetwork(), TIME_BIN_SIZE, scenario.getConfig().qsim().getEndTime());
+				emissionEventsManager.addHandler(linkEmissionsAggregator);
+			}
+			inputEventsManager.resetHandlers(event.getIteration());
+			if (emissionEventsManager != inputEventsManager) {
+				emissionEventsManager.resetHandlers(event.getIteration());
+			}
+
+			emissionEventWriter = new AsyncEventWriterXML(controlerIO.getIterationFilename(event.getIteration(), "emission.events.xml.gz"));
+			emissionEventsManager.addHandler(emissionEventWriter);
+			log.info("Computing the emissions of iteration " + event.getIteration() + ".");
+		}
+
+		@Override
+		public void handleEvent(Event event) {
+			if (active) {
+				inputEventsManager.processEvent(event);
+			}
+		}
+
+		@Override
+		public void reset(int iteration) {
+		}
+
+		@Override
+		public void notifyIterationEnds(IterationEndsEvent event) {
+			if (!active) return;
+			active = false;
+
+			emissionEventWriter.closeFile();
+			emissionEventsManager.removeHandler(emissionEventWriter);
+			emissionEventWriter = null;
+
+			linkEmissionsAggregator.writeCsv(controlerIO.getIterationFilename(event.getIteration(), "emissions.links.csv.gz"));
+			linkEmissionsAggregator.writeBinary(controlerIO.getIterationFilename(event.getIteration(), "emissions.links.bin"));
+		}
+	}
+
+}
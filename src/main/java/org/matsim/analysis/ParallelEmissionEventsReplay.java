@@ -0,0 +1,312 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.contrib.emissions.EmissionModule;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.Config;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.vehicles.Vehicle;
+
+/**
+ * Replays an event stream through several {@link EmissionModule}s in parallel.
+ * <p>
+ * Warm and cold emissions only depend on per-vehicle state, so the input events are partitioned by vehicle id and each partition
+ * is handed to its own worker (own {@link EventsManager}, own {@link EmissionModule}).  Events without a vehicle go to the first worker.
+ * Every input event gets a sequence number; everything a worker's emission events manager sees while processing an input event is
+ * tagged with that number.  The output of all workers is then merged by sequence number, i.e. the output events manager sees exactly
+ * the same events in exactly the same order as in the single-threaded replay.
+ * <p>
+ * Usage: add this handler to the events manager the events are read into, read the events, then call {@link #finish()}.
+ *
+ * @author agent
+ */
+public final class ParallelEmissionEventsReplay implements BasicEventHandler {
+	private static final Logger log = Logger.getLogger(ParallelEmissionEventsReplay.class);
+
+	private static final int BATCH_SIZE = 10000;
+	private static final int QUEUE_CAPACITY = 16;
+	private static final long END = Long.MAX_VALUE;
+
+	private final EventsManager outputEventsManager;
+	private final Worker[] workers;
+	private final Thread[] workerThreads;
+	private final Thread mergeThread;
+
+	private long sequenceNumber = 0;
+	private boolean finished = false;
+	private volatile Throwable mergeException = null;
+
+	public ParallelEmissionEventsReplay(Config config, Scenario scenario, int numberOfWorkers, EventsManager outputEventsManager) {
+		if (numberOfWorkers < 1) {
+			throw new IllegalArgumentException("Number of workers must be at least 1. Aborting...");
+		}
+		this.outputEventsManager = outputEventsManager;
+		this.workers = new Worker[numberOfWorkers];
+		this.workerThreads = new Thread[numberOfWorkers];
+
+		// the emission modules are created one after the other; only the replay itself runs in parallel
+		for (int i = 0; i < numberOfWorkers; i++) {
+			this.workers[i] = new Worker(config, scenario);
+			this.workerThreads[i] = new Thread(this.workers[i], "emissions-replay-" + i);
+			this.workerThreads[i].setDaemon(true);
+		}
+		this.mergeThread = new Thread(this::merge, "emissions-replay-merge");
+		this.mergeThread.setDaemon(true);
+
+		for (Thread thread : this.workerThreads) {
+			thread.start();
+		}
+		this.mergeThread.start();
+		log.info("Replaying events with " + numberOfWorkers + " emission workers.");
+	}
+
+	@Override
+	public void handleEvent(Event event) {
+		this.workers[getPartition(event)].pending.add(this.sequenceNumber, event);
+		this.sequenceNumber++;
+		if (this.sequenceNumber % BATCH_SIZE == 0) {
+			flush(false);
+		}
+	}
+
+	@Override
+	public void reset(int iteration) {
+	}
+
+	/**
+	 * Hands over the remaining events, waits until all emission events are passed to the output events manager and rethrows the first
+	 * exception of any worker.
+	 */
+	public void finish() {
+		if (this.finished) {
+			return;
+		}
+		flush(true);
+		this.finished = true;
+		try {
+			for (Thread thread : this.workerThreads) {
+				thread.join();
+			}
+			this.mergeThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		for (Worker worker : this.workers) {
+			if (worker.exception != null) {
+				throw new RuntimeException("Emission worker failed. Aborting...", worker.exception);
+			}
+		}
+		if (this.mergeException != null) {
+			throw new RuntimeException("Merging the emission events failed. Aborting...", this.mergeException);
+		}
+		log.info("Replayed " + this.sequenceNumber + " events.");
+	}
+
+	private int getPartition(Event event) {
+		Id<Vehicle> vehicleId = getVehicleId(event);
+		if (vehicleId == null) {
+			return 0;
+		}
+		return Math.floorMod(vehicleId.hashCode(), this.workers.length);
+	}
+
+	/**
+	 * @return the vehicle of the vehicle related events the emission handlers listen to, null for all other events
+	 */
+	static Id<Vehicle> getVehicleId(Event event) {
+		Id<Vehicle> vehicleId = null;
+		if (event instanceof LinkEnterEvent) {
+			vehicleId = ((LinkEnterEvent) event).getVehicleId();
+		} else if (event instanceof LinkLeaveEvent) {
+			vehicleId = ((LinkLeaveEvent) event).getVehicleId();
+		} else if (event instanceof VehicleEntersTrafficEvent) {
+			vehicleId = ((VehicleEntersTrafficEvent) event).getVehicleId();
+		} else if (event instanceof VehicleLeavesTrafficEvent) {
+			vehicleId = ((VehicleLeavesTrafficEvent) event).getVehicleId();
+		} else if (event instanceof PersonEntersVehicleEvent) {
+			vehicleId = ((PersonEntersVehicleEvent) event).getVehicleId();
+		} else if (event instanceof PersonLeavesVehicleEvent) {
+			vehicleId = ((PersonLeavesVehicleEvent) event).getVehicleId();
+		}
+		return vehicleId;
+	}
+
+	private void flush(boolean last) {
+		// every worker gets a batch, even an empty one, so that the merge can move on
+		long watermark = last ? END : this.sequenceNumber - 1;
+		for (Worker worker : this.workers) {
+			Batch batch = worker.pending;
+			batch.watermark = watermark;
+			worker.pending = new Batch(BATCH_SIZE / this.workers.length + 1);
+			put(worker.input, batch);
+		}
+	}
+
+	private void merge() {
+		Batch[] heads = new Batch[this.workers.length];
+		int[] cursors = new int[this.workers.length];
+		for (int i = 0; i < heads.length; i++) {
+			heads[i] = new Batch(0);
+			heads[i].watermark = -1;
+		}
+
+		while (true) {
+			// find the smallest key; an exhausted batch stands for "nothing up to its watermark is missing"
+			int best = -1;
+			long bestKey = 0;
+			boolean bestIsEvent = false;
+			for (int i = 0; i < heads.length; i++) {
+				boolean isEvent = cursors[i] < heads[i].size;
+				long key = isEvent ? heads[i].sequenceNumbers[cursors[i]] : heads[i].watermark;
+				if (best < 0 || key < bestKey || (key == bestKey && isEvent && !bestIsEvent)) {
+					best = i;
+					bestKey = key;
+					bestIsEvent = isEvent;
+				}
+			}
+
+			if (bestIsEvent) {
+				Event event = heads[best].events[cursors[best]];
+				heads[best].events[cursors[best]] = null;
+				cursors[best]++;
+				if (this.mergeException == null) {
+					try {
+						this.outputEventsManager.processEvent(event);
+					} catch (Throwable e) {
+						// keep on draining, otherwise the workers block
+						this.mergeException = e;
+					}
+				}
+			} else if (bestKey == END) {
+				return;
+			} else {
+				heads[best] = take(this.workers[best].output);
+				cursors[best] = 0;
+			}
+		}
+	}
+
+	private static void put(BlockingQueue<Batch> queue, Batch batch) {
+		try {
+			queue.put(batch);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static Batch take(BlockingQueue<Batch> queue) {
+		try {
+			return queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static final class Batch {
+		long[] sequenceNumbers;
+		Event[] events;
+		int size = 0;
+		long watermark;
+
+		Batch(int initialCapacity) {
+			this.sequenceNumbers = new long[Math.max(initialCapacity, 1)];
+			this.events = new Event[Math.max(initialCapacity, 1)];
+		}
+
+		void add(long sequenceNumber, Event event) {
+			if (this.size == this.events.length) {
+				this.sequenceNumbers = Arrays.copyOf(this.sequenceNumbers, 2 * this.size);
+				this.events = Arrays.copyOf(this.events, 2 * this.size);
+			}
+			this.sequenceNumbers[this.size] = sequenceNumber;
+			this.events[this.size] = event;
+			this.size++;
+		}
+	}
+
+	private final class Worker implements Runnable, BasicEventHandler {
+		final BlockingQueue<Batch> input = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		final BlockingQueue<Batch> output = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		final EventsManager eventsManager = EventsUtils.createEventsManager();
+		Batch pending = new Batch(BATCH_SIZE / workers.length + 1);
+		volatile Throwable exception = null;
+
+		private Batch current = new Batch(16);
+		private long currentSequenceNumber;
+
+		Worker(Config config, Scenario scenario) {
+			EmissionModule emissionModule = RunOfflineAirPollutionAnalysis.createEmissionModule(config, scenario, this.eventsManager);
+			emissionModule.getEmissionEventsManager().addHandler(this);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Batch batch = take(this.input);
+				for (int i = 0; i < batch.size; i++) {
+					if (this.exception == null) {
+						this.currentSequenceNumber = batch.sequenceNumbers[i];
+						try {
+							this.eventsManager.processEvent(batch.events[i]);
+						} catch (Throwable e) {
+							// keep on consuming, otherwise the reader and the merge block
+							this.exception = e;
+						}
+					}
+				}
+				this.current.watermark = batch.watermark;
+				put(this.output, this.current);
+				this.current = new Batch(2 * batch.size + 16);
+				if (batch.watermark == END) {
+					return;
+				}
+			}
+		}
+
+		@Override
+		public void handleEvent(Event event) {
+			this.current.add(this.currentSequenceNumber, event);
+		}
+
+		@Override
+		public void reset(int iteration) {
+		}
+	}
+
+}
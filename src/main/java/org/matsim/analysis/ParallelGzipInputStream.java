@@ -0,0 +1,498 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Decompresses a gzip file ahead of the reader, on other threads.
+ * <p>
+ * Without an index, the file is inflated sequentially on one background thread.  This is always the case for a single-member file,
+ * e.g. the output_events.xml.gz of the core's event writer: the reader then only gains the prefetching, i.e. the inflating no longer
+ * runs on the parser's thread, but not more than one core.
+ * <p>
+ * Files with several members, e.g. written by {@link AsyncEventWriterXML}, can be inflated in parallel if there is an index with the
+ * offsets of their members next to them ({@value #INDEX_SUFFIX}): groups of members are inflated by the worker threads and handed to
+ * the reader in file order.  The index is only written on request ({@code writeIndex}), by a sequential read of the file, so that
+ * reading the output of a run does not add files to its directory.
+ * <p>
+ * The decompressed data is passed on in a fixed number of reused buffers, i.e. the memory is bounded and the decompression waits
+ * if the reader falls behind.
+ *
+ * @author agent
+ */
+public final class ParallelGzipInputStream extends InputStream {
+	private static final Logger log = Logger.getLogger(ParallelGzipInputStream.class);
+
+	static final String INDEX_SUFFIX = ".members";
+	private static final int INDEX_MAGIC = 0x475A4931; // "GZI1"
+	private static final int BLOCK_SIZE = 1 << 20;
+	private static final int READ_BUFFER_SIZE = 1 << 16;
+	private static final long GROUP_SIZE = 1 << 18;
+	private static final long MAX_MEMBER_SIZE = 1 << 26;
+	private static final Block END = new Block(0);
+
+	private final File file;
+	private final int numberOfThreads;
+	private final boolean writeIndex;
+	private final ExecutorService workers;
+	private final BlockingQueue<Block> pool;
+	private final BlockingQueue<Future<Block>> blocks = new LinkedBlockingQueue<>();
+	private final Thread scheduler;
+
+	private Block current = null;
+	private int position = 0;
+	private boolean end = false;
+	private final byte[] singleByte = new byte[1];
+
+	public ParallelGzipInputStream(String fileName) {
+		this(fileName, getDefaultNumberOfThreads());
+	}
+
+	/**
+	 * @param numberOfThreads threads inflating the members of files with several members
+	 */
+	public ParallelGzipInputStream(String fileName, int numberOfThreads) {
+		this(fileName, numberOfThreads, false);
+	}
+
+	/**
+	 * @param numberOfThreads threads inflating the members of files with several members
+	 * @param writeIndex whether to write the index of the members if the file is read sequentially and has several members
+	 */
+	public ParallelGzipInputStream(String fileName, int numberOfThreads, boolean writeIndex) {
+		this.file = new File(fileName);
+		this.numberOfThreads = Math.max(1, numberOfThreads);
+		this.writeIndex = writeIndex;
+		this.workers = Executors.newFixedThreadPool(this.numberOfThreads, runnable -> {
+			Thread thread = new Thread(runnable, "gzip-inflater");
+			thread.setDaemon(true);
+			return thread;
+		});
+		int numberOfBlocks = 2 * this.numberOfThreads + 2;
+		this.pool = new ArrayBlockingQueue<>(numberOfBlocks);
+		for (int i = 0; i < numberOfBlocks; i++) {
+			this.pool.add(new Block(BLOCK_SIZE));
+		}
+		this.scheduler = new Thread(this::schedule, "gzip-prefetch");
+		this.scheduler.setDaemon(true);
+		this.scheduler.start();
+	}
+
+	static int getDefaultNumberOfThreads() {
+		return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+	}
+
+	@Override
+	public int read() throws IOException {
+		int n = read(this.singleByte, 0, 1);
+		return n < 0 ? -1 : this.singleByte[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) return 0;
+		while (this.current == null || this.position == this.current.size) {
+			if (this.end) return -1;
+			nextBlock();
+		}
+		int n = Math.min(length, this.current.size - this.position);
+		System.arraycopy(this.current.data, this.position, buffer, offset, n);
+		this.position += n;
+		return n;
+	}
+
+	@Override
+	public void close() {
+		this.end = true;
+		this.scheduler.interrupt();
+		this.workers.shutdownNow();
+	}
+
+	private void nextBlock() throws IOException {
+		if (this.current != null) {
+			this.current.size = 0;
+			this.pool.add(this.current);
+			this.current = null;
+		}
+		Block block;
+		try {
+			block = this.blocks.take().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			close();
+			throw new IOException("Inflating " + this.file + " failed.", e.getCause());
+		}
+		if (block == END) {
+			this.end = true;
+			this.workers.shutdown();
+			return;
+		}
+		this.current = block;
+		this.position = 0;
+	}
+
+	private void schedule() {
+		try {
+			long[] members = readIndex();
+			if (members != null) {
+				inflateInParallel(members);
+			} else {
+				inflateSequentially();
+			}
+			this.blocks.add(CompletableFuture.completedFuture(END));
+		} catch (InterruptedException e) {
+			// closed by the reader
+		} catch (Throwable e) {
+			CompletableFuture<Block> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			this.blocks.add(failed);
+		}
+	}
+
+	private void inflateInParallel(long[] members) throws IOException, InterruptedException {
+		List<Future<Block>> submitted = new ArrayList<>();
+		try (FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+			int first = 0;
+			while (first < members.length - 1) {
+				int last = first + 1;
+				while (last < members.length - 1 && members[last] - members[first] < GROUP_SIZE) {
+					last++;
+				}
+				long start = members[first];
+				long end = members[last];
+				Block block = this.pool.take();
+				Future<Block> future = this.workers.submit(() -> inflateMembers(channel, start, end, block));
+				submitted.add(future);
+				this.blocks.add(future);
+				first = last;
+			}
+			// the reads must be done before the channel is closed
+			for (Future<Block> future : submitted) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					// passed on to the reader
+				}
+			}
+		}
+	}
+
+	private static Block inflateMembers(FileChannel channel, long start, long end, Block block) throws IOException, DataFormatException {
+		int length = (int) (end - start);
+		if (block.input.length < length) {
+			block.input = new byte[length];
+		}
+		ByteBuffer input = ByteBuffer.wrap(block.input, 0, length);
+		while (input.hasRemaining()) {
+			if (channel.read(input, start + input.position()) < 0) {
+				throw new EOFException("Unexpected end of the gzip file.");
+			}
+		}
+		Inflater inflater = new Inflater(true);
+		CRC32 crc = new CRC32();
+		try {
+			int position = 0;
+			while (position < length) {
+				position = skipHeader(block.input, position, length);
+				inflater.reset();
+				crc.reset();
+				inflater.setInput(block.input, position, length - position);
+				long memberSize = 0;
+				while (!inflater.finished()) {
+					if (block.size == block.data.length) {
+						block.data = Arrays.copyOf(block.data, 2 * block.data.length);
+					}
+					int n = inflater.inflate(block.data, block.size, block.data.length - block.size);
+					if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						throw new EOFException("Unexpected end of a gzip member.");
+					}
+					crc.update(block.data, block.size, n);
+					block.size += n;
+					memberSize += n;
+				}
+				position = length - inflater.getRemaining();
+				if (position + 8 > length) {
+					throw new EOFException("Unexpected end of a gzip member.");
+				}
+				checkTrailer(readIntLE(block.input, position), readIntLE(block.input, position + 4), crc, memberSize);
+				position += 8;
+			}
+		} finally {
+			inflater.end();
+		}
+		return block;
+	}
+
+	private void inflateSequentially() throws IOException, DataFormatException, InterruptedException {
+		List<Long> members = new ArrayList<>();
+		Inflater inflater = new Inflater(true);
+		CRC32 crc = new CRC32();
+		try (SequentialInput in = new SequentialInput(new FileInputStream(this.file))) {
+			Block block = this.pool.take();
+			while (in.ensure(1)) {
+				members.add(in.getFileOffset());
+				in.skipHeader();
+				inflater.reset();
+				crc.reset();
+				long memberSize = 0;
+				while (!inflater.finished()) {
+					if (inflater.needsInput()) {
+						in.setInput(inflater);
+					}
+					if (block.size == block.data.length) {
+						this.blocks.add(CompletableFuture.completedFuture(block));
+						block = this.pool.take();
+					}
+					int n = inflater.inflate(block.data, block.size, block.data.length - block.size);
+					if (n == 0 && inflater.needsDictionary()) {
+						throw new ZipException("Gzip member with a preset dictionary.");
+					}
+					crc.update(block.data, block.size, n);
+					block.size += n;
+					memberSize += n;
+				}
+				in.giveBack(inflater.getRemaining());
+				checkTrailer(in.readIntLE(), in.readIntLE(), crc, memberSize);
+			}
+			if (block.size > 0) {
+				this.blocks.add(CompletableFuture.completedFuture(block));
+			} else {
+				this.pool.add(block);
+			}
+			members.add(in.getFileOffset());
+		} finally {
+			inflater.end();
+		}
+		if (this.writeIndex) {
+			writeIndex(members);
+		}
+	}
+
+	private static void checkTrailer(int crc, int size, CRC32 expectedCrc, long expectedSize) throws ZipException {
+		if (crc != (int) expectedCrc.getValue() || size != (int) expectedSize) {
+			throw new ZipException("Corrupt gzip member (wrong checksum or size).");
+		}
+	}
+
+	/**
+	 * @return the position of the deflate data after the gzip header
+	 */
+	private static int skipHeader(byte[] b, int position, int length) throws IOException {
+		if (position + 10 > length) throw new EOFException("Unexpected end of a gzip header.");
+		if ((b[position] & 0xff) != 0x1f || (b[position + 1] & 0xff) != 0x8b || b[position + 2] != 8) {
+			throw new ZipException("Not in gzip format.");
+		}
+		int flags = b[position + 3] & 0xff;
+		position += 10;
+		if ((flags & 4) != 0) {
+			if (position + 2 > length) throw new EOFException("Unexpected end of a gzip header.");
+			position += 2 + ((b[position] & 0xff) | (b[position + 1] & 0xff) << 8);
+		}
+		for (int flag : new int[] { 8, 16 }) {
+			if ((flags & flag) != 0) {
+				while (position < length && b[position] != 0) position++;
+				position++;
+			}
+		}
+		if ((flags & 2) != 0) {
+			position += 2;
+		}
+		if (position > length) throw new EOFException("Unexpected end of a gzip header.");
+		return position;
+	}
+
+	private static int readIntLE(byte[] b, int position) {
+		return (b[position] & 0xff) | (b[position + 1] & 0xff) << 8 | (b[position + 2] & 0xff) << 16 | (b[position + 3] & 0xff) << 24;
+	}
+
+	/**
+	 * @return the offsets of the members and the file length, null if there is no (valid) index or it is not worth reading in parallel
+	 */
+	private long[] readIndex() {
+		File indexFile = new File(this.file.getPath() + INDEX_SUFFIX);
+		if (!indexFile.exists()) return null;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(indexFile))) {
+			if (in.readInt() != INDEX_MAGIC || in.readLong() != this.file.length() || in.readLong() != this.file.lastModified()) {
+				log.warn(indexFile + " does not match " + this.file + ". Ignoring it.");
+				return null;
+			}
+			long[] members = new long[in.readInt()];
+			for (int i = 0; i < members.length; i++) {
+				members[i] = in.readLong();
+			}
+			for (int i = 1; i < members.length; i++) {
+				if (members[i] - members[i - 1] > MAX_MEMBER_SIZE) return null;
+			}
+			return members.length > 2 ? members : null;
+		} catch (IOException e) {
+			log.warn("Could not read " + indexFile + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void writeIndex(List<Long> members) {
+		if (members.size() <= 2) {
+			// a single member, nothing to parallelize
+			return;
+		}
+		File indexFile = new File(this.file.getPath() + INDEX_SUFFIX);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+			out.writeInt(INDEX_MAGIC);
+			out.writeLong(this.file.length());
+			out.writeLong(this.file.lastModified());
+			out.writeInt(members.size());
+			for (long member : members) {
+				out.writeLong(member);
+			}
+		} catch (IOException e) {
+			log.warn("Could not write " + indexFile + ": " + e.getMessage());
+			return;
+		}
+		log.info("Gzip member index written to " + indexFile + ".");
+	}
+
+	private static final class Block {
+		byte[] data;
+		byte[] input = new byte[0];
+		int size = 0;
+
+		Block(int capacity) {
+			this.data = new byte[capacity];
+		}
+	}
+
+	/**
+	 * Buffered reading of the compressed file which keeps track of the file offset.
+	 */
+	private static final class SequentialInput implements AutoCloseable {
+		private final InputStream in;
+		private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+		private int position = 0;
+		private int length = 0;
+		private long bufferOffset = 0;
+
+		SequentialInput(InputStream in) {
+			this.in = in;
+		}
+
+		long getFileOffset() {
+			return this.bufferOffset + this.position;
+		}
+
+		/**
+		 * @return false if the file ends before n more bytes
+		 */
+		boolean ensure(int n) throws IOException {
+			while (this.length - this.position < n) {
+				System.arraycopy(this.buffer, this.position, this.buffer, 0, this.length - this.position);
+				this.bufferOffset += this.position;
+				this.length -= this.position;
+				this.position = 0;
+				int read = this.in.read(this.buffer, this.length, this.buffer.length - this.length);
+				if (read < 0) return false;
+				this.length += read;
+			}
+			return true;
+		}
+
+		int readByte() throws IOException {
+			if (!ensure(1)) throw new EOFException("Unexpected end of the gzip file.");
+			return this.buffer[this.position++] & 0xff;
+		}
+
+		int readIntLE() throws IOException {
+			return readByte() | readByte() << 8 | readByte() << 16 | readByte() << 24;
+		}
+
+		void skipHeader() throws IOException {
+			if (readByte() != 0x1f || readByte() != 0x8b || readByte() != 8) {
+				throw new ZipException("Not in gzip format.");
+			}
+			int flags = readByte();
+			for (int i = 0; i < 6; i++) readByte();
+			if ((flags & 4) != 0) {
+				int extraLength = readByte() | readByte() << 8;
+				for (int i = 0; i < extraLength; i++) readByte();
+			}
+			for (int flag : new int[] { 8, 16 }) {
+				if ((flags & flag) != 0) {
+					while (readByte() != 0) {
+					}
+				}
+			}
+			if ((flags & 2) != 0) {
+				readByte();
+				readByte();
+			}
+		}
+
+		/**
+		 * Hands all buffered bytes to the inflater; the buffer is only refilled once the inflater needs more input.
+		 */
+		void setInput(Inflater inflater) throws IOException {
+			if (this.position == this.length && !ensure(1)) {
+				throw new EOFException("Unexpected end of the gzip file.");
+			}
+			inflater.setInput(this.buffer, this.position, this.length - this.position);
+			this.position = this.length;
+		}
+
+		void giveBack(int remaining) {
+			this.position -= remaining;
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.in.close();
+		}
+	}
+
+}
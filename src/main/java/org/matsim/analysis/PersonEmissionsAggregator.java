@@ -0,0 +1,339 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.PersonArrivalEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.events.handler.ActivityEndEventHandler;
+import org.matsim.api.core.v01.events.handler.PersonArrivalEventHandler;
+import org.matsim.api.core.v01.events.handler.PersonDepartureEventHandler;
+import org.matsim.api.core.v01.events.handler.PersonEntersVehicleEventHandler;
+import org.matsim.api.core.v01.events.handler.PersonLeavesVehicleEventHandler;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.contrib.emissions.events.ColdEmissionEvent;
+import org.matsim.contrib.emissions.events.ColdEmissionEventHandler;
+import org.matsim.contrib.emissions.events.WarmEmissionEvent;
+import org.matsim.contrib.emissions.events.WarmEmissionEventHandler;
+import org.matsim.contrib.emissions.types.ColdPollutant;
+import org.matsim.contrib.emissions.types.WarmPollutant;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.vehicles.Vehicle;
+
+/**
+ * Sums up warm and cold emissions per person and per trip while the events stream by.  It has to see the input events and the
+ * emission events in the order of the replay, e.g. as handler of the output events manager of {@link RunOfflineAirPollutionAnalysis}.
+ * <p>
+ * The emissions of a vehicle are attributed to its driver, i.e. the first person entering the vehicle, until the driver leaves it
+ * again; passengers are ignored.  A trip is everything between two activities which are not stage activities ("... interaction").
+ * Only persons and trips with emissions get a row; transit drivers show up as persons of their own.  Apart from the vehicle drivers
+ * of the moment, the state per person and per trip consists of primitive arrays, the events themselves are not kept.
+ *
+ * @author agent
+ */
+public final class PersonEmissionsAggregator implements WarmEmissionEventHandler, ColdEmissionEventHandler, ActivityEndEventHandler,
+		PersonDepartureEventHandler, PersonArrivalEventHandler, PersonEntersVehicleEventHandler, PersonLeavesVehicleEventHandler {
+	private static final Logger log = Logger.getLogger(PersonEmissionsAggregator.class);
+
+	private final List<String> pollutants;
+	private final int numberOfPollutants;
+	private final int[] warmPollutantIndices;
+	private final int[] coldPollutantIndices;
+
+	private final Map<Id<Vehicle>, Integer> drivers = new HashMap<>();
+	private final Map<Id<Person>, Integer> personIndices = new HashMap<>();
+	private final List<Id<Person>> personIds = new ArrayList<>();
+
+	// per person
+	private double[] personValues = new double[0];
+	private int[] numberOfTrips = new int[0];
+	private int[] currentTrip = new int[0];
+	private double[] tripStartTime = new double[0];
+	private String[] legMode = new String[0];
+
+	// per trip with emissions
+	private int trips = 0;
+	private int[] tripPerson = new int[0];
+	private int[] tripNumber = new int[0];
+	private double[] tripDepartureTime = new double[0];
+	private double[] tripArrivalTime = new double[0];
+	private String[] tripMode = new String[0];
+	private double[] tripValues = new double[0];
+
+	private int missingDriverWarnings = 0;
+
+	public PersonEmissionsAggregator() {
+		Map<String, Integer> pollutantIndices = new LinkedHashMap<>();
+		this.warmPollutantIndices = new int[WarmPollutant.values().length];
+		for (WarmPollutant pollutant : WarmPollutant.values()) {
+			this.warmPollutantIndices[pollutant.ordinal()] = getOrCreateIndex(pollutantIndices, pollutant.name());
+		}
+		this.coldPollutantIndices = new int[ColdPollutant.values().length];
+		for (ColdPollutant pollutant : ColdPollutant.values()) {
+			this.coldPollutantIndices[pollutant.ordinal()] = getOrCreateIndex(pollutantIndices, pollutant.name());
+		}
+		this.pollutants = Collections.unmodifiableList(new ArrayList<>(pollutantIndices.keySet()));
+		this.numberOfPollutants = this.pollutants.size();
+	}
+
+	private static int getOrCreateIndex(Map<String, Integer> indices, String name) {
+		Integer index = indices.get(name);
+		if (index == null) {
+			index = indices.size();
+			indices.put(name, index);
+		}
+		return index;
+	}
+
+	@Override
+	public void handleEvent(ActivityEndEvent event) {
+		if (event.getActType().endsWith("interaction")) return;
+		int person = getOrCreatePersonIndex(event.getPersonId());
+		this.numberOfTrips[person]++;
+		this.currentTrip[person] = -1;
+		this.tripStartTime[person] = event.getTime();
+	}
+
+	@Override
+	public void handleEvent(PersonDepartureEvent event) {
+		int person = getOrCreatePersonIndex(event.getPersonId());
+		this.legMode[person] = event.getLegMode();
+	}
+
+	@Override
+	public void handleEvent(PersonArrivalEvent event) {
+		Integer person = this.personIndices.get(event.getPersonId());
+		if (person == null) return;
+		int trip = this.currentTrip[person];
+		if (trip >= 0) {
+			this.tripArrivalTime[trip] = event.getTime();
+		}
+	}
+
+	@Override
+	public void handleEvent(PersonEntersVehicleEvent event) {
+		if (!this.drivers.containsKey(event.getVehicleId())) {
+			this.drivers.put(event.getVehicleId(), getOrCreatePersonIndex(event.getPersonId()));
+		}
+	}
+
+	@Override
+	public void handleEvent(PersonLeavesVehicleEvent event) {
+		Integer driver = this.drivers.get(event.getVehicleId());
+		if (driver != null && this.personIds.get(driver).equals(event.getPersonId())) {
+			this.drivers.remove(event.getVehicleId());
+		}
+	}
+
+	@Override
+	public void handleEvent(WarmEmissionEvent event) {
+		int person = getDriver(event.getVehicleId());
+		if (person < 0) return;
+		int trip = getOrCreateTrip(person);
+		for (Map.Entry<WarmPollutant, Double> entry : event.getWarmEmissions().entrySet()) {
+			add(person, trip, this.warmPollutantIndices[entry.getKey().ordinal()], entry.getValue());
+		}
+	}
+
+	@Override
+	public void handleEvent(ColdEmissionEvent event) {
+		int person = getDriver(event.getVehicleId());
+		if (person < 0) return;
+		int trip = getOrCreateTrip(person);
+		for (Map.Entry<ColdPollutant, Double> entry : event.getColdEmissions().entrySet()) {
+			add(person, trip, this.coldPollutantIndices[entry.getKey().ordinal()], entry.getValue());
+		}
+	}
+
+	@Override
+	public void reset(int iteration) {
+		this.drivers.clear();
+		this.personIndices.clear();
+		this.personIds.clear();
+		this.trips = 0;
+	}
+
+	private void add(int person, int trip, int pollutant, double value) {
+		this.personValues[person * this.numberOfPollutants + pollutant] += value;
+		this.tripValues[trip * this.numberOfPollutants + pollutant] += value;
+	}
+
+	private int getDriver(Id<Vehicle> vehicleId) {
+		Integer driver = this.drivers.get(vehicleId);
+		if (driver == null) {
+			if (this.missingDriverWarnings < 5) {
+				log.warn("Emission event of vehicle " + vehicleId + " without a driver. Ignoring the event.");
+				this.missingDriverWarnings++;
+				if (this.missingDriverWarnings == 5) log.warn("Further warnings of this type are not printed out.");
+			}
+			return -1;
+		}
+		return driver;
+	}
+
+	private int getOrCreatePersonIndex(Id<Person> personId) {
+		Integer index = this.personIndices.get(personId);
+		if (index == null) {
+			index = this.personIds.size();
+			this.personIndices.put(personId, index);
+			this.personIds.add(personId);
+			if (index == this.numberOfTrips.length) {
+				int capacity = Math.max(1024, 2 * index);
+				this.personValues = Arrays.copyOf(this.personValues, capacity * this.numberOfPollutants);
+				this.numberOfTrips = Arrays.copyOf(this.numberOfTrips, capacity);
+				this.currentTrip = Arrays.copyOf(this.currentTrip, capacity);
+				this.tripStartTime = Arrays.copyOf(this.tripStartTime, capacity);
+				this.legMode = Arrays.copyOf(this.legMode, capacity);
+			}
+			// the arrays are reused after a reset
+			Arrays.fill(this.personValues, index * this.numberOfPollutants, (index + 1) * this.numberOfPollutants, 0.);
+			this.numberOfTrips[index] = 0;
+			this.currentTrip[index] = -1;
+			this.tripStartTime[index] = Double.NaN;
+			this.legMode[index] = null;
+		}
+		return index;
+	}
+
+	private int getOrCreateTrip(int person) {
+		int trip = this.currentTrip[person];
+		if (trip >= 0) return trip;
+
+		trip = this.trips++;
+		if (trip == this.tripPerson.length) {
+			int capacity = Math.max(1024, 2 * trip);
+			this.tripPerson = Arrays.copyOf(this.tripPerson, capacity);
+			this.tripNumber = Arrays.copyOf(this.tripNumber, capacity);
+			this.tripDepartureTime = Arrays.copyOf(this.tripDepartureTime, capacity);
+			this.tripArrivalTime = Arrays.copyOf(this.tripArrivalTime, capacity);
+			this.tripMode = Arrays.copyOf(this.tripMode, capacity);
+			this.tripValues = Arrays.copyOf(this.tripValues, capacity * this.numberOfPollutants);
+		}
+		Arrays.fill(this.tripValues, trip * this.numberOfPollutants, (trip + 1) * this.numberOfPollutants, 0.);
+		this.tripPerson[trip] = person;
+		this.tripNumber[trip] = this.numberOfTrips[person];
+		this.tripDepartureTime[trip] = this.tripStartTime[person];
+		this.tripArrivalTime[trip] = Double.NaN;
+		// the mode of the leg with the first emissions, i.e. car for park and ride
+		this.tripMode[trip] = this.legMode[person];
+		this.currentTrip[person] = trip;
+		return trip;
+	}
+
+	public List<String> getPollutants() {
+		return this.pollutants;
+	}
+
+	/**
+	 * @return the emissions of a person in g, 0 if there are none
+	 */
+	public double getPersonValue(Id<Person> personId, int pollutant) {
+		Integer person = this.personIndices.get(personId);
+		return person == null ? 0. : this.personValues[person * this.numberOfPollutants + pollutant];
+	}
+
+	public int getNumberOfTripsWithEmissions() {
+		return this.trips;
+	}
+
+	/**
+	 * Writes one row per person with emissions.
+	 */
+	public void writePersonsCsv(String fileName) {
+		try (BufferedWriter writer = IOUtils.getBufferedWriter(fileName)) {
+			writer.write("personId");
+			writeHeader(writer);
+
+			StringBuilder row = new StringBuilder();
+			for (int person = 0; person < this.personIds.size(); person++) {
+				if (isZero(this.personValues, person)) continue;
+				row.setLength(0);
+				row.append(this.personIds.get(person));
+				appendValues(row, this.personValues, person);
+				writer.write(row.toString());
+				writer.newLine();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		log.info("Person emissions written to " + fileName);
+	}
+
+	/**
+	 * Writes one row per trip with emissions.  The trips of a person are numbered from 1 on; 0 stands for emissions before the first
+	 * activity end, e.g. of transit drivers.  Departure is the end of the previous activity, arrival the last arrival of the trip.
+	 */
+	public void writeTripsCsv(String fileName) {
+		try (BufferedWriter writer = IOUtils.getBufferedWriter(fileName)) {
+			writer.write("personId;trip;departureTime;arrivalTime;mode");
+			writeHeader(writer);
+
+			StringBuilder row = new StringBuilder();
+			for (int trip = 0; trip < this.trips; trip++) {
+				row.setLength(0);
+				row.append(this.personIds.get(this.tripPerson[trip])).append(';').append(this.tripNumber[trip]).append(';')
+						.append(this.tripDepartureTime[trip]).append(';').append(this.tripArrivalTime[trip]).append(';')
+						.append(this.tripMode[trip]);
+				appendValues(row, this.tripValues, trip);
+				writer.write(row.toString());
+				writer.newLine();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		log.info("Trip emissions written to " + fileName);
+	}
+
+	private void writeHeader(BufferedWriter writer) throws IOException {
+		for (String pollutant : this.pollutants) {
+			writer.write(";" + pollutant + " [g]");
+		}
+		writer.newLine();
+	}
+
+	private void appendValues(StringBuilder row, double[] values, int index) {
+		for (int p = 0; p < this.numberOfPollutants; p++) {
+			row.append(';').append(values[index * this.numberOfPollutants + p]);
+		}
+	}
+
+	private boolean isZero(double[] values, int index) {
+		for (int p = 0; p < this.numberOfPollutants; p++) {
+			if (values[index * this.numberOfPollutants + p] != 0.) return false;
+		}
+		return true;
+	}
+
+}
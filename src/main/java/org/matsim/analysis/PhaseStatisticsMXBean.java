@@ -0,0 +1,45 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link PhaseStatisticsModule}: the statistics of the last completed iteration, by phase.  Registered as
+ * {@value PhaseStatisticsModule#OBJECT_NAME} with the output directory of the run as additional key.
+ *
+ * @author agent
+ */
+public interface PhaseStatisticsMXBean {
+
+	/**
+	 * @return the last completed iteration, -1 before the end of the first iteration
+	 */
+	int getIteration();
+
+	Map<String, Double> getWallTimeSeconds();
+
+	Map<String, Double> getCpuTimeSeconds();
+
+	Map<String, Double> getAllocatedMegabytes();
+
+	Map<String, Double> getHeapPeakMegabytes();
+
+}
@@ -0,0 +1,387 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.apache.log4j.Logger;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.AfterMobsimEvent;
+import org.matsim.core.controler.events.BeforeMobsimEvent;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.controler.events.ShutdownEvent;
+import org.matsim.core.controler.events.StartupEvent;
+import org.matsim.core.controler.listener.AfterMobsimListener;
+import org.matsim.core.controler.listener.BeforeMobsimListener;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.controler.listener.IterationStartsListener;
+import org.matsim.core.controler.listener.ShutdownListener;
+import org.matsim.core.controler.listener.StartupListener;
+import org.matsim.core.utils.io.IOUtils;
+
+/**
+ * Measures wall time, CPU time, allocated memory and heap high-water mark of the phases of every iteration and writes them into
+ * {@value #FILE_NAME} next to the score statistics.  The statistics of the last completed iteration are also available via JMX
+ * ({@link PhaseStatisticsMXBean}).  Nothing is measured unless the module is installed.
+ * <p>
+ * The phases are delimited by the controler events:
+ * <ul>
+ * <li>replanning: iteration start to before mobsim (all strategies together; the strategy manager offers no hook to time single
+ * strategy modules, so there is no breakdown per strategy module)</li>
+ * <li>mobsim: before to after mobsim (including the event handlers and the writing of the events)</li>
+ * <li>scoring: after mobsim to iteration end (scoring, closing the events file, travel times)</li>
+ * <li>iterationEnds: iteration end to the start of the next iteration (score statistics, plans dumps and other analysis)</li>
+ * </ul>
+ * CPU time is the process CPU time, i.e. summed over all threads.  The allocated memory is derived from the heap usage and the memory
+ * freed by the garbage collectors; the heap peak is the sum of the peaks of the heap memory pools.  CPU time and allocation require the
+ * {@code com.sun.management} extensions of HotSpot (and OpenJDK based) JVMs, which are only accessed reflectively; on other JVMs,
+ * these values are NaN.
+ *
+ * @author agent
+ */
+public final class PhaseStatisticsModule extends AbstractModule {
+
+	public static final String FILE_NAME = "phasestats.csv";
+	/**
+	 * The MBean is registered under this name plus {@code ,outputDirectory=<quoted output directory of the run>}, so that parallel runs
+	 * in the same JVM (e.g. a batch run) do not replace each other's MBean.
+	 */
+	public static final String OBJECT_NAME = "org.matsim.analysis:type=PhaseStatistics";
+
+	private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+	static final String REPLANNING = "replanning";
+	static final String MOBSIM = "mobsim";
+	static final String SCORING = "scoring";
+	static final String ITERATION_ENDS = "iterationEnds";
+
+	@Override
+	public void install() {
+		addControlerListenerBinding().toInstance(new PhaseStatisticsListener());
+	}
+
+	static final class PhaseStatisticsListener implements StartupListener, IterationStartsListener, BeforeMobsimListener,
+			AfterMobsimListener, IterationEndsListener, ShutdownListener, PhaseStatisticsMXBean {
+		private static final Logger log = Logger.getLogger(PhaseStatisticsListener.class);
+
+		private static final double MB = 1024. * 1024.;
+
+		@Inject private OutputDirectoryHierarchy controlerIO;
+
+		private final OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+		// com.sun.management.OperatingSystemMXBean.getProcessCpuTime(), null if not available
+		private final Method processCpuTime;
+		private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+		private final Set<String> heapPoolNames = new HashSet<>();
+		private final AtomicLong freedBytes = new AtomicLong();
+		private final NotificationListener gcListener = this::handleGcNotification;
+		private boolean allocationAvailable = isClassAvailable("com.sun.management.GarbageCollectionNotificationInfo");
+
+		private BufferedWriter writer;
+		private ObjectName objectName;
+
+		// the running phase
+		private int iteration = -1;
+		private String phase = null;
+		private long wallStart;
+		private long cpuStart;
+		private long usedStart;
+		private long freedStart;
+
+		// the current iteration, and the last completed one for JMX
+		private final Map<String, double[]> currentValues = new LinkedHashMap<>();
+		private volatile int lastIteration = -1;
+		private volatile Map<String, double[]> lastValues = Collections.emptyMap();
+
+		PhaseStatisticsListener() {
+			this.processCpuTime = getProcessCpuTimeMethod(this.operatingSystem);
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				if (pool.getType() == MemoryType.HEAP) {
+					this.heapPools.add(pool);
+					this.heapPoolNames.add(pool.getName());
+				}
+			}
+		}
+
+		@Override
+		public void notifyStartup(StartupEvent event) {
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				if (!(gc instanceof NotificationEmitter)) {
+					this.allocationAvailable = false;
+				}
+			}
+			if (this.allocationAvailable) {
+				for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+					((NotificationEmitter) gc).addNotificationListener(this.gcListener, null, null);
+				}
+			}
+			registerMBean();
+
+			this.writer = IOUtils.getBufferedWriter(this.controlerIO.getOutputFilename(FILE_NAME));
+			try {
+				this.writer.write("iteration;phase;wallTime [s];cpuTime [s];allocated [MB];heapPeak [MB]");
+				this.writer.newLine();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public void notifyIterationStarts(IterationStartsEvent event) {
+			if (this.phase != null) {
+				stopPhase();
+				completeIteration();
+			}
+			this.iteration = event.getIteration();
+			startPhase(REPLANNING);
+		}
+
+		@Override
+		public void notifyBeforeMobsim(BeforeMobsimEvent event) {
+			stopPhase();
+			startPhase(MOBSIM);
+		}
+
+		@Override
+		public void notifyAfterMobsim(AfterMobsimEvent event) {
+			stopPhase();
+			startPhase(SCORING);
+		}
+
+		@Override
+		public void notifyIterationEnds(IterationEndsEvent event) {
+			stopPhase();
+			startPhase(ITERATION_ENDS);
+		}
+
+		@Override
+		public void notifyShutdown(ShutdownEvent event) {
+			if (this.phase != null) {
+				stopPhase();
+				completeIteration();
+			}
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				if (gc instanceof NotificationEmitter) {
+					try {
+						((NotificationEmitter) gc).removeNotificationListener(this.gcListener);
+					} catch (JMException e) {
+						// not registered
+					}
+				}
+			}
+			unregisterMBean();
+			try {
+				this.writer.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			log.info("Phase statistics written to " + this.controlerIO.getOutputFilename(FILE_NAME));
+		}
+
+		private void startPhase(String name) {
+			this.phase = name;
+			for (MemoryPoolMXBean pool : this.heapPools) {
+				pool.resetPeakUsage();
+			}
+			this.freedStart = this.freedBytes.get();
+			this.usedStart = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			this.cpuStart = getProcessCpuTime();
+			this.wallStart = System.nanoTime();
+		}
+
+		private void stopPhase() {
+			long wall = System.nanoTime() - this.wallStart;
+			long cpu = getProcessCpuTime() - this.cpuStart;
+			long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			long peak = 0;
+			for (MemoryPoolMXBean pool : this.heapPools) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+			long allocated = used - this.usedStart + this.freedBytes.get() - this.freedStart;
+
+			double[] values = new double[4];
+			values[0] = wall / 1e9;
+			values[1] = this.processCpuTime == null ? Double.NaN : cpu / 1e9;
+			values[2] = this.allocationAvailable ? Math.max(0, allocated) / MB : Double.NaN;
+			values[3] = peak / MB;
+			this.currentValues.put(this.phase, values);
+			this.phase = null;
+		}
+
+		private void completeIteration() {
+			try {
+				for (Map.Entry<String, double[]> e : this.currentValues.entrySet()) {
+					double[] values = e.getValue();
+					this.writer.write(this.iteration + ";" + e.getKey() + ";" + values[0] + ";" + values[1] + ";" + values[2] + ";" + values[3]);
+					this.writer.newLine();
+				}
+				this.writer.flush();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			this.lastValues = new LinkedHashMap<>(this.currentValues);
+			this.lastIteration = this.iteration;
+			this.currentValues.clear();
+		}
+
+		private long getProcessCpuTime() {
+			if (this.processCpuTime == null) return 0;
+			try {
+				return (Long) this.processCpuTime.invoke(this.operatingSystem);
+			} catch (IllegalAccessException | InvocationTargetException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private static Method getProcessCpuTimeMethod(OperatingSystemMXBean operatingSystem) {
+			try {
+				Class<?> type = Class.forName("com.sun.management.OperatingSystemMXBean");
+				return type.isInstance(operatingSystem) ? type.getMethod("getProcessCpuTime") : null;
+			} catch (ClassNotFoundException | NoSuchMethodException e) {
+				return null;
+			}
+		}
+
+		private static boolean isClassAvailable(String className) {
+			try {
+				Class.forName(className);
+				return true;
+			} catch (ClassNotFoundException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Reads the notification as open data, i.e. without the com.sun.management classes: the user data is a
+		 * GarbageCollectionNotificationInfo whose "gcInfo" holds the memory usage per pool before and after the collection.
+		 */
+		private void handleGcNotification(Notification notification, Object handback) {
+			if (!GC_NOTIFICATION.equals(notification.getType())) return;
+			CompositeData gcInfo = (CompositeData) ((CompositeData) notification.getUserData()).get("gcInfo");
+			Map<String, MemoryUsage> after = getMemoryUsages(gcInfo, "memoryUsageAfterGc");
+			long freed = 0;
+			for (Map.Entry<String, MemoryUsage> e : getMemoryUsages(gcInfo, "memoryUsageBeforeGc").entrySet()) {
+				if (this.heapPoolNames.contains(e.getKey())) {
+					// promoted objects show up as negative values in the old generation
+					freed += e.getValue().getUsed() - after.get(e.getKey()).getUsed();
+				}
+			}
+			this.freedBytes.addAndGet(freed);
+		}
+
+		private static Map<String, MemoryUsage> getMemoryUsages(CompositeData gcInfo, String item) {
+			Map<String, MemoryUsage> usages = new HashMap<>();
+			for (Object row : ((TabularData) gcInfo.get(item)).values()) {
+				CompositeData entry = (CompositeData) row;
+				usages.put((String) entry.get("key"), MemoryUsage.from((CompositeData) entry.get("value")));
+			}
+			return usages;
+		}
+
+		private void registerMBean() {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			try {
+				this.objectName = new ObjectName(OBJECT_NAME + ",outputDirectory=" + ObjectName.quote(this.controlerIO.getOutputPath()));
+				if (server.isRegistered(this.objectName)) {
+					// left over from an earlier run into the same output directory in the same JVM
+					server.unregisterMBean(this.objectName);
+				}
+				server.registerMBean(this, this.objectName);
+			} catch (JMException e) {
+				log.warn("Could not register the phase statistics MBean: " + e.getMessage());
+				this.objectName = null;
+			}
+		}
+
+		private void unregisterMBean() {
+			if (this.objectName == null) return;
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+			} catch (JMException e) {
+				log.warn("Could not unregister the phase statistics MBean: " + e.getMessage());
+			}
+		}
+
+		@Override
+		public int getIteration() {
+			return this.lastIteration;
+		}
+
+		@Override
+		public Map<String, Double> getWallTimeSeconds() {
+			return getValues(0);
+		}
+
+		@Override
+		public Map<String, Double> getCpuTimeSeconds() {
+			return getValues(1);
+		}
+
+		@Override
+		public Map<String, Double> getAllocatedMegabytes() {
+			return getValues(2);
+		}
+
+		@Override
+		public Map<String, Double> getHeapPeakMegabytes() {
+			return getValues(3);
+		}
+
+		private Map<String, Double> getValues(int index) {
+			Map<String, Double> map = new LinkedHashMap<>();
+			for (Map.Entry<String, double[]> e : this.lastValues.entrySet()) {
+				map.put(e.getKey(), e.getValue()[index]);
+			}
+			return map;
+		}
+	}
+
+}
@@ -19,29 +19,27 @@
 
 package org.matsim.analysis;
 
-import org.matsim.api.core.v01.Id;
+import java.io.File;
+
+import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Scenario;
-import org.matsim.api.core.v01.network.Link;
 import org.matsim.contrib.emissions.EmissionModule;
 import org.matsim.contrib.emissions.utils.EmissionsConfigGroup;
-import org.matsim.contrib.emissions.utils.EmissionsConfigGroup.HbefaRoadTypeSource;
-import org.matsim.contrib.emissions.utils.EmissionsConfigGroup.NonScenarioVehicles;
 import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.controler.AbstractModule;
 import org.matsim.core.controler.Injector;
+import org.matsim.core.events.EventsReaderXMLv1;
 import org.matsim.core.events.EventsUtils;
 import org.matsim.core.events.MatsimEventsReader;
-import org.matsim.core.events.algorithms.EventWriterXML;
-import org.matsim.core.scenario.ScenarioUtils;
-import org.matsim.vehicles.VehicleType;
 
 /**
 * @author ikaddoura
 */
 
 public class RunOfflineAirPollutionAnalysis {
+	private static final Logger log = Logger.getLogger(RunOfflineAirPollutionAnalysis.class);
 	
 	final static String runDirectory = "public-svn/matsim/scenarios/countries/de/berlin/berlin-v5.2-1pct/output-berlin-v5.2-1pct/";	
 	final static String runId = "berlin-v5.2-1pct";
@@ -49,94 +47,193 @@ public class RunOfflineAirPollutionAnalysis {
 	final static String hbefaFileCold = "shared-svn/projects/detailedEval/matsim-input-files/hbefa-files/v3.2/EFA_ColdStart_vehcat_2005average.txt";
 	final static String hbefaFileWarm = "shared-svn/projects/detailedEval/matsim-input-files/hbefa-files/v3.2/EFA_HOT_vehcat_2005average.txt";
 	
+	/**
+	 * @param args root directory; optionally the number of threads used to compute and to rasterize the emissions (default: 1), the
+	 * time bin size in seconds of the link emission tables (default: 3600), whether the emission events are written out (default:
+	 * true), the cell size in m of the emission raster (default: 0, i.e. no raster), the smoothing radius in m (default: cell size), a
+	 * cache directory for the incremental re-analysis (default: none, see {@link IncrementalEmissionAnalysis}) and whether the
+	 * emissions per person and trip are written (default: false, see {@link PersonEmissionsAggregator})
+	 */
 	public static void main(String[] args) {
 		
 		String rootDirectory = null;
+		int numberOfThreads = 1;
+		double timeBinSize = 3600.;
+		boolean writeEmissionEvents = true;
+		double rasterCellSize = 0.;
+		double smoothingRadius = Double.NaN;
+		String emissionCacheDirectory = null;
+		boolean writePersonEmissions = false;
 		
-		if (args.length == 1) {
+		if (args.length >= 1) {
 			rootDirectory = args[0];
 		} else {
 			throw new RuntimeException("Please set the root directory. Aborting...");
 		}
 		
+		if (args.length >= 2) {
+			numberOfThreads = Integer.parseInt(args[1]);
+		}
+		
+		if (args.length >= 3) {
+			timeBinSize = Double.parseDouble(args[2]);
+		}
+		
+		if (args.length >= 4) {
+			writeEmissionEvents = Boolean.parseBoolean(args[3]);
+		}
+		
+		if (args.length >= 5) {
+			rasterCellSize = Double.parseDouble(args[4]);
+		}
+		
+		if (args.length >= 6) {
+			smoothingRadius = Double.parseDouble(args[5]);
+		} else {
+			smoothingRadius = rasterCellSize;
+		}
+		
+		if (args.length >= 7 && !args[6].isEmpty()) {
+			emissionCacheDirectory = args[6];
+		}
+		
+		if (args.length >= 8) {
+			writePersonEmissions = Boolean.parseBoolean(args[7]);
+		}
+		
 		if (!rootDirectory.endsWith("/")) rootDirectory = rootDirectory + "/";
 		
 		Config config = ConfigUtils.loadConfig(rootDirectory + runDirectory + runId + ".output_config.xml");
 		config.vehicles().setVehiclesFile(rootDirectory + runDirectory + runId + ".output_vehicles.xml.gz");
-		config.plans().setInputFile(null);
 		
 		EmissionsConfigGroup eConfig = ConfigUtils.addOrGetModule(config, EmissionsConfigGroup.class);
 		eConfig.setAverageColdEmissionFactorsFile(rootDirectory + hbefaFileCold);
 		eConfig.setAverageWarmEmissionFactorsFile(rootDirectory + hbefaFileWarm);
-		eConfig.setHbefaRoadTypeSource(HbefaRoadTypeSource.fromLinkAttributes);
-		eConfig.setNonScenarioVehicles(NonScenarioVehicles.ignore);
+		BerlinEmissionsSetup.configure(eConfig);
 		
 		final String emissionEventOutputFile = rootDirectory + runDirectory + runId + "." + config.controler().getLastIteration() + ".emission.events.offline.xml.gz";
+		final String linkEmissionsFilePrefix = rootDirectory + runDirectory + runId + "." + config.controler().getLastIteration() + ".emissions.links";
+		final String personEmissionsFilePrefix = rootDirectory + runDirectory + runId + "." + config.controler().getLastIteration() + ".emissions";
 		final String eventsFile = rootDirectory + runDirectory + runId + ".output_events.xml.gz";
 		
-		Scenario scenario = ScenarioUtils.loadScenario(config);
+		// only network and vehicles are needed
+		Scenario scenario = EmissionsScenarioLoader.loadNetworkAndVehicles(config);
 		
 		// network
-		for (Link link : scenario.getNetwork().getLinks().values()) {
+		HbefaRoadTypeAnnotator.annotate(scenario.getNetwork());
+		
+		// vehicles
+		BerlinEmissionsSetup.setVehicleTypeDescriptions(scenario.getVehicles());
+		
+        LinkEmissionsAggregator linkEmissionsAggregator;
+        
+        if (emissionCacheDirectory != null) {
+        	// only recompute what changed since the last analysis of this run
+        	if (writeEmissionEvents) {
+        		log.warn("The emission events are not written by the incremental re-analysis.");
+        	}
+        	if (writePersonEmissions) {
+        		log.warn("The emissions per person and trip are not computed by the incremental re-analysis.");
+        	}
+        	linkEmissionsAggregator = new IncrementalEmissionAnalysis(config, scenario, emissionCacheDirectory, timeBinSize).run(eventsFile);
+        	
+        } else {
+        	EventsManager outputEventsManager = EventsUtils.createEventsManager();
+        	
+        	linkEmissionsAggregator = new LinkEmissionsAggregator(scenario.getNetwork(), timeBinSize, config.qsim().getEndTime());
+        	outputEventsManager.addHandler(linkEmissionsAggregator);
+        	
+        	AsyncEventWriterXML emissionEventWriter = null;
+        	if (writeEmissionEvents) {
+        		emissionEventWriter = new AsyncEventWriterXML(emissionEventOutputFile);
+        		outputEventsManager.addHandler(emissionEventWriter);
+        	}
+        	
+        	// sees the input and the emission events in replay order
+        	PersonEmissionsAggregator personEmissionsAggregator = null;
+        	if (writePersonEmissions) {
+        		personEmissionsAggregator = new PersonEmissionsAggregator();
+        		outputEventsManager.addHandler(personEmissionsAggregator);
+        	}
+        	
+        	if (numberOfThreads <= 1) {
+        		EventsManager eventsManager = EventsUtils.createEventsManager();
+        		EmissionModule emissionModule = createEmissionModule(config, scenario, eventsManager);
+        		emissionModule.getEmissionEventsManager().addHandler(new ForwardingEventHandler(outputEventsManager));
+        		if (personEmissionsAggregator != null && emissionModule.getEmissionEventsManager() != eventsManager) {
+        			// the output events manager only sees the emission events
+        			eventsManager.addHandler(personEmissionsAggregator);
+        		}
+        		
+        		readEvents(eventsManager, eventsFile);
+        		
+        	} else {
+        		log.info("Computing the emissions with " + numberOfThreads + " threads.");
+        		ParallelEmissionEventsReplay replay = new ParallelEmissionEventsReplay(config, scenario, numberOfThreads, outputEventsManager);
+        		EventsManager eventsManager = EventsUtils.createEventsManager();
+        		eventsManager.addHandler(replay);
+        		
+        		readEvents(eventsManager, eventsFile);
+        		replay.finish();
+        	}
+        	
+        	if (emissionEventWriter != null) {
+        		emissionEventWriter.closeFile();
+        	}
+        	
+        	if (personEmissionsAggregator != null) {
+        		personEmissionsAggregator.writePersonsCsv(personEmissionsFilePrefix + ".persons.csv.gz");
+        		personEmissionsAggregator.writeTripsCsv(personEmissionsFilePrefix + ".trips.csv.gz");
+        	}
+        }
+        
+        linkEmissionsAggregator.writeCsv(linkEmissionsFilePrefix + ".csv.gz");
+        linkEmissionsAggregator.writeBinary(linkEmissionsFilePrefix + ".bin");
+        
+        if (rasterCellSize > 0.) {
+        	EmissionRasterizer rasterizer = new EmissionRasterizer(linkEmissionsAggregator.getLinkIndex(), rasterCellSize, smoothingRadius);
+        	rasterizer.writeCsv(linkEmissionsAggregator, rootDirectory + runDirectory + runId + "." + config.controler().getLastIteration() + ".emissions.raster.csv.gz",
+        			numberOfThreads);
+        }
+	}
 
-			double freespeed = Double.NaN;
+	/**
+	 * Reads the binary version of the events file (see {@link EventsToBinaryConverter}) if there is one which was converted from the
+	 * events file as it is now, otherwise the events file itself.
+	 */
+	static void readEvents(EventsManager eventsManager, String eventsFile) {
+		String binaryEventsFile = BinaryEventsFormat.getBinaryFileName(eventsFile);
+		if (!new File(binaryEventsFile).exists()) {
+			log.info("No binary events file found. Consider converting " + eventsFile + " with " + EventsToBinaryConverter.class.getSimpleName() + ".");
+			readEventsXml(eventsManager, eventsFile);
+		} else if (!BinaryEventsReader.isConvertedFrom(binaryEventsFile, eventsFile)) {
+			log.warn(binaryEventsFile + " was not converted from the current " + eventsFile + " (or by an older version). Reading the events file instead."
+					+ " Please convert it again with " + EventsToBinaryConverter.class.getSimpleName() + ".");
+			readEventsXml(eventsManager, eventsFile);
+		} else {
+			new BinaryEventsReader(eventsManager).readFile(binaryEventsFile);
+		}
+	}
 
-			if (link.getFreespeed() <= 13.888889) {
-				freespeed = link.getFreespeed() * 2;
-				// for non motorway roads, the free speed level was reduced
-			} else {
-				freespeed = link.getFreespeed();
-				// for motorways, the original speed levels seems ok.
+	/**
+	 * Reads a local gzipped events file through {@link ParallelGzipInputStream}, i.e. the decompression runs ahead of the parser on
+	 * another thread (on several threads only for a multi-member file with a member index); other files are read as usual.  No index
+	 * is written.
+	 */
+	static void readEventsXml(EventsManager eventsManager, String eventsFile) {
+		if (eventsFile.endsWith(".gz") && new File(eventsFile).isFile()) {
+			try (ParallelGzipInputStream in = new ParallelGzipInputStream(eventsFile)) {
+				new EventsReaderXMLv1(eventsManager).parse(in);
 			}
-			
-			if(freespeed <= 8.333333333){ //30kmh
-				link.getAttributes().putAttribute("hbefa_road_type", "URB/Access/30");
-			} else if(freespeed <= 11.111111111){ //40kmh
-				link.getAttributes().putAttribute("hbefa_road_type", "URB/Access/40");
-			} else if(freespeed <= 13.888888889){ //50kmh
-				double lanes = link.getNumberOfLanes();
-				if(lanes <= 1.0){
-					link.getAttributes().putAttribute("hbefa_road_type", "URB/Local/50");
-				} else if(lanes <= 2.0){
-					link.getAttributes().putAttribute("hbefa_road_type", "URB/Distr/50");
-				} else if(lanes > 2.0){
-					link.getAttributes().putAttribute("hbefa_road_type", "URB/Trunk-City/50");
-				} else{
-					throw new RuntimeException("NoOfLanes not properly defined");
-				}
-			} else if(freespeed <= 16.666666667){ //60kmh
-				double lanes = link.getNumberOfLanes();
-				if(lanes <= 1.0){
-					link.getAttributes().putAttribute("hbefa_road_type", "URB/Local/60");
-				} else if(lanes <= 2.0){
-					link.getAttributes().putAttribute("hbefa_road_type", "URB/Trunk-City/60");
-				} else if(lanes > 2.0){
-					link.getAttributes().putAttribute("hbefa_road_type", "URB/MW-City/60");
-				} else{
-					throw new RuntimeException("NoOfLanes not properly defined");
-				}
-			} else if(freespeed <= 19.444444444){ //70kmh
-				link.getAttributes().putAttribute("hbefa_road_type", "URB/MW-City/70");
-			} else if(freespeed <= 22.222222222){ //80kmh
-				link.getAttributes().putAttribute("hbefa_road_type", "URB/MW-Nat./80");
-			} else if(freespeed > 22.222222222){ //faster
-				link.getAttributes().putAttribute("hbefa_road_type", "RUR/MW/>130");
-			} else{
-				throw new RuntimeException("Link not considered...");
-			}			
+		} else {
+			new MatsimEventsReader(eventsManager).readFile(eventsFile);
 		}
-		
-		Id<VehicleType> carVehicleTypeId = Id.create("car", VehicleType.class);
-		Id<VehicleType> freightVehicleTypeId = Id.create("freight", VehicleType.class);
-		
-		// vehicles
-		scenario.getVehicles().getVehicleTypes().get(carVehicleTypeId).setDescription("BEGIN_EMISSIONSPASSENGER_CAR;average;average;averageEND_EMISSIONS");
-		scenario.getVehicles().getVehicleTypes().get(freightVehicleTypeId).setDescription("BEGIN_EMISSIONSHEAVY_GOODS_VEHICLE;average;average;averageEND_EMISSIONS");		
+	}
+
+	static EmissionModule createEmissionModule(Config config, Scenario scenario, EventsManager eventsManager) {
 		
 		// the following is copy paste from the example...
 		
-        EventsManager eventsManager = EventsUtils.createEventsManager();
-
 		AbstractModule module = new AbstractModule(){
 			@Override
 			public void install(){
@@ -148,15 +245,7 @@ public class RunOfflineAirPollutionAnalysis {
 
 		com.google.inject.Injector injector = Injector.createInjector(config, module);
 
-        EmissionModule emissionModule = injector.getInstance(EmissionModule.class);
-
-        EventWriterXML emissionEventWriter = new EventWriterXML(emissionEventOutputFile);
-        emissionModule.getEmissionEventsManager().addHandler(emissionEventWriter);
-
-        MatsimEventsReader matsimEventsReader = new MatsimEventsReader(eventsManager);
-        matsimEventsReader.readFile(eventsFile);
-
-        emissionEventWriter.closeFile();
+		return injector.getInstance(EmissionModule.class);
 	}
 
 }
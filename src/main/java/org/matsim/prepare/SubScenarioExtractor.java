@@ -0,0 +1,373 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.prepare;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.api.core.v01.population.Route;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigGroup;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.config.ConfigWriter;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.network.io.MatsimNetworkReader;
+import org.matsim.core.network.io.NetworkWriter;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.population.io.StreamingPopulationWriter;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.utils.objectattributes.ObjectAttributes;
+import org.matsim.utils.objectattributes.ObjectAttributesUtils;
+import org.matsim.utils.objectattributes.ObjectAttributesXmlReader;
+import org.matsim.utils.objectattributes.ObjectAttributesXmlWriter;
+import org.matsim.vehicles.MatsimVehicleReader;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+import org.matsim.vehicles.VehicleWriterV1;
+import org.matsim.vehicles.Vehicles;
+
+/**
+ * Extracts a small, consistent sub-scenario, e.g. for tuning or tests: persons sampled by fraction and/or by bounding box (at least
+ * one activity of the selected plan inside), the network, their vehicles and person attributes, and a config with flow, storage and
+ * counts scale factors adjusted to the sample.
+ * <p>
+ * The network keeps all links of the routed network modes, so that re-routing and mode choice find the same routes as in the full
+ * scenario, plus the pt links (so that the transit schedule stays valid) and any other link the kept persons use.  Only links of
+ * other modes which no kept person uses are dropped.
+ * <p>
+ * The plans file is streamed, i.e. the full population is never held in memory: reading (and sampling) and writing (and compressing)
+ * run on their own threads.
+ *
+ * @author agent
+ */
+public final class SubScenarioExtractor {
+	private static final Logger log = Logger.getLogger(SubScenarioExtractor.class);
+
+	private static final int BATCH_SIZE = 1000;
+	private static final List<Person> END = new ArrayList<>();
+
+	private final Config config;
+	private final double fraction;
+	private final double[] boundingBox;
+	private final long seed;
+
+	private final Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+	private final Network network = this.scenario.getNetwork();
+	private final Set<Id<Link>> usedLinks = new HashSet<>();
+	private final Set<Id<Person>> keptPersons = new HashSet<>();
+	private long readPersons = 0;
+
+	/**
+	 * @param args config file, output directory, fraction of the persons (1 for all); optionally the bounding box (minX minY maxX maxY)
+	 * in the coordinate system of the scenario
+	 */
+	public static void main(String[] args) {
+		if (args.length != 3 && args.length != 7) {
+			throw new RuntimeException("Expected arguments: configFile outputDirectory fraction [minX minY maxX maxY]. Aborting...");
+		}
+		Config config = ConfigUtils.loadConfig(args[0]);
+		double fraction = Double.parseDouble(args[2]);
+		double[] boundingBox = null;
+		if (args.length == 7) {
+			boundingBox = new double[] { Double.parseDouble(args[3]), Double.parseDouble(args[4]), Double.parseDouble(args[5]), Double.parseDouble(args[6]) };
+		}
+		new SubScenarioExtractor(config, fraction, boundingBox, config.global().getRandomSeed()).run(args[1]);
+	}
+
+	/**
+	 * @param boundingBox minX, minY, maxX, maxY; null for no spatial selection
+	 */
+	public SubScenarioExtractor(Config config, double fraction, double[] boundingBox, long seed) {
+		if (fraction <= 0. || fraction > 1.) {
+			throw new RuntimeException("The fraction must be in (0, 1]. Aborting...");
+		}
+		this.config = config;
+		this.fraction = fraction;
+		this.boundingBox = boundingBox;
+		this.seed = seed;
+	}
+
+	public void run(String outputDirectory) {
+		File directory = new File(outputDirectory);
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new RuntimeException("Could not create the output directory " + outputDirectory + ". Aborting...");
+		}
+		URL context = this.config.getContext();
+
+		log.info("Reading the network...");
+		new MatsimNetworkReader(this.network).parse(this.config.network().getInputFileURL(context));
+		Set<String> networkModes = new HashSet<>(this.config.plansCalcRoute().getNetworkModes());
+		for (Link link : this.network.getLinks().values()) {
+			if (link.getAllowedModes().contains(TransportMode.pt)) {
+				// keep the links of the transit schedule
+				markUsed(link.getId());
+			} else if (!Collections.disjoint(link.getAllowedModes(), networkModes)) {
+				// keep the routable network as it is, the cut network would in general not be strongly connected
+				markUsed(link.getId());
+			}
+		}
+
+		log.info("Sampling the persons...");
+		streamPopulation(ConfigGroup.getInputFileURL(context, this.config.plans().getInputFile()), new File(directory, "plans.xml.gz").getPath());
+		double sample = this.keptPersons.size() / (double) Math.max(1, this.readPersons);
+		log.info("Kept " + this.keptPersons.size() + " of " + this.readPersons + " persons.");
+
+		writeNetwork(new File(directory, "network.xml.gz").getPath());
+		String personAttributesFile = null;
+		if (this.config.plans().getInputPersonAttributeFile() != null) {
+			personAttributesFile = "personAttributes.xml.gz";
+			writePersonAttributes(ConfigGroup.getInputFileURL(context, this.config.plans().getInputPersonAttributeFile()),
+					new File(directory, personAttributesFile).getPath());
+		}
+		String vehiclesFile = null;
+		if (this.config.vehicles().getVehiclesFile() != null) {
+			vehiclesFile = "vehicles.xml.gz";
+			writeVehicles(ConfigGroup.getInputFileURL(context, this.config.vehicles().getVehiclesFile()), new File(directory, vehiclesFile).getPath());
+		}
+
+		writeConfig(new File(directory, "config.xml").getPath(), personAttributesFile, vehiclesFile, this.boundingBox == null ? sample : this.fraction);
+		log.info("Sub-scenario written to " + outputDirectory);
+	}
+
+	private void streamPopulation(URL plansFile, String outputFile) {
+		BlockingQueue<List<Person>> queue = new ArrayBlockingQueue<>(16);
+		StreamingPopulationWriter writer = new StreamingPopulationWriter();
+		writer.startStreaming(outputFile);
+		Throwable[] writerException = new Throwable[1];
+		Thread writerThread = new Thread(() -> {
+			try {
+				for (List<Person> batch = queue.take(); batch != END; batch = queue.take()) {
+					for (Person person : batch) {
+						writer.run(person);
+					}
+				}
+			} catch (Throwable e) {
+				writerException[0] = e;
+				// keep on draining the queue, so that the reader does not block
+				try {
+					while (queue.take() != END) {
+					}
+				} catch (InterruptedException e1) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "sub-scenario-writer");
+		writerThread.start();
+
+		Random random = new Random(this.seed);
+		List<Person> batch = new ArrayList<>(BATCH_SIZE);
+		StreamingPopulationReader reader = new StreamingPopulationReader(this.scenario);
+		reader.addAlgorithm(person -> {
+			this.readPersons++;
+			// draw for every person, so that the fraction selects the same persons with and without bounding box
+			boolean sampled = random.nextDouble() < this.fraction;
+			if (!sampled || !isInBoundingBox(person)) return;
+			this.keptPersons.add(person.getId());
+			markUsedLinks(person);
+			batch.add(person);
+			if (batch.size() == BATCH_SIZE) {
+				put(queue, new ArrayList<>(batch));
+				batch.clear();
+			}
+		});
+		try {
+			reader.readURL(plansFile);
+			put(queue, batch);
+		} finally {
+			put(queue, END);
+			try {
+				writerThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			writer.closeStreaming();
+		}
+		if (writerException[0] != null) {
+			throw new RuntimeException("Writing the plans failed. Aborting...", writerException[0]);
+		}
+	}
+
+	private boolean isInBoundingBox(Person person) {
+		if (this.boundingBox == null) {
+			return true;
+		}
+		for (PlanElement planElement : person.getSelectedPlan().getPlanElements()) {
+			if (planElement instanceof Activity) {
+				Coord coord = getCoord((Activity) planElement);
+				if (coord != null && coord.getX() >= this.boundingBox[0] && coord.getY() >= this.boundingBox[1]
+						&& coord.getX() <= this.boundingBox[2] && coord.getY() <= this.boundingBox[3]) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private Coord getCoord(Activity activity) {
+		if (activity.getCoord() != null) {
+			return activity.getCoord();
+		}
+		Link link = activity.getLinkId() == null ? null : this.network.getLinks().get(activity.getLinkId());
+		return link == null ? null : link.getToNode().getCoord();
+	}
+
+	private void markUsedLinks(Person person) {
+		for (Plan plan : person.getPlans()) {
+			for (PlanElement planElement : plan.getPlanElements()) {
+				if (planElement instanceof Activity) {
+					Activity activity = (Activity) planElement;
+					if (activity.getLinkId() != null) {
+						markUsed(activity.getLinkId());
+					} else if (activity.getCoord() != null) {
+						// the link the activity will be assigned to when the scenario is prepared for the simulation
+						markUsed(NetworkUtils.getNearestLink(this.network, activity.getCoord()).getId());
+					}
+				} else if (planElement instanceof Leg) {
+					Route route = ((Leg) planElement).getRoute();
+					if (route == null) continue;
+					markUsed(route.getStartLinkId());
+					markUsed(route.getEndLinkId());
+					if (route instanceof NetworkRoute) {
+						for (Id<Link> linkId : ((NetworkRoute) route).getLinkIds()) {
+							markUsed(linkId);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private void markUsed(Id<Link> linkId) {
+		if (linkId != null && this.network.getLinks().containsKey(linkId)) {
+			this.usedLinks.add(linkId);
+		}
+	}
+
+	private void writeNetwork(String fileName) {
+		Network subNetwork = NetworkUtils.createNetwork();
+		subNetwork.setCapacityPeriod(this.network.getCapacityPeriod());
+		subNetwork.setEffectiveLaneWidth(this.network.getEffectiveLaneWidth());
+		for (Link link : this.network.getLinks().values()) {
+			if (!this.usedLinks.contains(link.getId())) continue;
+			Id<Link> linkId = link.getId();
+			for (Node node : new Node[] { link.getFromNode(), link.getToNode() }) {
+				if (!subNetwork.getNodes().containsKey(node.getId())) {
+					subNetwork.addNode(subNetwork.getFactory().createNode(node.getId(), node.getCoord()));
+				}
+			}
+			Link subLink = subNetwork.getFactory().createLink(linkId, subNetwork.getNodes().get(link.getFromNode().getId()),
+					subNetwork.getNodes().get(link.getToNode().getId()));
+			subLink.setLength(link.getLength());
+			subLink.setFreespeed(link.getFreespeed());
+			subLink.setCapacity(link.getCapacity());
+			subLink.setNumberOfLanes(link.getNumberOfLanes());
+			subLink.setAllowedModes(link.getAllowedModes());
+			for (String attribute : link.getAttributes().getAsMap().keySet()) {
+				subLink.getAttributes().putAttribute(attribute, link.getAttributes().getAttribute(attribute));
+			}
+			subNetwork.addLink(subLink);
+		}
+		log.info("Kept " + subNetwork.getLinks().size() + " of " + this.network.getLinks().size() + " links.");
+		new NetworkWriter(subNetwork).write(fileName);
+	}
+
+	private void writePersonAttributes(URL inputFile, String outputFile) {
+		ObjectAttributes attributes = new ObjectAttributes();
+		new ObjectAttributesXmlReader(attributes).parse(inputFile);
+		ObjectAttributes subAttributes = new ObjectAttributes();
+		for (Id<Person> personId : this.keptPersons) {
+			ObjectAttributesUtils.copyAllAttributes(attributes, subAttributes, personId.toString());
+		}
+		new ObjectAttributesXmlWriter(subAttributes).writeFile(outputFile);
+	}
+
+	private void writeVehicles(URL inputFile, String outputFile) {
+		Vehicles vehicles = VehicleUtils.createVehiclesContainer();
+		new MatsimVehicleReader(vehicles).readURL(inputFile);
+		Vehicles subVehicles = VehicleUtils.createVehiclesContainer();
+		for (VehicleType vehicleType : vehicles.getVehicleTypes().values()) {
+			subVehicles.addVehicleType(vehicleType);
+		}
+		for (Vehicle vehicle : vehicles.getVehicles().values()) {
+			// the vehicles of a person are named after the person, e.g. 123 or 123_bicycle
+			String id = vehicle.getId().toString();
+			int separator = id.lastIndexOf('_');
+			Id<Person> personId = Id.createPersonId(separator < 0 ? id : id.substring(0, separator));
+			if (this.keptPersons.contains(personId) || this.keptPersons.contains(Id.createPersonId(id))) {
+				subVehicles.addVehicle(vehicle);
+			}
+		}
+		new VehicleWriterV1(subVehicles).writeFile(outputFile);
+	}
+
+	private void writeConfig(String fileName, String personAttributesFile, String vehiclesFile, double sample) {
+		URL context = this.config.getContext();
+		this.config.network().setInputFile("network.xml.gz");
+		this.config.plans().setInputFile("plans.xml.gz");
+		this.config.plans().setInputPersonAttributeFile(personAttributesFile);
+		this.config.vehicles().setVehiclesFile(vehiclesFile);
+		// unchanged inputs, relative to the original config
+		this.config.transit().setTransitScheduleFile(toAbsolute(context, this.config.transit().getTransitScheduleFile()));
+		this.config.transit().setVehiclesFile(toAbsolute(context, this.config.transit().getVehiclesFile()));
+
+		this.config.qsim().setFlowCapFactor(this.config.qsim().getFlowCapFactor() * sample);
+		this.config.qsim().setStorageCapFactor(this.config.qsim().getStorageCapFactor() * sample);
+		this.config.counts().setCountsScaleFactor(this.config.counts().getCountsScaleFactor() / sample);
+		new ConfigWriter(this.config).write(fileName);
+	}
+
+	private static String toAbsolute(URL context, String file) {
+		return file == null ? null : ConfigGroup.getInputFileURL(context, file).toString();
+	}
+
+	private static void put(BlockingQueue<List<Person>> queue, List<Person> batch) {
+		try {
+			queue.put(batch);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+}
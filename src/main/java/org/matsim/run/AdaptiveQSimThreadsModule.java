@@ -0,0 +1,239 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.run;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigReader;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.config.ConfigWriter;
+import org.matsim.core.config.groups.ControlerConfigGroup.MobsimType;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.events.AfterMobsimEvent;
+import org.matsim.core.controler.events.BeforeMobsimEvent;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.controler.listener.AfterMobsimListener;
+import org.matsim.core.controler.listener.BeforeMobsimListener;
+import org.matsim.core.controler.listener.IterationStartsListener;
+import org.matsim.core.mobsim.framework.Mobsim;
+import org.matsim.core.mobsim.framework.listeners.MobsimListener;
+import org.matsim.core.mobsim.qsim.QSim;
+import org.matsim.core.mobsim.qsim.QSimBuilder;
+import org.matsim.core.mobsim.qsim.QSimProvider;
+import org.matsim.core.scenario.ScenarioUtils;
+
+/**
+ * Finds the number of qsim threads with the shortest mobsim time: in the first iterations after iteration 0 (which includes the JIT
+ * warm-up), the mobsim runs with all cores, half of them, a quarter, ..., then the fastest number is kept for the rest of the run.
+ * Only the qsim is adapted; replanning and event handling keep the threads of the config, since the core creates their thread pools
+ * once at startup.
+ * <p>
+ * The number of threads of the iteration is bound as {@link AdaptiveQSimThreads} and read by the mobsim provider.  The network engine
+ * takes its number of threads from the config of the scenario it simulates, so the provider builds the qsim for a view of the
+ * scenario with a copy of the config.  The config of the run is not changed and output_config.xml shows the configured number.
+ * <p>
+ * The results depend on the thread layout of each iteration, i.e. they are not reproducible; use a fixed layout for that.
+ *
+ * @author agent
+ */
+final class AdaptiveQSimThreadsModule extends AbstractModule {
+
+	private static final int MAX_TRIALS = 4;
+
+	private final int numberOfCores;
+
+	AdaptiveQSimThreadsModule(int numberOfCores) {
+		this.numberOfCores = numberOfCores;
+	}
+
+	@Override
+	public void install() {
+		if (!getConfig().controler().getMobsim().equals(MobsimType.qsim.toString())) {
+			throw new RuntimeException("Adaptive qsim threads require the qsim as mobsim. Aborting...");
+		}
+		AdaptiveQSimThreads adaptiveQSimThreads = new AdaptiveQSimThreads(getCandidates(this.numberOfCores));
+		bind(AdaptiveQSimThreads.class).toInstance(adaptiveQSimThreads);
+		addControlerListenerBinding().toInstance(adaptiveQSimThreads);
+		bindMobsim().toProvider(AdaptiveQSimProvider.class);
+	}
+
+	static int[] getCandidates(int numberOfCores) {
+		int trials = 0;
+		for (int threads = numberOfCores; threads >= 1 && trials < MAX_TRIALS; threads /= 2) {
+			trials++;
+		}
+		int[] candidates = new int[trials];
+		int threads = numberOfCores;
+		for (int i = 0; i < trials; i++) {
+			candidates[i] = threads;
+			threads /= 2;
+		}
+		return candidates;
+	}
+
+	static final class AdaptiveQSimThreads implements IterationStartsListener, BeforeMobsimListener, AfterMobsimListener {
+		private static final Logger log = Logger.getLogger(AdaptiveQSimThreads.class);
+
+		@Inject private Config config;
+
+		private final int[] candidates;
+		private final double[] mobsimTimes;
+		private int trial = -1;
+		private boolean finished = false;
+		private long mobsimStart;
+		// 0: as in the config
+		private volatile int numberOfThreads = 0;
+
+		AdaptiveQSimThreads(int[] candidates) {
+			this.candidates = candidates;
+			this.mobsimTimes = new double[candidates.length];
+		}
+
+		@Override
+		public void notifyIterationStarts(IterationStartsEvent event) {
+			if (this.finished || event.getIteration() == this.config.controler().getFirstIteration()) {
+				this.trial = -1;
+				return;
+			}
+			int next = getNumberOfTrials();
+			if (next == this.candidates.length) {
+				finish();
+				return;
+			}
+			this.trial = next;
+			setQSimThreads(this.candidates[this.trial]);
+		}
+
+		@Override
+		public void notifyBeforeMobsim(BeforeMobsimEvent event) {
+			int qsimThreads = this.numberOfThreads > 0 ? this.numberOfThreads : this.config.qsim().getNumberOfThreads();
+			log.info("Iteration " + event.getIteration() + ": " + qsimThreads + " qsim threads, "
+					+ this.config.global().getNumberOfThreads() + " global threads, "
+					+ this.config.parallelEventHandling().getNumberOfThreads() + " event handling threads.");
+			this.mobsimStart = System.nanoTime();
+		}
+
+		/**
+		 * @return the number of qsim threads of the current iteration, 0 for the number of the config
+		 */
+		int getNumberOfThreads() {
+			return this.numberOfThreads;
+		}
+
+		@Override
+		public void notifyAfterMobsim(AfterMobsimEvent event) {
+			if (this.trial < 0) return;
+			this.mobsimTimes[this.trial] = (System.nanoTime() - this.mobsimStart) / 1e9;
+			log.info("Mobsim with " + this.candidates[this.trial] + " threads: " + this.mobsimTimes[this.trial] + " s.");
+			if (event.getIteration() == this.config.controler().getLastIteration()) {
+				// no more iterations to try
+				this.finished = true;
+			}
+		}
+
+		private int getNumberOfTrials() {
+			int trials = 0;
+			while (trials < this.mobsimTimes.length && this.mobsimTimes[trials] > 0.) {
+				trials++;
+			}
+			return trials;
+		}
+
+		private void finish() {
+			this.finished = true;
+			int best = 0;
+			for (int i = 1; i < this.candidates.length; i++) {
+				if (this.mobsimTimes[i] < this.mobsimTimes[best]) best = i;
+			}
+			log.info("Using " + this.candidates[best] + " qsim threads for the remaining iterations.");
+			setQSimThreads(this.candidates[best]);
+		}
+
+		private void setQSimThreads(int threads) {
+			this.numberOfThreads = threads;
+		}
+	}
+
+	/**
+	 * Builds the qsim as usual if the iteration uses the number of threads of the config, otherwise for a view of the scenario whose
+	 * config has the number of threads of the iteration.
+	 */
+	static final class AdaptiveQSimProvider implements Provider<Mobsim> {
+		@Inject private Scenario scenario;
+		@Inject private EventsManager events;
+		@Inject private Set<MobsimListener> mobsimListeners;
+		@Inject private AdaptiveQSimThreads adaptiveQSimThreads;
+		@Inject private QSimProvider qSimProvider;
+
+		@Override
+		public Mobsim get() {
+			int threads = this.adaptiveQSimThreads.getNumberOfThreads();
+			if (threads == 0 || threads == this.scenario.getConfig().qsim().getNumberOfThreads()) {
+				return this.qSimProvider.get();
+			}
+			Scenario view = createScenarioView(this.scenario, threads);
+			QSim qsim = new QSimBuilder(view.getConfig()).useDefaults().build(view, this.events);
+			for (MobsimListener listener : this.mobsimListeners) {
+				qsim.addQueueSimulationListeners(listener);
+			}
+			return qsim;
+		}
+	}
+
+	/**
+	 * @return a scenario with the network, population, vehicles, ... of the given one and a copy of its config with the given number of
+	 * qsim threads
+	 */
+	static Scenario createScenarioView(Scenario scenario, int numberOfThreads) {
+		Config config = copyConfig(scenario.getConfig());
+		config.qsim().setNumberOfThreads(numberOfThreads);
+		return new ScenarioUtils.ScenarioBuilder(config)
+				.setNetwork(scenario.getNetwork())
+				.setPopulation(scenario.getPopulation())
+				.setActivityFacilities(scenario.getActivityFacilities())
+				.setHouseholds(scenario.getHouseholds())
+				.setVehicles(scenario.getVehicles())
+				.setTransitSchedule(scenario.getTransitSchedule())
+				.setTransitVehicles(scenario.getTransitVehicles())
+				.setLanes(scenario.getLanes())
+				.build();
+	}
+
+	private static Config copyConfig(Config config) {
+		// the same way as the config is written to and read from a file
+		StringWriter writer = new StringWriter();
+		new ConfigWriter(config).writeStream(new PrintWriter(writer));
+		Config copy = ConfigUtils.createConfig(config.getContext());
+		new ConfigReader(copy).parse(new ByteArrayInputStream(writer.toString().getBytes(StandardCharsets.UTF_8)));
+		return copy;
+	}
+
+}
@@ -0,0 +1,81 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.run;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.matsim.core.config.groups.PlanCalcScoreConfigGroup;
+import org.matsim.core.config.groups.PlanCalcScoreConfigGroup.ActivityParams;
+
+/**
+ * The duration-bucketed activity types of the Berlin scenario: a base type (home, work, ...) and a typical duration, which is a
+ * multiple of {@value #DURATION_STEP} seconds, e.g. "home_3600.0".
+ *
+ * @author agent
+ */
+public final class BerlinActivityTypes {
+
+	public static final List<String> BASE_TYPES = Collections.unmodifiableList(Arrays.asList("home", "work", "leisure", "shopping", "other"));
+
+	public static final long DURATION_STEP = 600;
+	public static final long MIN_DURATION = 600;
+	public static final long MAX_DURATION = 97200;
+	public static final int NUMBER_OF_BUCKETS = (int) ((MAX_DURATION - MIN_DURATION) / DURATION_STEP) + 1;
+
+	// per base type; NaN: undefined
+	private static final double[] OPENING_TIMES = { Double.NaN, 6. * 3600., 9. * 3600., 8. * 3600., Double.NaN };
+	private static final double[] CLOSING_TIMES = { Double.NaN, 20. * 3600., 27. * 3600., 20. * 3600., Double.NaN };
+
+	public static final String FREIGHT = "freight";
+
+	private BerlinActivityTypes() {
+	}
+
+	/**
+	 * Adds the parameters of all bucketed types and of the freight activity.
+	 */
+	public static void addActivityParams(PlanCalcScoreConfigGroup planCalcScore) {
+		for (int baseType = 0; baseType < BASE_TYPES.size(); baseType++) {
+			for (int bucket = 0; bucket < NUMBER_OF_BUCKETS; bucket++) {
+				final ActivityParams params = new ActivityParams(getType(baseType, bucket));
+				params.setTypicalDuration(getTypicalDuration(bucket));
+				if (!Double.isNaN(OPENING_TIMES[baseType])) params.setOpeningTime(OPENING_TIMES[baseType]);
+				if (!Double.isNaN(CLOSING_TIMES[baseType])) params.setClosingTime(CLOSING_TIMES[baseType]);
+				planCalcScore.addActivityParams(params);
+			}
+		}
+		{
+			final ActivityParams params = new ActivityParams(FREIGHT);
+			params.setTypicalDuration(12. * 3600.);
+			planCalcScore.addActivityParams(params);
+		}
+	}
+
+	public static String getType(int baseType, int bucket) {
+		return BASE_TYPES.get(baseType) + "_" + getTypicalDuration(bucket) + ".0";
+	}
+
+	public static long getTypicalDuration(int bucket) {
+		return MIN_DURATION + bucket * DURATION_STEP;
+	}
+
+}
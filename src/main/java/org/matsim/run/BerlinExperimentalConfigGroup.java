@@ -0,0 +1,258 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.run;
+
+import java.util.Map;
+
+import org.matsim.core.config.ReflectiveConfigGroup;
+
+/**
+ * Settings of {@link RunBerlinScenario} which are not part of the MATSim core config groups.
+ *
+ * @author agent
+ */
+public final class BerlinExperimentalConfigGroup extends ReflectiveConfigGroup {
+
+	public static final String GROUP_NAME = "berlinExperimental";
+
+	public enum ThreadAllocation { fromConfig, detectCores, adaptiveQSim }
+
+	private static final String ONLINE_EMISSIONS_INTERVAL = "onlineEmissionsInterval";
+	private static final String ONLINE_EMISSIONS_IN_LAST_ITERATION = "onlineEmissionsInLastIteration";
+	private static final String INPUT_FILE_CACHE_DIRECTORY = "inputFileCacheDirectory";
+	private static final String SCENARIO_SNAPSHOT_FILE = "scenarioSnapshotFile";
+	private static final String WRITE_SCENARIO_SNAPSHOT = "writeScenarioSnapshot";
+	private static final String READ_SCENARIO_SNAPSHOT = "readScenarioSnapshot";
+	private static final String WRITE_PHASE_STATISTICS = "writePhaseStatistics";
+	private static final String COMPACT_POPULATION = "compactPopulation";
+	private static final String THREAD_ALLOCATION = "threadAllocation";
+	private static final String ASYNC_EVENT_WRITING = "asyncEventWriting";
+	private static final String LANDMARKS_DIRECTORY = "landmarksDirectory";
+	private static final String CONVERGENCE_ITERATIONS = "convergenceIterations";
+	private static final String CONVERGENCE_SCORE_TOLERANCE = "convergenceScoreTolerance";
+	private static final String CONVERGENCE_MODE_SHARE_TOLERANCE = "convergenceModeShareTolerance";
+	private static final String CONVERGENCE_LINK_VOLUME_TOLERANCE = "convergenceLinkVolumeTolerance";
+
+	private int onlineEmissionsInterval = 0;
+	private boolean onlineEmissionsInLastIteration = false;
+	private String inputFileCacheDirectory = null;
+	private String scenarioSnapshotFile = null;
+	private boolean writeScenarioSnapshot = false;
+	private boolean readScenarioSnapshot = false;
+	private boolean writePhaseStatistics = false;
+	private boolean compactPopulation = false;
+	private ThreadAllocation threadAllocation = ThreadAllocation.fromConfig;
+	private boolean asyncEventWriting = false;
+	private String landmarksDirectory = null;
+	private int convergenceIterations = 0;
+	private double convergenceScoreTolerance = 0.001;
+	private double convergenceModeShareTolerance = 0.005;
+	private double convergenceLinkVolumeTolerance = 0.02;
+
+	public BerlinExperimentalConfigGroup() {
+		super(GROUP_NAME);
+	}
+
+	@Override
+	public Map<String, String> getComments() {
+		Map<String, String> map = super.getComments();
+		map.put(ONLINE_EMISSIONS_INTERVAL, "Computes the emissions from the live event stream in every n-th iteration (0: never). "
+				+ "HBEFA files and further settings are taken from the emissions config group.");
+		map.put(ONLINE_EMISSIONS_IN_LAST_ITERATION, "If true, the emissions are also computed in the last iteration.");
+		map.put(INPUT_FILE_CACHE_DIRECTORY, "If set, remote input files are downloaded once into this directory and read from there "
+				+ "(see InputFileCache). Empty: read directly from the URLs.");
+		map.put(SCENARIO_SNAPSHOT_FILE, "Binary snapshot of the loaded network and population, see ScenarioSnapshot. Only used with local network and "
+				+ "plans files, e.g. together with inputFileCacheDirectory.");
+		map.put(WRITE_SCENARIO_SNAPSHOT, "If true, the snapshot is written after the scenario was loaded from the input files.");
+		map.put(READ_SCENARIO_SNAPSHOT, "If true, network and population are restored from the snapshot if it was created from the same input files.");
+		map.put(WRITE_PHASE_STATISTICS, "If true, wall time, CPU time, allocation and heap peak of the iteration phases are written to "
+				+ "phasestats.csv and exposed via JMX. Off by default, then nothing is measured.");
+		map.put(COMPACT_POPULATION, "If true, the population is held in a compact form (compressed network routes, shared activity types, "
+				+ "modes and coordinates), see CompactPopulation. For large samples.");
+		map.put(THREAD_ALLOCATION, "fromConfig: the global and qsim threads of the config. detectCores: as many threads as cores, a fixed "
+				+ "layout, i.e. reproducible on the same machine. adaptiveQSim: like detectCores, but the number of qsim threads with the "
+				+ "shortest mobsim time is determined in the first iterations; not reproducible.");
+		map.put(ASYNC_EVENT_WRITING, "If true, the events files are formatted and compressed on background threads instead of the "
+				+ "events thread, see AsyncEventWriterXML. The write events interval of the controler is used.");
+		map.put(LANDMARKS_DIRECTORY, "If set and the routing algorithm is FastAStarLandmarks, the landmark tables are stored in this "
+				+ "directory and memory-mapped in later runs with the same network and scoring, see PersistedLandmarks.");
+		map.put(CONVERGENCE_ITERATIONS, "If > 0, innovation is switched off and the run ends early once the following criteria held for "
+				+ "this number of iterations in a row, see ConvergenceStoppingModule. 0: always run until the last iteration.");
+		map.put(CONVERGENCE_SCORE_TOLERANCE, "Maximum relative change of the average score of the selected plans.");
+		map.put(CONVERGENCE_MODE_SHARE_TOLERANCE, "Maximum absolute change of the share of any leg mode.");
+		map.put(CONVERGENCE_LINK_VOLUME_TOLERANCE, "Maximum sum of the absolute changes of the link volumes, relative to the total volume.");
+		return map;
+	}
+
+	@StringGetter(ONLINE_EMISSIONS_INTERVAL)
+	public int getOnlineEmissionsInterval() {
+		return onlineEmissionsInterval;
+	}
+
+	@StringSetter(ONLINE_EMISSIONS_INTERVAL)
+	public void setOnlineEmissionsInterval(int onlineEmissionsInterval) {
+		this.onlineEmissionsInterval = onlineEmissionsInterval;
+	}
+
+	@StringGetter(ONLINE_EMISSIONS_IN_LAST_ITERATION)
+	public boolean isOnlineEmissionsInLastIteration() {
+		return onlineEmissionsInLastIteration;
+	}
+
+	@StringSetter(ONLINE_EMISSIONS_IN_LAST_ITERATION)
+	public void setOnlineEmissionsInLastIteration(boolean onlineEmissionsInLastIteration) {
+		this.onlineEmissionsInLastIteration = onlineEmissionsInLastIteration;
+	}
+
+	@StringGetter(INPUT_FILE_CACHE_DIRECTORY)
+	public String getInputFileCacheDirectory() {
+		return inputFileCacheDirectory;
+	}
+
+	@StringSetter(INPUT_FILE_CACHE_DIRECTORY)
+	public void setInputFileCacheDirectory(String inputFileCacheDirectory) {
+		this.inputFileCacheDirectory = inputFileCacheDirectory == null || inputFileCacheDirectory.isEmpty() ? null : inputFileCacheDirectory;
+	}
+
+	@StringGetter(SCENARIO_SNAPSHOT_FILE)
+	public String getScenarioSnapshotFile() {
+		return scenarioSnapshotFile;
+	}
+
+	@StringSetter(SCENARIO_SNAPSHOT_FILE)
+	public void setScenarioSnapshotFile(String scenarioSnapshotFile) {
+		this.scenarioSnapshotFile = scenarioSnapshotFile == null || scenarioSnapshotFile.isEmpty() ? null : scenarioSnapshotFile;
+	}
+
+	@StringGetter(WRITE_SCENARIO_SNAPSHOT)
+	public boolean isWriteScenarioSnapshot() {
+		return writeScenarioSnapshot;
+	}
+
+	@StringSetter(WRITE_SCENARIO_SNAPSHOT)
+	public void setWriteScenarioSnapshot(boolean writeScenarioSnapshot) {
+		this.writeScenarioSnapshot = writeScenarioSnapshot;
+	}
+
+	@StringGetter(READ_SCENARIO_SNAPSHOT)
+	public boolean isReadScenarioSnapshot() {
+		return readScenarioSnapshot;
+	}
+
+	@StringSetter(READ_SCENARIO_SNAPSHOT)
+	public void setReadScenarioSnapshot(boolean readScenarioSnapshot) {
+		this.readScenarioSnapshot = readScenarioSnapshot;
+	}
+
+	@StringGetter(WRITE_PHASE_STATISTICS)
+	public boolean isWritePhaseStatistics() {
+		return writePhaseStatistics;
+	}
+
+	@StringSetter(WRITE_PHASE_STATISTICS)
+	public void setWritePhaseStatistics(boolean writePhaseStatistics) {
+		this.writePhaseStatistics = writePhaseStatistics;
+	}
+
+	@StringGetter(COMPACT_POPULATION)
+	public boolean isCompactPopulation() {
+		return compactPopulation;
+	}
+
+	@StringSetter(COMPACT_POPULATION)
+	public void setCompactPopulation(boolean compactPopulation) {
+		this.compactPopulation = compactPopulation;
+	}
+
+	@StringGetter(THREAD_ALLOCATION)
+	public ThreadAllocation getThreadAllocation() {
+		return threadAllocation;
+	}
+
+	@StringSetter(THREAD_ALLOCATION)
+	public void setThreadAllocation(ThreadAllocation threadAllocation) {
+		this.threadAllocation = threadAllocation;
+	}
+
+	@StringGetter(ASYNC_EVENT_WRITING)
+	public boolean isAsyncEventWriting() {
+		return asyncEventWriting;
+	}
+
+	@StringSetter(ASYNC_EVENT_WRITING)
+	public void setAsyncEventWriting(boolean asyncEventWriting) {
+		this.asyncEventWriting = asyncEventWriting;
+	}
+
+	@StringGetter(LANDMARKS_DIRECTORY)
+	public String getLandmarksDirectory() {
+		return landmarksDirectory;
+	}
+
+	@StringSetter(LANDMARKS_DIRECTORY)
+	public void setLandmarksDirectory(String landmarksDirectory) {
+		this.landmarksDirectory = landmarksDirectory == null || landmarksDirectory.isEmpty() ? null : landmarksDirectory;
+	}
+
+	@StringGetter(CONVERGENCE_ITERATIONS)
+	public int getConvergenceIterations() {
+		return convergenceIterations;
+	}
+
+	@StringSetter(CONVERGENCE_ITERATIONS)
+	public void setConvergenceIterations(int convergenceIterations) {
+		this.convergenceIterations = convergenceIterations;
+	}
+
+	@StringGetter(CONVERGENCE_SCORE_TOLERANCE)
+	public double getConvergenceScoreTolerance() {
+		return convergenceScoreTolerance;
+	}
+
+	@StringSetter(CONVERGENCE_SCORE_TOLERANCE)
+	public void setConvergenceScoreTolerance(double convergenceScoreTolerance) {
+		this.convergenceScoreTolerance = convergenceScoreTolerance;
+	}
+
+	@StringGetter(CONVERGENCE_MODE_SHARE_TOLERANCE)
+	public double getConvergenceModeShareTolerance() {
+		return convergenceModeShareTolerance;
+	}
+
+	@StringSetter(CONVERGENCE_MODE_SHARE_TOLERANCE)
+	public void setConvergenceModeShareTolerance(double convergenceModeShareTolerance) {
+		this.convergenceModeShareTolerance = convergenceModeShareTolerance;
+	}
+
+	@StringGetter(CONVERGENCE_LINK_VOLUME_TOLERANCE)
+	public double getConvergenceLinkVolumeTolerance() {
+		return convergenceLinkVolumeTolerance;
+	}
+
+	@StringSetter(CONVERGENCE_LINK_VOLUME_TOLERANCE)
+	public void setConvergenceLinkVolumeTolerance(double convergenceLinkVolumeTolerance) {
+		this.convergenceLinkVolumeTolerance = convergenceLinkVolumeTolerance;
+	}
+
+	public boolean isOnlineEmissions() {
+		return onlineEmissionsInterval > 0 || onlineEmissionsInLastIteration;
+	}
+
+}
@@ -0,0 +1,173 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.run;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.api.core.v01.population.Route;
+import org.matsim.core.config.Config;
+import org.matsim.core.population.routes.CompressedNetworkRouteFactory;
+import org.matsim.core.population.routes.CompressedNetworkRouteImpl;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.population.routes.RouteFactories;
+import org.matsim.core.scenario.ScenarioUtils;
+
+/**
+ * Compact in-memory representation of the population, for large samples of the Berlin scenario.
+ * <ul>
+ * <li>Network routes are stored compressed: only the links which do not simply follow from the previous link (for most links there is
+ * a single typical successor) are kept, the full link sequence is decoded when it is requested.  This also applies to all routes
+ * created later on, e.g. by the router.</li>
+ * <li>Activity types, leg modes and activity coordinates which are equal are shared instead of being held once per plan element.</li>
+ * </ul>
+ * The population remains a normal {@link org.matsim.api.core.v01.population.Population}, i.e. it can be used by the controler as
+ * before.  Run {@link #main(String[])} with a config file to compare the heap per agent with and without compaction.
+ *
+ * @author agent
+ */
+public final class CompactPopulation {
+	private static final Logger log = Logger.getLogger(CompactPopulation.class);
+
+	private CompactPopulation() {
+	}
+
+	/**
+	 * Prints the heap per agent of the scenario of the config, loaded as usual and loaded with a compact population.
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			throw new RuntimeException("Please set the config file. Aborting...");
+		}
+		Config config = new RunBerlinScenario(args[0], null).prepareConfig();
+
+		long before = getUsedHeap();
+		Scenario scenario = ScenarioUtils.loadScenario(config);
+		double standard = (getUsedHeap() - before) / (double) scenario.getPopulation().getPersons().size();
+		scenario = null;
+
+		before = getUsedHeap();
+		scenario = loadScenario(config);
+		double compact = (getUsedHeap() - before) / (double) scenario.getPopulation().getPersons().size();
+
+		log.info("Heap per agent (including the network and other scenario data): " + (long) standard + " bytes as usual, " + (long) compact
+				+ " bytes with the compact population (" + Math.round(100. * (1. - compact / standard)) + "% less).");
+	}
+
+	/**
+	 * Loads the scenario; the routes are compressed while the plans are read.
+	 */
+	public static Scenario loadScenario(Config config) {
+		Scenario scenario = ScenarioUtils.createScenario(config);
+		useCompressedRoutes(scenario);
+		ScenarioUtils.loadScenario(scenario);
+		compactPlanElements(scenario);
+		return scenario;
+	}
+
+	/**
+	 * Compacts an already loaded population, see class comment.
+	 */
+	public static void compact(Scenario scenario) {
+		useCompressedRoutes(scenario);
+		compactPlanElements(scenario);
+	}
+
+	private static void compactPlanElements(Scenario scenario) {
+		RouteFactories routeFactories = scenario.getPopulation().getFactory().getRouteFactories();
+		Map<String, String> strings = new HashMap<>();
+		Map<Coord, Coord> coords = new HashMap<>();
+		long compressedRoutes = 0;
+
+		for (Person person : scenario.getPopulation().getPersons().values()) {
+			for (Plan plan : person.getPlans()) {
+				for (PlanElement planElement : plan.getPlanElements()) {
+					if (planElement instanceof Activity) {
+						Activity activity = (Activity) planElement;
+						activity.setType(intern(strings, activity.getType()));
+						if (activity.getCoord() != null) {
+							activity.setCoord(intern(coords, activity.getCoord()));
+						}
+					} else if (planElement instanceof Leg) {
+						Leg leg = (Leg) planElement;
+						leg.setMode(intern(strings, leg.getMode()));
+						Route route = leg.getRoute();
+						if (route instanceof NetworkRoute && !(route instanceof CompressedNetworkRouteImpl)) {
+							leg.setRoute(compress((NetworkRoute) route, routeFactories));
+							compressedRoutes++;
+						}
+					}
+				}
+			}
+		}
+		log.info("Compacted the population: " + strings.size() + " distinct activity types and modes, " + coords.size()
+				+ " distinct coordinates, " + compressedRoutes + " routes compressed.");
+	}
+
+	private static void useCompressedRoutes(Scenario scenario) {
+		scenario.getPopulation().getFactory().getRouteFactories().setRouteFactory(NetworkRoute.class, new CompressedNetworkRouteFactory(scenario.getNetwork()));
+	}
+
+	private static NetworkRoute compress(NetworkRoute route, RouteFactories routeFactories) {
+		Id<Link> startLinkId = route.getStartLinkId();
+		Id<Link> endLinkId = route.getEndLinkId();
+		NetworkRoute compressed = routeFactories.createRoute(NetworkRoute.class, startLinkId, endLinkId);
+		compressed.setLinkIds(startLinkId, route.getLinkIds(), endLinkId);
+		compressed.setDistance(route.getDistance());
+		compressed.setTravelTime(route.getTravelTime());
+		compressed.setTravelCost(route.getTravelCost());
+		compressed.setVehicleId(route.getVehicleId());
+		return compressed;
+	}
+
+	private static <T> T intern(Map<T, T> pool, T value) {
+		if (value == null) {
+			return null;
+		}
+		T pooled = pool.get(value);
+		if (pooled == null) {
+			pool.put(value, value);
+			return value;
+		}
+		return pooled;
+	}
+
+	/**
+	 * @return the used heap after garbage collection, in bytes
+	 */
+	static long getUsedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
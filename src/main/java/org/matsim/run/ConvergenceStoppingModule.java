@@ -0,0 +1,263 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.run;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+
+import org.apache.log4j.Logger;
+import org.matsim.analysis.NetworkLinkIndex;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.handler.LinkEnterEventHandler;
+import org.matsim.api.core.v01.events.handler.PersonDepartureEventHandler;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.groups.StrategyConfigGroup.StrategySettings;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.TerminationCriterion;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.replanning.GenericPlanStrategy;
+import org.matsim.core.replanning.PlanStrategyImpl;
+import org.matsim.core.replanning.StrategyManager;
+
+/**
+ * Ends a run early once it has converged: if the average score of the selected plans, the leg mode shares and the link volumes change
+ * less than the tolerances for K iterations in a row, innovation is switched off and the run ends after the iterations without
+ * innovation, in the same proportion as {@code fractionOfIterationsToDisableInnovation} (e.g. a quarter more iterations for 0.8).
+ * Nothing happens once the regular innovation switch-off is reached.
+ * <p>
+ * The module replaces the termination criterion of the controler, which otherwise reads the last iteration only once at startup.  The
+ * new end is also set as last iteration of the controler config if the config still accepts it, so that everything done in the last
+ * iteration (e.g. writing the events) happens in the new last iteration.  The statistics and all decisions are logged.
+ *
+ * @author agent
+ */
+final class ConvergenceStoppingModule extends AbstractModule {
+
+	private final BerlinExperimentalConfigGroup berlinCfg;
+
+	ConvergenceStoppingModule(BerlinExperimentalConfigGroup berlinCfg) {
+		this.berlinCfg = berlinCfg;
+	}
+
+	@Override
+	public void install() {
+		ConvergenceStopping convergenceStopping = new ConvergenceStopping(berlinCfg.getConvergenceIterations(),
+				berlinCfg.getConvergenceScoreTolerance(), berlinCfg.getConvergenceModeShareTolerance(), berlinCfg.getConvergenceLinkVolumeTolerance());
+		addEventHandlerBinding().toInstance(convergenceStopping);
+		addControlerListenerBinding().toInstance(convergenceStopping);
+		bind(TerminationCriterion.class).toInstance(convergenceStopping);
+	}
+
+	/**
+	 * @return the relative change of the average score, infinite if there is no previous score
+	 */
+	static double getScoreChange(double previousScore, double score) {
+		if (Double.isNaN(previousScore)) return Double.POSITIVE_INFINITY;
+		return Math.abs(score - previousScore) / Math.max(Math.abs(previousScore), 1e-9);
+	}
+
+	/**
+	 * @return the largest absolute change of the share of any mode
+	 */
+	static double getModeShareChange(Map<String, Integer> previousLegs, Map<String, Integer> legs) {
+		double previousTotal = previousLegs.values().stream().mapToInt(Integer::intValue).sum();
+		double total = legs.values().stream().mapToInt(Integer::intValue).sum();
+		Set<String> modes = new LinkedHashSet<>(previousLegs.keySet());
+		modes.addAll(legs.keySet());
+		double change = 0.;
+		for (String mode : modes) {
+			double previousShare = previousTotal > 0 ? previousLegs.getOrDefault(mode, 0) / previousTotal : 0.;
+			double share = total > 0 ? legs.getOrDefault(mode, 0) / total : 0.;
+			change = Math.max(change, Math.abs(share - previousShare));
+		}
+		return change;
+	}
+
+	/**
+	 * @return the sum of the absolute changes of the link volumes relative to the total volume
+	 */
+	static double getLinkVolumeChange(int[] previousVolumes, int[] volumes) {
+		long difference = 0;
+		long total = 0;
+		for (int i = 0; i < volumes.length; i++) {
+			difference += Math.abs(volumes[i] - previousVolumes[i]);
+			total += previousVolumes[i];
+		}
+		return total == 0 ? (difference == 0 ? 0. : Double.POSITIVE_INFINITY) : (double) difference / total;
+	}
+
+	/**
+	 * @return the number of iterations without innovation after the given iterations with innovation
+	 */
+	static int getIterationsWithoutInnovation(int iterationsWithInnovation, double fractionOfIterationsToDisableInnovation) {
+		if (fractionOfIterationsToDisableInnovation <= 0. || fractionOfIterationsToDisableInnovation >= 1.) return 0;
+		return (int) Math.ceil(iterationsWithInnovation * (1. - fractionOfIterationsToDisableInnovation) / fractionOfIterationsToDisableInnovation);
+	}
+
+	static final class ConvergenceStopping implements LinkEnterEventHandler, PersonDepartureEventHandler, IterationEndsListener,
+			TerminationCriterion {
+		private static final Logger log = Logger.getLogger(ConvergenceStopping.class);
+
+		@Inject private Config config;
+		@Inject private Scenario scenario;
+		@Inject private StrategyManager strategyManager;
+
+		private final int convergenceIterations;
+		private final double scoreTolerance;
+		private final double modeShareTolerance;
+		private final double linkVolumeTolerance;
+
+		private NetworkLinkIndex linkIndex;
+		private int[] volumes;
+		private int[] previousVolumes;
+		private Map<String, Integer> legs = new HashMap<>();
+		private Map<String, Integer> previousLegs = null;
+		private double previousScore = Double.NaN;
+		private int stableIterations = 0;
+		private boolean stopping = false;
+		// -1: the last iteration of the config
+		private int lastIteration = -1;
+
+		ConvergenceStopping(int convergenceIterations, double scoreTolerance, double modeShareTolerance, double linkVolumeTolerance) {
+			this.convergenceIterations = convergenceIterations;
+			this.scoreTolerance = scoreTolerance;
+			this.modeShareTolerance = modeShareTolerance;
+			this.linkVolumeTolerance = linkVolumeTolerance;
+		}
+
+		@Override
+		public void handleEvent(LinkEnterEvent event) {
+			if (this.linkIndex == null) {
+				this.linkIndex = new NetworkLinkIndex(this.scenario.getNetwork());
+				this.volumes = new int[this.linkIndex.size()];
+			}
+			int link = this.linkIndex.getIndex(event.getLinkId());
+			if (link >= 0) this.volumes[link]++;
+		}
+
+		@Override
+		public void handleEvent(PersonDepartureEvent event) {
+			this.legs.merge(event.getLegMode(), 1, Integer::sum);
+		}
+
+		@Override
+		public void reset(int iteration) {
+		}
+
+		@Override
+		public boolean continueIterations(int iteration) {
+			return iteration <= (this.lastIteration < 0 ? this.config.controler().getLastIteration() : this.lastIteration);
+		}
+
+		@Override
+		public void notifyIterationEnds(IterationEndsEvent event) {
+			double score = getAverageSelectedScore();
+			int[] volumes = this.volumes == null ? new int[0] : this.volumes;
+			if (!this.stopping && this.previousLegs != null) {
+				checkConvergence(event.getIteration(), score, volumes);
+			}
+
+			this.previousScore = score;
+			this.previousLegs = this.legs;
+			this.legs = new HashMap<>();
+			if (this.volumes != null) {
+				int[] recycled = this.previousVolumes == null ? new int[volumes.length] : this.previousVolumes;
+				this.previousVolumes = this.volumes;
+				Arrays.fill(recycled, 0);
+				this.volumes = recycled;
+			}
+		}
+
+		private void checkConvergence(int iteration, double score, int[] volumes) {
+			double scoreChange = getScoreChange(this.previousScore, score);
+			double modeShareChange = getModeShareChange(this.previousLegs, this.legs);
+			double linkVolumeChange = this.previousVolumes == null ? 0. : getLinkVolumeChange(this.previousVolumes, volumes);
+			boolean stable = scoreChange <= this.scoreTolerance && modeShareChange <= this.modeShareTolerance
+					&& linkVolumeChange <= this.linkVolumeTolerance;
+			this.stableIterations = stable ? this.stableIterations + 1 : 0;
+			log.info("Iteration " + iteration + ": score change " + scoreChange + ", mode share change " + modeShareChange
+					+ ", link volume change " + linkVolumeChange + (stable ? " -> stable" : " -> not stable") + " ("
+					+ this.stableIterations + " of " + this.convergenceIterations + " iterations).");
+			if (this.stableIterations < this.convergenceIterations) return;
+
+			int firstIteration = this.config.controler().getFirstIteration();
+			int lastIteration = this.config.controler().getLastIteration();
+			double fraction = this.config.strategy().getFractionOfIterationsToDisableInnovation();
+			int regularSwitchOff = firstIteration + (int) (fraction * (lastIteration - firstIteration));
+			if (iteration + 1 >= regularSwitchOff) {
+				log.info("Converged, but innovation is switched off from iteration " + regularSwitchOff + " on anyway. Not ending the run early.");
+				this.stopping = true;
+				return;
+			}
+			int newLastIteration = Math.min(lastIteration, iteration + getIterationsWithoutInnovation(iteration + 1 - firstIteration, fraction));
+			this.lastIteration = newLastIteration;
+			try {
+				this.config.controler().setLastIteration(newLastIteration);
+			} catch (RuntimeException e) {
+				log.warn("Could not set the last iteration of the config: " + e.getMessage() + " The run ends after iteration " + newLastIteration
+						+ " anyway, but the outputs of the last iteration only follow their intervals.");
+			}
+			this.stopping = true;
+			switchOffInnovation();
+			log.info("Converged after iteration " + iteration + ". Innovation is switched off, the run ends after iteration " + newLastIteration
+					+ " instead of " + lastIteration + ", i.e. " + (lastIteration - newLastIteration) + " iterations are saved.");
+		}
+
+		private double getAverageSelectedScore() {
+			double sum = 0.;
+			int count = 0;
+			for (Person person : this.scenario.getPopulation().getPersons().values()) {
+				Plan plan = person.getSelectedPlan();
+				if (plan != null && plan.getScore() != null) {
+					sum += plan.getScore();
+					count++;
+				}
+			}
+			return count == 0 ? Double.NaN : sum / count;
+		}
+
+		private void switchOffInnovation() {
+			Set<String> subpopulations = new LinkedHashSet<>();
+			for (StrategySettings settings : this.config.strategy().getStrategySettings()) {
+				subpopulations.add(settings.getSubpopulation());
+			}
+			for (String subpopulation : subpopulations) {
+				for (GenericPlanStrategy<Plan, Person> strategy : this.strategyManager.getStrategies(subpopulation)) {
+					// strategies with modules change plans, the others only select
+					if (strategy instanceof PlanStrategyImpl && ((PlanStrategyImpl) strategy).getNumberOfStrategyModules() > 0) {
+						this.strategyManager.changeWeightOfStrategy(strategy, subpopulation, 0.);
+						log.info("Switched off " + strategy + " for subpopulation " + subpopulation + ".");
+					}
+				}
+			}
+		}
+	}
+
+}
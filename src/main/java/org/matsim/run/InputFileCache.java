@@ -0,0 +1,221 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.run;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigGroup;
+
+/**
+ * Local, content-addressed cache for remote input files.
+ * <p>
+ * Files are stored as {@code <cacheDirectory>/<sha256>/<file name>}, i.e. the original file name (and thus the compression
+ * detection by file ending) is kept.  {@code index.txt} maps each URL to the checksum of its content.  Cached files are verified
+ * against this checksum before they are used and downloaded again if they do not match.
+ * <p>
+ * The cache can be pre-seeded with {@link #add(URL, File)}, e.g. for tests or compute nodes without internet access.
+ *
+ * @author agent
+ */
+public final class InputFileCache {
+	private static final Logger log = Logger.getLogger(InputFileCache.class);
+
+	private static final String INDEX_FILE = "index.txt";
+
+	private final File cacheDirectory;
+	private final Map<String, String> index = new LinkedHashMap<>();
+
+	public InputFileCache(String cacheDirectory) {
+		this.cacheDirectory = new File(cacheDirectory);
+		if (!this.cacheDirectory.exists() && !this.cacheDirectory.mkdirs()) {
+			throw new RuntimeException("Could not create the cache directory " + cacheDirectory + ". Aborting...");
+		}
+		readIndex();
+	}
+
+	/**
+	 * Replaces all remote input files of the config (network, plans, person attributes, vehicles, transit schedule and transit vehicles)
+	 * by their local copies.
+	 */
+	public void localizeInputs(Config config) {
+		URL context = config.getContext();
+		config.network().setInputFile(localize(context, config.network().getInputFile()));
+		config.plans().setInputFile(localize(context, config.plans().getInputFile()));
+		config.plans().setInputPersonAttributeFile(localize(context, config.plans().getInputPersonAttributeFile()));
+		config.vehicles().setVehiclesFile(localize(context, config.vehicles().getVehiclesFile()));
+		config.transit().setTransitScheduleFile(localize(context, config.transit().getTransitScheduleFile()));
+		config.transit().setVehiclesFile(localize(context, config.transit().getVehiclesFile()));
+	}
+
+	private String localize(URL context, String file) {
+		if (file == null || file.isEmpty()) {
+			return file;
+		}
+		URL url = ConfigGroup.getInputFileURL(context, file);
+		if ("file".equals(url.getProtocol())) {
+			return file;
+		}
+		return getLocalFile(url).getAbsolutePath();
+	}
+
+	/**
+	 * @return the local copy of the URL; downloaded if it is not cached yet or if the cached copy does not match its checksum
+	 */
+	public synchronized File getLocalFile(URL url) {
+		String checksum = this.index.get(url.toString());
+		if (checksum != null) {
+			File file = getBlobFile(checksum, url);
+			if (file.exists() && checksum.equals(computeChecksum(file))) {
+				log.info("Using cached " + file + " for " + url);
+				return file;
+			}
+			log.warn("Cached copy of " + url + " is missing or does not match its checksum. Downloading it again...");
+		}
+		log.info("Downloading " + url + " ...");
+		try (InputStream in = url.openStream()) {
+			return store(url, in);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Adds a local file to the cache, as if it had been downloaded from the URL.
+	 */
+	public synchronized File add(URL url, File file) {
+		try (InputStream in = new FileInputStream(file)) {
+			return store(url, in);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private File store(URL url, InputStream in) throws IOException {
+		MessageDigest digest = createDigest();
+		File tmpFile = File.createTempFile("download", ".tmp", this.cacheDirectory);
+		try {
+			try (InputStream digestIn = new DigestInputStream(in, digest); OutputStream out = new FileOutputStream(tmpFile)) {
+				copy(digestIn, out);
+			}
+			String checksum = toHex(digest.digest());
+			File file = getBlobFile(checksum, url);
+			if (!file.getParentFile().exists() && !file.getParentFile().mkdirs()) {
+				throw new IOException("Could not create " + file.getParentFile());
+			}
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			this.index.put(url.toString(), checksum);
+			writeIndex();
+			return file;
+		} finally {
+			Files.deleteIfExists(tmpFile.toPath());
+		}
+	}
+
+	private File getBlobFile(String checksum, URL url) {
+		String path = url.getPath();
+		String fileName = path.substring(path.lastIndexOf('/') + 1);
+		if (fileName.isEmpty()) fileName = "file";
+		return new File(new File(this.cacheDirectory, checksum), fileName);
+	}
+
+	private void readIndex() {
+		File indexFile = new File(this.cacheDirectory, INDEX_FILE);
+		if (!indexFile.exists()) return;
+		try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int separator = line.lastIndexOf(' ');
+				if (separator > 0) {
+					this.index.put(line.substring(0, separator), line.substring(separator + 1));
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void writeIndex() throws IOException {
+		File tmpFile = new File(this.cacheDirectory, INDEX_FILE + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+			for (Map.Entry<String, String> entry : this.index.entrySet()) {
+				writer.write(entry.getKey() + " " + entry.getValue());
+				writer.newLine();
+			}
+		}
+		Files.move(tmpFile.toPath(), new File(this.cacheDirectory, INDEX_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	static String computeChecksum(File file) {
+		MessageDigest digest = createDigest();
+		try (InputStream in = new DigestInputStream(new FileInputStream(file), digest)) {
+			byte[] buffer = new byte[1 << 16];
+			while (in.read(buffer) >= 0) {
+				// only digest
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return toHex(digest.digest());
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[1 << 16];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+	}
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+}
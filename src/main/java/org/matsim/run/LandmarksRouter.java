@@ -0,0 +1,172 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.run;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.router.util.LeastCostPathCalculator;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.run.PersistedLandmarks.NodeHeap;
+import org.matsim.vehicles.Vehicle;
+
+/**
+ * A* with landmarks (ALT) on the tables of {@link PersistedLandmarks}.  Time-dependent like the routers of the core: the travel time
+ * and disutility of a link are evaluated at the time the link is entered.  The tables are shared, the search state belongs to the
+ * router, i.e. one router per thread.
+ *
+ * @author agent
+ */
+final class LandmarksRouter implements LeastCostPathCalculator {
+
+	private final PersistedLandmarks landmarks;
+	private final TravelDisutility travelCosts;
+	private final TravelTime travelTimes;
+
+	private final double[] costs;
+	private final double[] times;
+	private final int[] previousLinks;
+	private final int[] visited;
+	private final int[] settled;
+	private final NodeHeap heap;
+	private final double[] targetFromLandmarks;
+	private final double[] targetToLandmarks;
+	private int search = 0;
+
+	LandmarksRouter(PersistedLandmarks landmarks, TravelDisutility travelCosts, TravelTime travelTimes) {
+		this.landmarks = landmarks;
+		this.travelCosts = travelCosts;
+		this.travelTimes = travelTimes;
+		int numberOfNodes = landmarks.nodes.length;
+		this.costs = new double[numberOfNodes];
+		this.times = new double[numberOfNodes];
+		this.previousLinks = new int[numberOfNodes];
+		this.visited = new int[numberOfNodes];
+		this.settled = new int[numberOfNodes];
+		this.heap = new NodeHeap(numberOfNodes);
+		this.targetFromLandmarks = new double[landmarks.getNumberOfLandmarks()];
+		this.targetToLandmarks = new double[landmarks.getNumberOfLandmarks()];
+	}
+
+	@Override
+	public Path calcLeastCostPath(Node fromNode, Node toNode, double startTime, Person person, Vehicle vehicle) {
+		int from = this.landmarks.getIndex(fromNode.getId());
+		int to = this.landmarks.getIndex(toNode.getId());
+		if (from < 0 || to < 0) {
+			throw new IllegalArgumentException("Node " + (from < 0 ? fromNode : toNode).getId() + " is not part of the network. Aborting...");
+		}
+		nextSearch();
+		for (int l = 0; l < this.targetFromLandmarks.length; l++) {
+			this.targetFromLandmarks[l] = this.landmarks.getFromLandmark(to, l);
+			this.targetToLandmarks[l] = this.landmarks.getToLandmark(to, l);
+		}
+
+		this.visited[from] = this.search;
+		this.costs[from] = 0.;
+		this.times[from] = startTime;
+		this.previousLinks[from] = -1;
+		this.heap.insert(from, getEstimate(from));
+
+		boolean found = false;
+		while (!this.heap.isEmpty()) {
+			int node = this.heap.poll();
+			if (node == to) {
+				found = true;
+				break;
+			}
+			this.settled[node] = this.search;
+			double time = this.times[node];
+			for (int i = this.landmarks.outOffsets[node]; i < this.landmarks.outOffsets[node + 1]; i++) {
+				int e = this.landmarks.outLinks[i];
+				int next = this.landmarks.linkToNode[e];
+				if (this.settled[next] == this.search) continue;
+				Link link = this.landmarks.links[e];
+				double cost = this.costs[node] + this.travelCosts.getLinkTravelDisutility(link, time, person, vehicle);
+				if (this.visited[next] != this.search) {
+					this.visited[next] = this.search;
+					setNode(next, cost, time + this.travelTimes.getLinkTravelTime(link, time, person, vehicle), e);
+					this.heap.insert(next, cost + getEstimate(next));
+				} else if (cost < this.costs[next]) {
+					setNode(next, cost, time + this.travelTimes.getLinkTravelTime(link, time, person, vehicle), e);
+					this.heap.decreaseKey(next, cost + getEstimate(next));
+				}
+			}
+		}
+		this.heap.clear();
+		if (!found) {
+			// as the core routers
+			return null;
+		}
+
+		List<Node> nodes = new ArrayList<>();
+		List<Link> links = new ArrayList<>();
+		nodes.add(this.landmarks.nodes[to]);
+		for (int e = this.previousLinks[to]; e >= 0; ) {
+			Link link = this.landmarks.links[e];
+			links.add(link);
+			int node = this.landmarks.linkFromNode[e];
+			nodes.add(this.landmarks.nodes[node]);
+			e = this.previousLinks[node];
+		}
+		Collections.reverse(nodes);
+		Collections.reverse(links);
+		return new Path(nodes, links, this.times[to] - startTime, this.costs[to]);
+	}
+
+	private void setNode(int node, double cost, double time, int previousLink) {
+		this.costs[node] = cost;
+		this.times[node] = time;
+		this.previousLinks[node] = previousLink;
+	}
+
+	/**
+	 * Lower bound of the costs from the node to the target, by the triangle inequality with each landmark.
+	 */
+	private double getEstimate(int node) {
+		double estimate = 0.;
+		for (int l = 0; l < this.targetFromLandmarks.length; l++) {
+			double fromLandmark = this.targetFromLandmarks[l] - this.landmarks.getFromLandmark(node, l);
+			if (fromLandmark > estimate && !Double.isInfinite(this.targetFromLandmarks[l])) {
+				estimate = fromLandmark;
+			}
+			double toLandmark = this.landmarks.getToLandmark(node, l) - this.targetToLandmarks[l];
+			if (toLandmark > estimate && !Double.isInfinite(toLandmark)) {
+				estimate = toLandmark;
+			}
+		}
+		return estimate;
+	}
+
+	private void nextSearch() {
+		this.search++;
+		if (this.search == Integer.MAX_VALUE) {
+			Arrays.fill(this.visited, 0);
+			Arrays.fill(this.settled, 0);
+			this.search = 1;
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.run;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.router.util.LeastCostPathCalculator;
+import org.matsim.core.router.util.LeastCostPathCalculatorFactory;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.run.PersistedLandmarks.Graph;
+
+/**
+ * Replaces the FastAStarLandmarks factory of the core: the landmark preprocessing is read from (or written to) a directory instead of
+ * being recomputed for every run, see {@link PersistedLandmarks}.  All routers of a network share one read-only copy of the tables.
+ *
+ * @author agent
+ */
+final class LandmarksRouterFactory implements LeastCostPathCalculatorFactory {
+
+	/** as in the core */
+	static final int NUMBER_OF_LANDMARKS = 16;
+
+	private final String directory;
+	private final Map<Network, Graph> graphs = new HashMap<>();
+	private final Map<MinCosts, PersistedLandmarks> landmarks = new HashMap<>();
+
+	LandmarksRouterFactory(String directory) {
+		this.directory = directory;
+	}
+
+	@Override
+	public LeastCostPathCalculator createPathCalculator(Network network, TravelDisutility travelCosts, TravelTime travelTimes) {
+		Graph graph;
+		synchronized (this.graphs) {
+			graph = this.graphs.computeIfAbsent(network, Graph::new);
+		}
+		// every routing thread has its own disutility instance, the tables only depend on the minimum disutilities
+		MinCosts minCosts = new MinCosts(graph, PersistedLandmarks.getMinCosts(graph, travelCosts));
+		PersistedLandmarks persistedLandmarks;
+		synchronized (this.landmarks) {
+			// the file (and its hash) only for the first router of a network and minimum disutilities
+			persistedLandmarks = this.landmarks.get(minCosts);
+			if (persistedLandmarks == null) {
+				persistedLandmarks = PersistedLandmarks.loadOrCreate(graph, minCosts.values, this.directory, NUMBER_OF_LANDMARKS);
+				this.landmarks.put(minCosts, persistedLandmarks);
+			}
+		}
+		return new LandmarksRouter(persistedLandmarks, travelCosts, travelTimes);
+	}
+
+	/**
+	 * The minimum link disutilities of a graph, compared by value.
+	 */
+	private static final class MinCosts {
+		private final Graph graph;
+		private final double[] values;
+		private final int hashCode;
+
+		MinCosts(Graph graph, double[] values) {
+			this.graph = graph;
+			this.values = values;
+			this.hashCode = 31 * System.identityHashCode(graph) + Arrays.hashCode(values);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof MinCosts)) return false;
+			MinCosts other = (MinCosts) obj;
+			return this.graph == other.graph && Arrays.equals(this.values, other.values);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hashCode;
+		}
+	}
+
+}
@@ -0,0 +1,444 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.run;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.router.util.TravelDisutility;
+
+/**
+ * The routing graph of a network and the landmark tables of {@link LandmarksRouter}: for every node and landmark the least (minimum)
+ * travel disutility from the landmark to the node and from the node to the landmark.
+ * <p>
+ * The tables are stored in a file named after a hash of the network topology and the minimum travel disutility of every link, i.e.
+ * of the network and the scoring parameters which enter the disutility.  If the file exists, it is memory-mapped instead of running
+ * the preprocessing; the mapped tables are shared read-only by all routers.  The landmarks are the nodes farthest from the center in
+ * equal angular sectors.  The tables are kept in double precision, so that the estimates of the router are lower bounds of the actual
+ * costs.
+ *
+ * @author agent
+ */
+final class PersistedLandmarks {
+	private static final Logger log = Logger.getLogger(PersistedLandmarks.class);
+
+	private static final int MAGIC = 0x4C4D4B32; // "LMK2"
+	private static final int HASH_LENGTH = 16;
+	private static final int HEADER_SIZE = 32;
+
+	final Link[] links;
+	final int[] linkFromNode;
+	final int[] linkToNode;
+	final int[] outOffsets;
+	final int[] outLinks;
+	final Node[] nodes;
+	private final Map<Id<Node>, Integer> nodeIndices;
+	private final int numberOfLandmarks;
+	private final DoubleBuffer tables;
+
+	private PersistedLandmarks(Graph graph, int numberOfLandmarks, DoubleBuffer tables) {
+		this.links = graph.links;
+		this.linkFromNode = graph.linkFromNode;
+		this.linkToNode = graph.linkToNode;
+		this.outOffsets = graph.outOffsets;
+		this.outLinks = graph.outLinks;
+		this.nodes = graph.nodes;
+		this.nodeIndices = graph.nodeIndices;
+		this.numberOfLandmarks = numberOfLandmarks;
+		this.tables = tables;
+	}
+
+	static double[] getMinCosts(Graph graph, TravelDisutility travelCosts) {
+		double[] minCosts = new double[graph.links.length];
+		for (int e = 0; e < minCosts.length; e++) {
+			minCosts[e] = travelCosts.getLinkMinimumTravelDisutility(graph.links[e]);
+		}
+		return minCosts;
+	}
+
+	/**
+	 * Maps the landmark tables of the graph and minimum link disutilities from the directory, or computes and writes them if there are
+	 * none.
+	 */
+	static PersistedLandmarks loadOrCreate(Graph graph, double[] minCosts, String directory, int numberOfLandmarks) {
+		byte[] hash = hash(graph, minCosts, numberOfLandmarks);
+		File file = new File(directory, "landmarks-" + toHex(hash) + ".bin");
+
+		if (file.exists()) {
+			DoubleBuffer tables = map(file, hash, graph.nodes.length);
+			if (tables != null) {
+				log.info("Landmarks mapped from " + file);
+				return new PersistedLandmarks(graph, tables.capacity() / (2 * Math.max(1, graph.nodes.length)), tables);
+			}
+			log.warn(file + " does not match the network. Recomputing the landmarks.");
+		}
+
+		long start = System.currentTimeMillis();
+		int[] landmarks = selectLandmarks(graph, numberOfLandmarks);
+		double[] tables = computeTables(graph, minCosts, landmarks);
+		log.info("Landmarks computed in " + (System.currentTimeMillis() - start) / 1000 + " seconds.");
+		write(file, hash, graph.nodes.length, landmarks.length, tables);
+		DoubleBuffer mappedTables = map(file, hash, graph.nodes.length);
+		if (mappedTables == null) {
+			throw new RuntimeException("Could not read " + file + " after writing it. Aborting...");
+		}
+		return new PersistedLandmarks(graph, landmarks.length, mappedTables);
+	}
+
+	int getIndex(Id<Node> nodeId) {
+		Integer index = this.nodeIndices.get(nodeId);
+		return index == null ? -1 : index;
+	}
+
+	int getNumberOfLandmarks() {
+		return this.numberOfLandmarks;
+	}
+
+	/**
+	 * @return the least travel disutility from the landmark to the node, infinite if there is no path
+	 */
+	double getFromLandmark(int node, int landmark) {
+		return this.tables.get(2 * (node * this.numberOfLandmarks + landmark));
+	}
+
+	/**
+	 * @return the least travel disutility from the node to the landmark, infinite if there is no path
+	 */
+	double getToLandmark(int node, int landmark) {
+		return this.tables.get(2 * (node * this.numberOfLandmarks + landmark) + 1);
+	}
+
+	private static int[] selectLandmarks(Graph graph, int numberOfLandmarks) {
+		double centerX = 0.;
+		double centerY = 0.;
+		for (Node node : graph.nodes) {
+			centerX += node.getCoord().getX();
+			centerY += node.getCoord().getY();
+		}
+		centerX /= Math.max(1, graph.nodes.length);
+		centerY /= Math.max(1, graph.nodes.length);
+
+		int[] farthest = new int[numberOfLandmarks];
+		double[] distances = new double[numberOfLandmarks];
+		Arrays.fill(farthest, -1);
+		for (int n = 0; n < graph.nodes.length; n++) {
+			double dx = graph.nodes[n].getCoord().getX() - centerX;
+			double dy = graph.nodes[n].getCoord().getY() - centerY;
+			int sector = (int) ((Math.atan2(dy, dx) + Math.PI) / (2. * Math.PI) * numberOfLandmarks);
+			sector = Math.min(sector, numberOfLandmarks - 1);
+			double distance = dx * dx + dy * dy;
+			if (farthest[sector] < 0 || distance > distances[sector]) {
+				farthest[sector] = n;
+				distances[sector] = distance;
+			}
+		}
+		// empty sectors are left out
+		return Arrays.stream(farthest).filter(n -> n >= 0).toArray();
+	}
+
+	private static double[] computeTables(Graph graph, double[] minCosts, int[] landmarks) {
+		int numberOfNodes = graph.nodes.length;
+		// the reversed graph: the links entering a node, for the costs towards a landmark
+		int[] inOffsets = new int[numberOfNodes + 1];
+		for (int e = 0; e < graph.links.length; e++) {
+			inOffsets[graph.linkToNode[e] + 1]++;
+		}
+		for (int n = 0; n < numberOfNodes; n++) {
+			inOffsets[n + 1] += inOffsets[n];
+		}
+		int[] inLinks = new int[graph.links.length];
+		int[] fill = Arrays.copyOf(inOffsets, numberOfNodes);
+		for (int e = 0; e < graph.links.length; e++) {
+			inLinks[fill[graph.linkToNode[e]]++] = e;
+		}
+
+		double[] tables = new double[2 * numberOfNodes * landmarks.length];
+		IntStream.range(0, 2 * landmarks.length).parallel().forEach(i -> {
+			int landmark = i / 2;
+			double[] costs;
+			if (i % 2 == 0) {
+				costs = dijkstra(landmarks[landmark], graph.outOffsets, graph.outLinks, graph.linkToNode, minCosts);
+			} else {
+				costs = dijkstra(landmarks[landmark], inOffsets, inLinks, graph.linkFromNode, minCosts);
+			}
+			for (int n = 0; n < numberOfNodes; n++) {
+				tables[2 * (n * landmarks.length + landmark) + i % 2] = costs[n];
+			}
+		});
+		return tables;
+	}
+
+	/**
+	 * Least costs from one node, following the given adjacency; for the costs to the node, pass the adjacency of the reversed graph.
+	 */
+	private static double[] dijkstra(int source, int[] offsets, int[] adjacentLinks, int[] linkTarget, double[] linkCosts) {
+		double[] costs = new double[offsets.length - 1];
+		Arrays.fill(costs, Double.POSITIVE_INFINITY);
+		NodeHeap heap = new NodeHeap(costs.length);
+		costs[source] = 0.;
+		heap.insert(source, 0.);
+		while (!heap.isEmpty()) {
+			int node = heap.poll();
+			for (int i = offsets[node]; i < offsets[node + 1]; i++) {
+				int e = adjacentLinks[i];
+				int next = linkTarget[e];
+				double cost = costs[node] + linkCosts[e];
+				if (cost < costs[next]) {
+					// with non-negative costs, a node which is not queued any more cannot improve
+					costs[next] = cost;
+					if (heap.contains(next)) {
+						heap.decreaseKey(next, cost);
+					} else {
+						heap.insert(next, cost);
+					}
+				}
+			}
+		}
+		return costs;
+	}
+
+	private static byte[] hash(Graph graph, double[] minCosts, int numberOfLandmarks) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			ByteBuffer buffer = ByteBuffer.allocate(20);
+			buffer.putInt(numberOfLandmarks).putInt(graph.nodes.length).putInt(graph.links.length);
+			digest.update(buffer.array(), 0, 12);
+			for (Node node : graph.nodes) {
+				digest.update(node.getId().toString().getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+			}
+			for (int e = 0; e < graph.links.length; e++) {
+				buffer.clear();
+				buffer.putInt(graph.linkFromNode[e]).putInt(graph.linkToNode[e]).putDouble(minCosts[e]);
+				digest.update(buffer.array(), 0, 16);
+			}
+			return Arrays.copyOf(digest.digest(), HASH_LENGTH);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	private static void write(File file, byte[] hash, int numberOfNodes, int numberOfLandmarks, double[] tables) {
+		try {
+			Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+			// written under a temporary name, so that parallel runs never map a half-written file
+			Path tmp = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), file.getName(), ".tmp");
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(numberOfNodes).putInt(numberOfLandmarks).put(hash);
+				header.rewind();
+				channel.write(header);
+				ByteBuffer data = ByteBuffer.allocate(8 * tables.length);
+				data.asDoubleBuffer().put(tables);
+				while (data.hasRemaining()) {
+					channel.write(data);
+				}
+			}
+			Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		log.info("Landmarks written to " + file);
+	}
+
+	/**
+	 * @return the mapped tables, null if the header does not match
+	 */
+	private static DoubleBuffer map(File file, byte[] hash, int numberOfNodes) {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (header.hasRemaining() && channel.read(header) >= 0) {
+			}
+			header.flip();
+			if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != numberOfNodes) {
+				return null;
+			}
+			int numberOfLandmarks = header.getInt();
+			byte[] fileHash = new byte[HASH_LENGTH];
+			header.get(fileHash);
+			long size = 16L * numberOfNodes * numberOfLandmarks;
+			if (!Arrays.equals(hash, fileHash) || channel.size() != HEADER_SIZE + size) {
+				return null;
+			}
+			// the mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size).asDoubleBuffer();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * The network in arrays, the node and link order of the network.
+	 */
+	static final class Graph {
+		final Node[] nodes;
+		final Map<Id<Node>, Integer> nodeIndices = new HashMap<>();
+		final Link[] links;
+		final int[] linkFromNode;
+		final int[] linkToNode;
+		final int[] outOffsets;
+		final int[] outLinks;
+
+		Graph(Network network) {
+			this.nodes = network.getNodes().values().toArray(new Node[0]);
+			for (int n = 0; n < this.nodes.length; n++) {
+				this.nodeIndices.put(this.nodes[n].getId(), n);
+			}
+			this.links = network.getLinks().values().toArray(new Link[0]);
+			this.linkFromNode = new int[this.links.length];
+			this.linkToNode = new int[this.links.length];
+			this.outOffsets = new int[this.nodes.length + 1];
+			for (int e = 0; e < this.links.length; e++) {
+				this.linkFromNode[e] = this.nodeIndices.get(this.links[e].getFromNode().getId());
+				this.linkToNode[e] = this.nodeIndices.get(this.links[e].getToNode().getId());
+				this.outOffsets[this.linkFromNode[e] + 1]++;
+			}
+			for (int n = 0; n < this.nodes.length; n++) {
+				this.outOffsets[n + 1] += this.outOffsets[n];
+			}
+			this.outLinks = new int[this.links.length];
+			int[] fill = Arrays.copyOf(this.outOffsets, this.nodes.length);
+			for (int e = 0; e < this.links.length; e++) {
+				this.outLinks[fill[this.linkFromNode[e]]++] = e;
+			}
+		}
+	}
+
+	/**
+	 * Binary min-heap of node indices with decrease-key, for the preprocessing and the routers.
+	 */
+	static final class NodeHeap {
+		private final int[] heap;
+		private final int[] positions;
+		private final double[] keys;
+		private int size = 0;
+
+		NodeHeap(int numberOfNodes) {
+			this.heap = new int[numberOfNodes];
+			this.positions = new int[numberOfNodes];
+			this.keys = new double[numberOfNodes];
+			Arrays.fill(this.positions, -1);
+		}
+
+		boolean isEmpty() {
+			return this.size == 0;
+		}
+
+		boolean contains(int node) {
+			return this.positions[node] >= 0;
+		}
+
+		void clear() {
+			for (int i = 0; i < this.size; i++) {
+				this.positions[this.heap[i]] = -1;
+			}
+			this.size = 0;
+		}
+
+		void insert(int node, double key) {
+			this.keys[node] = key;
+			this.heap[this.size] = node;
+			this.positions[node] = this.size;
+			this.size++;
+			siftUp(this.size - 1);
+		}
+
+		void decreaseKey(int node, double key) {
+			this.keys[node] = key;
+			siftUp(this.positions[node]);
+		}
+
+		int poll() {
+			int first = this.heap[0];
+			this.positions[first] = -1;
+			this.size--;
+			if (this.size > 0) {
+				int last = this.heap[this.size];
+				this.heap[0] = last;
+				this.positions[last] = 0;
+				siftDown(0);
+			}
+			return first;
+		}
+
+		private void siftUp(int position) {
+			int node = this.heap[position];
+			double key = this.keys[node];
+			while (position > 0) {
+				int parent = (position - 1) / 2;
+				int parentNode = this.heap[parent];
+				if (this.keys[parentNode] <= key) break;
+				this.heap[position] = parentNode;
+				this.positions[parentNode] = position;
+				position = parent;
+			}
+			this.heap[position] = node;
+			this.positions[node] = position;
+		}
+
+		private void siftDown(int position) {
+			int node = this.heap[position];
+			double key = this.keys[node];
+			while (true) {
+				int child = 2 * position + 1;
+				if (child >= this.size) break;
+				if (child + 1 < this.size && this.keys[this.heap[child + 1]] < this.keys[this.heap[child]]) {
+					child++;
+				}
+				int childNode = this.heap[child];
+				if (this.keys[childNode] >= key) break;
+				this.heap[position] = childNode;
+				this.positions[childNode] = position;
+				position = child;
+			}
+			this.heap[position] = node;
+			this.positions[node] = position;
+		}
+	}
+
+}
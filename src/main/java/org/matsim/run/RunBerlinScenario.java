@@ -22,20 +22,28 @@ package org.matsim.run;
 import static org.matsim.core.config.groups.ControlerConfigGroup.RoutingAlgorithmType.FastAStarLandmarks;
 
 import org.apache.log4j.Logger;
+import org.matsim.analysis.AsyncEventsWritingModule;
+import org.matsim.analysis.BerlinEmissionsSetup;
+import org.matsim.analysis.OnlineEmissionsModule;
+import org.matsim.analysis.PhaseStatisticsModule;
 import org.matsim.analysis.ScoreStats;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.population.Population;
+import org.matsim.contrib.emissions.utils.EmissionsConfigGroup;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigGroup;
 import org.matsim.core.config.ConfigUtils;
-import org.matsim.core.config.groups.PlanCalcScoreConfigGroup.ActivityParams;
 import org.matsim.core.config.groups.QSimConfigGroup.TrafficDynamics;
 import org.matsim.core.controler.AbstractModule;
 import org.matsim.core.controler.Controler;
 import org.matsim.core.controler.OutputDirectoryLogging;
+import org.matsim.core.router.util.LeastCostPathCalculatorFactory;
 import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.router.TransitRouter;
+import org.matsim.run.BerlinExperimentalConfigGroup.ThreadAllocation;
 
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
 import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorModule;
 
 /**
@@ -51,6 +59,9 @@ public class RunBerlinScenario {
 	private Config config;
 	private Scenario scenario;
 	private Controler controler;
+	private Scenario sharedInfrastructure = null;
+	private SwissRailRaptorData sharedRaptorData = null;
+	private int numberOfCores = Runtime.getRuntime().availableProcessors();
 	
 	private boolean hasPreparedConfig = false ;
 	private boolean hasPreparedScenario = false ;
@@ -80,6 +91,14 @@ public class RunBerlinScenario {
 			prepareScenario() ;
 		}
 		
+		BerlinExperimentalConfigGroup berlinCfg = ConfigUtils.addOrGetModule( config, BerlinExperimentalConfigGroup.class );
+		if ( berlinCfg.getThreadAllocation() != ThreadAllocation.fromConfig ) {
+			// replanning and qsim do not run at the same time, so both can use all cores
+			config.global().setNumberOfThreads( numberOfCores );
+			config.qsim().setNumberOfThreads( numberOfCores );
+			log.info( "Using " + numberOfCores + " global and qsim threads." );
+		}
+		
 		controler = new Controler( scenario );
 		
 		if (controler.getConfig().transit().isUsingTransitInMobsim()) {
@@ -90,6 +109,16 @@ public class RunBerlinScenario {
 					install( new SwissRailRaptorModule() );
 				}
 			} );
+			if ( sharedRaptorData != null ) {
+				// the raptor data of the shared transit schedule is prepared once for all variants of a batch run
+				final SharedSwissRailRaptorProvider transitRouterProvider = new SharedSwissRailRaptorProvider( sharedRaptorData );
+				controler.addOverridingModule( new AbstractModule() {
+					@Override
+					public void install() {
+						bind( TransitRouter.class ).toProvider( transitRouterProvider );
+					}
+				} );
+			}
 		} else {
 			log.warn("Public transit will be teleported and not simulated in the mobsim! "
 					+ "This will have a significant effect on pt-related parameters (travel times, modal split, and so on). "
@@ -105,6 +134,40 @@ public class RunBerlinScenario {
 			}
 		} );
 		
+		if ( berlinCfg.getLandmarksDirectory() != null && config.controler().getRoutingAlgorithmType() == FastAStarLandmarks ) {
+			// landmark tables from disk instead of the preprocessing of the core
+			final LandmarksRouterFactory landmarksRouterFactory = new LandmarksRouterFactory( berlinCfg.getLandmarksDirectory() );
+			controler.addOverridingModule( new AbstractModule() {
+				@Override
+				public void install() {
+					bind( LeastCostPathCalculatorFactory.class ).toInstance( landmarksRouterFactory );
+				}
+			} );
+		}
+		
+		if ( berlinCfg.getThreadAllocation() == ThreadAllocation.adaptiveQSim ) {
+			controler.addOverridingModule( new AdaptiveQSimThreadsModule( numberOfCores ) );
+		}
+		
+		if ( berlinCfg.getConvergenceIterations() > 0 ) {
+			// end the run early once score, modal split and link volumes are stable
+			controler.addOverridingModule( new ConvergenceStoppingModule( berlinCfg ) );
+		}
+		
+		if ( berlinCfg.isAsyncEventWriting() ) {
+			controler.addOverridingModule( new AsyncEventsWritingModule() );
+		}
+		
+		if ( berlinCfg.isOnlineEmissions() ) {
+			// compute the emissions from the live event stream in the selected iterations
+			controler.addOverridingModule( new OnlineEmissionsModule( berlinCfg.getOnlineEmissionsInterval(), berlinCfg.isOnlineEmissionsInLastIteration() ) );
+		}
+		
+		if ( berlinCfg.isWritePhaseStatistics() ) {
+			// wall time, cpu time and memory of replanning, mobsim, scoring and iteration end
+			controler.addOverridingModule( new PhaseStatisticsModule() );
+		}
+		
 		for ( AbstractModule overridingModule : overridingModules ) {
 			controler.addOverridingModule( overridingModule );
 		}
@@ -128,7 +191,66 @@ public class RunBerlinScenario {
 		// note that the path for this is different when run from GUI (path of original config) vs.
 		// when run from command line/IDE (java root).  :-(    See comment in method.  kai, jul'18
 		
-		scenario = ScenarioUtils.loadScenario( config );
+		BerlinExperimentalConfigGroup berlinCfg = ConfigUtils.addOrGetModule( config, BerlinExperimentalConfigGroup.class );
+		if ( berlinCfg.getInputFileCacheDirectory() != null ) {
+			new InputFileCache( berlinCfg.getInputFileCacheDirectory() ).localizeInputs( config );
+		}
+		
+		long usedHeapBeforeLoading = berlinCfg.isCompactPopulation() ? CompactPopulation.getUsedHeap() : 0 ;
+		
+		scenario = null;
+		if ( sharedInfrastructure != null ) {
+			// network and transit schedule are shared with the other variants of a batch run
+			scenario = RunBerlinScenarioBatch.loadScenario( config, sharedInfrastructure );
+		}
+		
+		String snapshotFingerprint = null;
+		if ( scenario == null && berlinCfg.getScenarioSnapshotFile() != null ) {
+			snapshotFingerprint = ScenarioSnapshot.computeFingerprint( config );
+			if ( snapshotFingerprint == null ) {
+				log.warn( "The scenario snapshot is only used with local network and plans files. Set "
+						+ "inputFileCacheDirectory to keep local copies of the remote input files. Not using the snapshot." );
+			} else if ( berlinCfg.isReadScenarioSnapshot() ) {
+				if ( ScenarioSnapshot.matches( berlinCfg.getScenarioSnapshotFile(), snapshotFingerprint ) ) {
+					scenario = ScenarioSnapshot.loadScenario( config, berlinCfg.getScenarioSnapshotFile(), snapshotFingerprint );
+				} else {
+					log.warn( "No scenario snapshot for these input files. Loading the scenario from the input files." );
+				}
+			}
+		}
+		
+		boolean isCompact = false;
+		if ( scenario == null ) {
+			if ( berlinCfg.isCompactPopulation() ) {
+				scenario = CompactPopulation.loadScenario( config );
+				isCompact = true;
+			} else {
+				scenario = ScenarioUtils.loadScenario( config );
+			}
+			if ( snapshotFingerprint != null && berlinCfg.isWriteScenarioSnapshot() ) {
+				ScenarioSnapshot.write( scenario, berlinCfg.getScenarioSnapshotFile(), snapshotFingerprint );
+			}
+		}
+		
+		if ( berlinCfg.isCompactPopulation() ) {
+			if ( !isCompact ) {
+				// population from the snapshot or loaded for the shared infrastructure
+				CompactPopulation.compact( scenario );
+			}
+			log.info( "Heap per agent (including the network and other scenario data): "
+					+ ( CompactPopulation.getUsedHeap() - usedHeapBeforeLoading ) / Math.max( 1, scenario.getPopulation().getPersons().size() ) + " bytes." );
+		}
+		
+		if ( berlinCfg.isOnlineEmissions() ) {
+			// after loading the overriding config, which may switch on the online emissions
+			BerlinEmissionsSetup.configure( ConfigUtils.addOrGetModule( config, EmissionsConfigGroup.class ) );
+			if ( sharedInfrastructure != null ) {
+				// the shared network was annotated before any variant started
+				BerlinEmissionsSetup.setVehicleTypeDescriptions( scenario.getVehicles() );
+			} else {
+				BerlinEmissionsSetup.prepareScenario( scenario );
+			}
+		}
 
 		hasPreparedScenario = true ;
 		return scenario;
@@ -139,6 +261,8 @@ public class RunBerlinScenario {
 		
 		config = ConfigUtils.loadConfig( configFileName, customModules ) ; // I need this to set the context
 		
+		ConfigUtils.addOrGetModule( config, BerlinExperimentalConfigGroup.class );
+		
 		config.controler().setRoutingAlgorithmType( FastAStarLandmarks );
 		
 		config.subtourModeChoice().setProbaForRandomSingleTripMode( 0.5 );
@@ -153,43 +277,8 @@ public class RunBerlinScenario {
 		config.qsim().setUsingTravelTimeCheckInTeleportation( true );
 		config.qsim().setTrafficDynamics( TrafficDynamics.kinematicWaves );
 		
-		// activities:
-		for ( long ii = 600 ; ii <= 97200; ii+=600 ) {
-			final ActivityParams params = new ActivityParams( "home_" + ii + ".0" ) ;
-			params.setTypicalDuration( ii );
-			config.planCalcScore().addActivityParams( params );
-		}
-		for ( long ii = 600 ; ii <= 97200; ii+=600 ) {
-			final ActivityParams params = new ActivityParams( "work_" + ii + ".0" ) ;
-			params.setTypicalDuration( ii );
-			params.setOpeningTime(6. * 3600.);
-			params.setClosingTime(20. * 3600.);
-			config.planCalcScore().addActivityParams( params );
-		}
-		for ( long ii = 600 ; ii <= 97200; ii+=600 ) {
-			final ActivityParams params = new ActivityParams( "leisure_" + ii + ".0" ) ;
-			params.setTypicalDuration( ii );
-			params.setOpeningTime(9. * 3600.);
-			params.setClosingTime(27. * 3600.);
-			config.planCalcScore().addActivityParams( params );
-		}
-		for ( long ii = 600 ; ii <= 97200; ii+=600 ) {
-			final ActivityParams params = new ActivityParams( "shopping_" + ii + ".0" ) ;
-			params.setTypicalDuration( ii );
-			params.setOpeningTime(8. * 3600.);
-			params.setClosingTime(20. * 3600.);
-			config.planCalcScore().addActivityParams( params );
-		}
-		for ( long ii = 600 ; ii <= 97200; ii+=600 ) {
-			final ActivityParams params = new ActivityParams( "other_" + ii + ".0" ) ;
-			params.setTypicalDuration( ii );
-			config.planCalcScore().addActivityParams( params );
-		}
-		{
-			final ActivityParams params = new ActivityParams( "freight" ) ;
-			params.setTypicalDuration( 12.*3600. );
-			config.planCalcScore().addActivityParams( params );
-		}
+		// activities: home_600.0 ... other_97200.0 and freight
+		BerlinActivityTypes.addActivityParams( config.planCalcScore() );
 		
 		hasPreparedConfig = true ;
 		return config ;
@@ -203,6 +292,34 @@ public class RunBerlinScenario {
 		log.info("Done.");
 	}
 	
+	/**
+	 * Use the network and transit schedule of the given scenario instead of loading them, see {@link RunBerlinScenarioBatch}.
+	 */
+	final void setSharedInfrastructure( Scenario infrastructure ) {
+		if ( hasPreparedScenario ) {
+			throw new RuntimeException( "The scenario is already prepared. Aborting..." );
+		}
+		this.sharedInfrastructure = infrastructure;
+	}
+	
+	/**
+	 * Use the given raptor data of the shared transit schedule instead of preparing it, see {@link RunBerlinScenarioBatch}.
+	 */
+	final void setSharedRaptorData( SwissRailRaptorData raptorData ) {
+		if ( hasPreparedControler ) {
+			throw new RuntimeException( "The controler is already prepared. Aborting..." );
+		}
+		this.sharedRaptorData = raptorData;
+	}
+	
+	/**
+	 * The number of cores for {@link ThreadAllocation#detectCores} and {@link ThreadAllocation#adaptiveQSim}, by default all cores of the
+	 * machine.
+	 */
+	final void setNumberOfCores( int numberOfCores ) {
+		this.numberOfCores = numberOfCores;
+	}
+	
 	final ScoreStats getScoreStats() {
 		return controler.getScoreStats() ;
 	}
@@ -0,0 +1,267 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.run;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.matsim.analysis.HbefaRoadTypeAnnotator;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigGroup;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.config.TransitRouterConfigGroup;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.Vehicles;
+
+import ch.sbb.matsim.routing.pt.raptor.RaptorUtils;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
+
+/**
+ * Runs several variants of the Berlin scenario, each defined by its own overriding config, in one JVM.  The network and the transit
+ * schedule are loaded once and shared by all variants, as is the SwissRailRaptor data of the transit schedule.  The network is
+ * annotated with the HBEFA road types before any variant starts and is not modified afterwards (time variant networks are not
+ * supported); variants that change the network, the transit schedule or the settings of the raptor data are rejected.
+ * Population, vehicles and all other inputs are loaded per variant.
+ * <p>
+ * Up to numberOfParallelRuns variants run at the same time, the cores are divided between them (global and qsim threads, or the
+ * cores available to {@link BerlinExperimentalConfigGroup.ThreadAllocation}).  The scenarios are prepared one after the other, so
+ * that the populations of variants that have not started yet are not held in memory.
+ * Every variant needs its own output directory.
+ * <p>
+ * Note that the MATSim random number generator and the log file are global to the JVM: parallel runs are not reproducible and their
+ * log entries end up in each other's log files.  For reproducible results, use numberOfParallelRuns = 1.
+ *
+ * @author agent
+ */
+public final class RunBerlinScenarioBatch {
+	private static final Logger log = Logger.getLogger(RunBerlinScenarioBatch.class);
+
+	private final String configFileName;
+	private final List<String> overridingConfigFileNames;
+	private final int numberOfParallelRuns;
+
+	private final Set<String> outputDirectories = new HashSet<>();
+	private Scenario infrastructure;
+	private SwissRailRaptorData raptorData;
+
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			throw new RuntimeException("Expected arguments: configFile numberOfParallelRuns overridingConfigFile1 [overridingConfigFile2 ...]. Aborting...");
+		}
+		String configFileName = args[0];
+		int numberOfParallelRuns = Integer.parseInt(args[1]);
+		List<String> overridingConfigFileNames = Arrays.asList(args).subList(2, args.length);
+		log.info("config file: " + configFileName);
+		log.info("variants: " + overridingConfigFileNames);
+		new RunBerlinScenarioBatch(configFileName, overridingConfigFileNames, numberOfParallelRuns).run();
+	}
+
+	public RunBerlinScenarioBatch(String configFileName, List<String> overridingConfigFileNames, int numberOfParallelRuns) {
+		if (numberOfParallelRuns < 1) {
+			throw new RuntimeException("The number of parallel runs must be at least 1. Aborting...");
+		}
+		this.configFileName = configFileName;
+		this.overridingConfigFileNames = new ArrayList<>(overridingConfigFileNames);
+		this.numberOfParallelRuns = Math.min(numberOfParallelRuns, Math.max(1, overridingConfigFileNames.size()));
+	}
+
+	public void run() {
+		this.infrastructure = loadInfrastructure(this.configFileName);
+		if (this.infrastructure.getConfig().transit().isUsingTransitInMobsim()) {
+			log.info("Preparing the shared raptor data...");
+			this.raptorData = SwissRailRaptorData.create(this.infrastructure.getTransitSchedule(),
+					RaptorUtils.createStaticConfig(this.infrastructure.getConfig()), this.infrastructure.getNetwork());
+		}
+		if (this.numberOfParallelRuns > 1) {
+			log.warn("Parallel variants share the random number generator and the log file: their results are not reproducible.");
+		}
+		int numberOfThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / this.numberOfParallelRuns);
+		log.info("Running " + this.overridingConfigFileNames.size() + " variants, " + this.numberOfParallelRuns + " at a time with "
+				+ numberOfThreads + " threads each.");
+
+		ExecutorService executor = Executors.newFixedThreadPool(this.numberOfParallelRuns);
+		List<Future<?>> futures = new ArrayList<>();
+		for (String overridingConfigFileName : this.overridingConfigFileNames) {
+			futures.add(executor.submit(() -> runVariant(overridingConfigFileName, numberOfThreads)));
+		}
+		executor.shutdown();
+
+		List<String> failedVariants = new ArrayList<>();
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				futures.get(i).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				log.error("Variant " + this.overridingConfigFileNames.get(i) + " failed.", e.getCause());
+				failedVariants.add(this.overridingConfigFileNames.get(i));
+			}
+		}
+		if (!failedVariants.isEmpty()) {
+			throw new RuntimeException("Variants " + failedVariants + " failed. Aborting...");
+		}
+		log.info("Done.");
+	}
+
+	private void runVariant(String overridingConfigFileName, int numberOfThreads) {
+		RunBerlinScenario berlin = new RunBerlinScenario(this.configFileName, overridingConfigFileName);
+		berlin.setSharedInfrastructure(this.infrastructure);
+		berlin.setSharedRaptorData(this.raptorData);
+		berlin.setNumberOfCores(numberOfThreads);
+		synchronized (this.infrastructure) {
+			// one at a time, so that only the populations of the running variants are held in memory
+			Config config = berlin.prepareScenario().getConfig();
+			if (this.raptorData != null) {
+				checkSameRaptorSettings(config, this.infrastructure.getConfig());
+			}
+			String outputDirectory = new File(config.controler().getOutputDirectory()).getAbsolutePath();
+			if (!this.outputDirectories.add(outputDirectory)) {
+				throw new RuntimeException("Output directory " + outputDirectory + " of " + overridingConfigFileName + " is used by another variant. Aborting...");
+			}
+			config.global().setNumberOfThreads(numberOfThreads);
+			config.qsim().setNumberOfThreads(numberOfThreads);
+			berlin.prepareControler();
+		}
+		berlin.run();
+	}
+
+	/**
+	 * Loads network and transit schedule of the config (as prepared by {@link RunBerlinScenario#prepareConfig(ConfigGroup...)}) and
+	 * annotates the network with the HBEFA road types, which the variants with online emissions read.
+	 */
+	static Scenario loadInfrastructure(String configFileName) {
+		Config config = new RunBerlinScenario(configFileName, null).prepareConfig();
+		BerlinExperimentalConfigGroup berlinCfg = ConfigUtils.addOrGetModule(config, BerlinExperimentalConfigGroup.class);
+		if (berlinCfg.getInputFileCacheDirectory() != null) {
+			new InputFileCache(berlinCfg.getInputFileCacheDirectory()).localizeInputs(config);
+		}
+		config.plans().setInputFile(null);
+		config.plans().setInputPersonAttributeFile(null);
+		config.vehicles().setVehiclesFile(null);
+		config.transit().setVehiclesFile(null);
+		config.facilities().setInputFile(null);
+		config.households().setInputFile(null);
+		log.info("Loading the shared network and transit schedule...");
+		Scenario infrastructure = ScenarioUtils.loadScenario(config);
+		HbefaRoadTypeAnnotator.annotate(infrastructure.getNetwork());
+		return infrastructure;
+	}
+
+	/**
+	 * Loads the scenario of the config, but with network and transit schedule of the infrastructure.  The config must refer to the
+	 * same network and transit schedule files.
+	 */
+	static Scenario loadScenario(Config config, Scenario infrastructure) {
+		Config infrastructureConfig = infrastructure.getConfig();
+		checkSameFile(config, config.network().getInputFile(), infrastructureConfig, infrastructureConfig.network().getInputFile(), "network");
+		if (config.transit().isUseTransit()) {
+			if (!infrastructureConfig.transit().isUseTransit()) {
+				throw new RuntimeException("The variant uses transit, but the shared infrastructure does not. Aborting...");
+			}
+			checkSameFile(config, config.transit().getTransitScheduleFile(), infrastructureConfig,
+					infrastructureConfig.transit().getTransitScheduleFile(), "transit schedule");
+		}
+		if (config.network().isTimeVariantNetwork()) {
+			throw new RuntimeException("A time variant network cannot be shared between variants. Aborting...");
+		}
+
+		String networkFile = config.network().getInputFile();
+		String transitScheduleFile = config.transit().getTransitScheduleFile();
+		config.network().setInputFile(null);
+		config.transit().setTransitScheduleFile(null);
+		Scenario loaded;
+		try {
+			loaded = ScenarioUtils.loadScenario(config);
+		} finally {
+			config.network().setInputFile(networkFile);
+			config.transit().setTransitScheduleFile(transitScheduleFile);
+		}
+
+		ScenarioUtils.ScenarioBuilder builder = new ScenarioUtils.ScenarioBuilder(config)
+				.setNetwork(infrastructure.getNetwork())
+				.setPopulation(loaded.getPopulation())
+				.setActivityFacilities(loaded.getActivityFacilities())
+				.setHouseholds(loaded.getHouseholds())
+				.setVehicles(loaded.getVehicles());
+		if (config.transit().isUseTransit()) {
+			builder.setTransitSchedule(infrastructure.getTransitSchedule());
+		}
+		Scenario scenario = builder.build();
+		copyVehicles(loaded.getTransitVehicles(), scenario.getTransitVehicles());
+		return scenario;
+	}
+
+	/**
+	 * The raptor data depends on the transit router and raptor settings and on the walk speed.
+	 */
+	static void checkSameRaptorSettings(Config config, Config infrastructureConfig) {
+		for (String groupName : new String[] { TransitRouterConfigGroup.GROUP_NAME, "swissRailRaptor" }) {
+			checkSameParams(config.getModules().get(groupName), infrastructureConfig.getModules().get(groupName), groupName);
+		}
+		for (String mode : new String[] { TransportMode.walk, TransportMode.transit_walk }) {
+			checkSameParams(config.plansCalcRoute().getModeRoutingParams().get(mode),
+					infrastructureConfig.plansCalcRoute().getModeRoutingParams().get(mode), mode + " routing");
+		}
+	}
+
+	private static void checkSameParams(ConfigGroup group, ConfigGroup infrastructureGroup, String name) {
+		Map<String, String> params = group == null ? Collections.emptyMap() : group.getParams();
+		Map<String, String> infrastructureParams = infrastructureGroup == null ? Collections.emptyMap() : infrastructureGroup.getParams();
+		if (!params.equals(infrastructureParams)) {
+			throw new RuntimeException("The " + name + " settings " + params + " differ from the shared " + infrastructureParams
+					+ ". The raptor data is shared, so the variants must not change them. Aborting...");
+		}
+	}
+
+	private static void checkSameFile(Config config, String file, Config infrastructureConfig, String infrastructureFile, String name) {
+		String url = file == null ? null : ConfigGroup.getInputFileURL(config.getContext(), file).toString();
+		String infrastructureUrl = infrastructureFile == null ? null : ConfigGroup.getInputFileURL(infrastructureConfig.getContext(), infrastructureFile).toString();
+		if (url == null ? infrastructureUrl != null : !url.equals(infrastructureUrl)) {
+			throw new RuntimeException("The " + name + " " + url + " differs from the shared " + name + " " + infrastructureUrl
+					+ ". The variants must not change it. Aborting...");
+		}
+	}
+
+	private static void copyVehicles(Vehicles from, Vehicles to) {
+		for (VehicleType vehicleType : from.getVehicleTypes().values()) {
+			to.addVehicleType(vehicleType);
+		}
+		for (Vehicle vehicle : from.getVehicles().values()) {
+			to.addVehicle(vehicle);
+		}
+	}
+
+}
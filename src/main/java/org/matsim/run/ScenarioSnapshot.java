@@ -0,0 +1,461 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.run;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.api.core.v01.population.PopulationFactory;
+import org.matsim.api.core.v01.population.Route;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigGroup;
+import org.matsim.core.population.routes.RouteFactories;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.utils.objectattributes.ObjectAttributesXmlReader;
+
+/**
+ * Binary snapshot of the network and the population (with all plans and routes) of a loaded scenario.  Reading the snapshot is much
+ * faster than parsing the gzipped xml files.
+ * <p>
+ * The snapshot contains a fingerprint of the network and plans input files (see {@link #computeFingerprint(Config)}) and is only
+ * restored if the fingerprint matches.  Not contained: link and person attributes of the xml files (the person attributes file is still
+ * read), transit schedule, vehicles, facilities.
+ *
+ * @author agent
+ */
+public final class ScenarioSnapshot {
+	private static final Logger log = Logger.getLogger(ScenarioSnapshot.class);
+
+	private static final int MAGIC = 0x42534e31; // "BSN1"
+	private static final int VERSION = 1;
+
+	private static final byte ACTIVITY = 0;
+	private static final byte LEG = 1;
+
+	private ScenarioSnapshot() {
+	}
+
+	/**
+	 * Hash of the network and plans file names, their size and modification time.  Remote files cannot be fingerprinted this way; use
+	 * the {@link InputFileCache} for them, whose local copies are stored under the checksum of their content.
+	 *
+	 * @return null if the network or the plans file is not a local file
+	 */
+	public static String computeFingerprint(Config config) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(Integer.toString(VERSION).getBytes(StandardCharsets.UTF_8));
+			for (String file : new String[] { config.network().getInputFile(), config.plans().getInputFile() }) {
+				if (file == null) {
+					digest.update((byte) 0);
+					continue;
+				}
+				URL url = ConfigGroup.getInputFileURL(config.getContext(), file);
+				if (!"file".equals(url.getProtocol())) {
+					log.warn(url + " is not a local file; its content may change without notice.");
+					return null;
+				}
+				File localFile = new File(url.toURI());
+				digest.update(url.toString().getBytes(StandardCharsets.UTF_8));
+				digest.update((localFile.length() + ";" + localFile.lastModified()).getBytes(StandardCharsets.UTF_8));
+			}
+			StringBuilder hash = new StringBuilder();
+			for (byte b : digest.digest()) {
+				hash.append(String.format("%02x", b));
+			}
+			return hash.toString();
+		} catch (NoSuchAlgorithmException | URISyntaxException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return true if there is a snapshot with this fingerprint
+	 */
+	public static boolean matches(String fileName, String fingerprint) {
+		File file = new File(fileName);
+		if (!file.exists()) {
+			return false;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			return in.readInt() == MAGIC && in.readUTF().equals(fingerprint);
+		} catch (IOException e) {
+			log.warn("Could not read " + fileName + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Loads network and population from the snapshot and everything else (transit, vehicles, person attributes, ...) from the input
+	 * files of the config.
+	 */
+	public static Scenario loadScenario(Config config, String fileName, String fingerprint) {
+		String networkFile = config.network().getInputFile();
+		String plansFile = config.plans().getInputFile();
+		String personAttributesFile = config.plans().getInputPersonAttributeFile();
+		config.network().setInputFile(null);
+		config.plans().setInputFile(null);
+		config.plans().setInputPersonAttributeFile(null);
+		Scenario scenario;
+		try {
+			scenario = ScenarioUtils.loadScenario(config);
+		} finally {
+			config.network().setInputFile(networkFile);
+			config.plans().setInputFile(plansFile);
+			config.plans().setInputPersonAttributeFile(personAttributesFile);
+		}
+		if (!read(scenario, fileName, fingerprint)) {
+			throw new RuntimeException("Could not restore the scenario from " + fileName + ". Aborting...");
+		}
+		if (personAttributesFile != null) {
+			new ObjectAttributesXmlReader(scenario.getPopulation().getPersonAttributes()).parse(ConfigGroup.getInputFileURL(config.getContext(), personAttributesFile));
+		}
+		return scenario;
+	}
+
+	public static void write(Scenario scenario, String fileName, String fingerprint) {
+		long start = System.currentTimeMillis();
+		File tmpFile = new File(fileName + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 20))) {
+			out.writeInt(MAGIC);
+			out.writeUTF(fingerprint);
+			StringWriter strings = new StringWriter(out);
+			writeNetwork(scenario.getNetwork(), out, strings);
+			writePopulation(scenario.getPopulation(), out, strings);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		try {
+			Files.move(tmpFile.toPath(), new File(fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		log.info("Scenario snapshot written to " + fileName + " in " + (System.currentTimeMillis() - start) + " ms.");
+	}
+
+	/**
+	 * Reads the snapshot into the (empty) network and population of the scenario.
+	 *
+	 * @return false if there is no snapshot with this fingerprint; the scenario is not modified in this case
+	 */
+	public static boolean read(Scenario scenario, String fileName, String fingerprint) {
+		File file = new File(fileName);
+		if (!file.exists()) {
+			return false;
+		}
+		long start = System.currentTimeMillis();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20))) {
+			if (in.readInt() != MAGIC) {
+				log.warn(fileName + " is not a scenario snapshot.");
+				return false;
+			}
+			if (!in.readUTF().equals(fingerprint)) {
+				log.warn("The scenario snapshot " + fileName + " was created from other input files.");
+				return false;
+			}
+			StringReader strings = new StringReader(in);
+			readNetwork(scenario.getNetwork(), in, strings);
+			readPopulation(scenario.getPopulation(), in, strings);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		log.info("Scenario snapshot read from " + fileName + " in " + (System.currentTimeMillis() - start) + " ms.");
+		return true;
+	}
+
+	private static void writeNetwork(Network network, DataOutputStream out, StringWriter strings) throws IOException {
+		out.writeDouble(network.getCapacityPeriod());
+		out.writeDouble(network.getEffectiveLaneWidth());
+		out.writeInt(network.getNodes().size());
+		for (Node node : network.getNodes().values()) {
+			strings.write(node.getId().toString());
+			out.writeDouble(node.getCoord().getX());
+			out.writeDouble(node.getCoord().getY());
+		}
+		out.writeInt(network.getLinks().size());
+		for (Link link : network.getLinks().values()) {
+			strings.write(link.getId().toString());
+			strings.write(link.getFromNode().getId().toString());
+			strings.write(link.getToNode().getId().toString());
+			out.writeDouble(link.getLength());
+			out.writeDouble(link.getFreespeed());
+			out.writeDouble(link.getCapacity());
+			out.writeDouble(link.getNumberOfLanes());
+			out.writeInt(link.getAllowedModes().size());
+			for (String mode : link.getAllowedModes()) {
+				strings.write(mode);
+			}
+		}
+	}
+
+	private static void readNetwork(Network network, DataInputStream in, StringReader strings) throws IOException {
+		network.setCapacityPeriod(in.readDouble());
+		network.setEffectiveLaneWidth(in.readDouble());
+		NetworkFactory factory = network.getFactory();
+		int numberOfNodes = in.readInt();
+		for (int i = 0; i < numberOfNodes; i++) {
+			Id<Node> id = Id.createNodeId(strings.read());
+			network.addNode(factory.createNode(id, new Coord(in.readDouble(), in.readDouble())));
+		}
+		// links with the same modes share the set
+		Map<Set<String>, Set<String>> modeSets = new HashMap<>();
+		int numberOfLinks = in.readInt();
+		for (int i = 0; i < numberOfLinks; i++) {
+			Id<Link> id = Id.createLinkId(strings.read());
+			Node fromNode = network.getNodes().get(Id.createNodeId(strings.read()));
+			Node toNode = network.getNodes().get(Id.createNodeId(strings.read()));
+			Link link = factory.createLink(id, fromNode, toNode);
+			link.setLength(in.readDouble());
+			link.setFreespeed(in.readDouble());
+			link.setCapacity(in.readDouble());
+			link.setNumberOfLanes(in.readDouble());
+			int numberOfModes = in.readInt();
+			Set<String> modes = new HashSet<>();
+			for (int m = 0; m < numberOfModes; m++) {
+				modes.add(strings.read());
+			}
+			Set<String> sharedModes = modeSets.get(modes);
+			if (sharedModes == null) {
+				modeSets.put(modes, modes);
+				sharedModes = modes;
+			}
+			link.setAllowedModes(sharedModes);
+			network.addLink(link);
+		}
+	}
+
+	private static void writePopulation(Population population, DataOutputStream out, StringWriter strings) throws IOException {
+		out.writeInt(population.getPersons().size());
+		for (Person person : population.getPersons().values()) {
+			strings.write(person.getId().toString());
+			out.writeInt(person.getPlans().size());
+			for (Plan plan : person.getPlans()) {
+				out.writeBoolean(plan == person.getSelectedPlan());
+				out.writeBoolean(plan.getScore() != null);
+				if (plan.getScore() != null) out.writeDouble(plan.getScore());
+				strings.write(plan.getType());
+				out.writeInt(plan.getPlanElements().size());
+				for (PlanElement element : plan.getPlanElements()) {
+					if (element instanceof Activity) {
+						writeActivity((Activity) element, out, strings);
+					} else {
+						writeLeg((Leg) element, out, strings);
+					}
+				}
+			}
+		}
+	}
+
+	private static void writeActivity(Activity activity, DataOutputStream out, StringWriter strings) throws IOException {
+		out.writeByte(ACTIVITY);
+		strings.write(activity.getType());
+		strings.write(activity.getLinkId() == null ? null : activity.getLinkId().toString());
+		strings.write(activity.getFacilityId() == null ? null : activity.getFacilityId().toString());
+		out.writeBoolean(activity.getCoord() != null);
+		if (activity.getCoord() != null) {
+			out.writeDouble(activity.getCoord().getX());
+			out.writeDouble(activity.getCoord().getY());
+		}
+		out.writeDouble(activity.getStartTime());
+		out.writeDouble(activity.getEndTime());
+		out.writeDouble(activity.getMaximumDuration());
+	}
+
+	private static void writeLeg(Leg leg, DataOutputStream out, StringWriter strings) throws IOException {
+		out.writeByte(LEG);
+		strings.write(leg.getMode());
+		out.writeDouble(leg.getDepartureTime());
+		out.writeDouble(leg.getTravelTime());
+		Route route = leg.getRoute();
+		out.writeBoolean(route != null);
+		if (route != null) {
+			strings.write(route.getRouteType());
+			strings.write(route.getStartLinkId() == null ? null : route.getStartLinkId().toString());
+			strings.write(route.getEndLinkId() == null ? null : route.getEndLinkId().toString());
+			strings.writeUnshared(route.getRouteDescription());
+			out.writeDouble(route.getDistance());
+			out.writeDouble(route.getTravelTime());
+		}
+	}
+
+	private static void readPopulation(Population population, DataInputStream in, StringReader strings) throws IOException {
+		PopulationFactory factory = population.getFactory();
+		RouteFactories routeFactories = factory.getRouteFactories();
+		int numberOfPersons = in.readInt();
+		for (int i = 0; i < numberOfPersons; i++) {
+			Person person = factory.createPerson(Id.createPersonId(strings.read()));
+			int numberOfPlans = in.readInt();
+			for (int p = 0; p < numberOfPlans; p++) {
+				boolean selected = in.readBoolean();
+				Plan plan = factory.createPlan();
+				if (in.readBoolean()) plan.setScore(in.readDouble());
+				plan.setType(strings.read());
+				int numberOfElements = in.readInt();
+				for (int e = 0; e < numberOfElements; e++) {
+					byte type = in.readByte();
+					if (type == ACTIVITY) {
+						plan.addActivity(readActivity(factory, in, strings));
+					} else if (type == LEG) {
+						plan.addLeg(readLeg(factory, routeFactories, in, strings));
+					} else {
+						throw new RuntimeException("Unknown plan element in the scenario snapshot. Aborting...");
+					}
+				}
+				person.addPlan(plan);
+				if (selected) person.setSelectedPlan(plan);
+			}
+			population.addPerson(person);
+		}
+	}
+
+	private static Activity readActivity(PopulationFactory factory, DataInputStream in, StringReader strings) throws IOException {
+		String type = strings.read();
+		String linkId = strings.read();
+		String facilityId = strings.read();
+		Coord coord = in.readBoolean() ? new Coord(in.readDouble(), in.readDouble()) : null;
+		Activity activity = linkId != null ? factory.createActivityFromLinkId(type, Id.createLinkId(linkId)) : factory.createActivityFromCoord(type, coord);
+		if (coord != null) activity.setCoord(coord);
+		if (facilityId != null) activity.setFacilityId(Id.create(facilityId, ActivityFacility.class));
+		activity.setStartTime(in.readDouble());
+		activity.setEndTime(in.readDouble());
+		activity.setMaximumDuration(in.readDouble());
+		return activity;
+	}
+
+	private static Leg readLeg(PopulationFactory factory, RouteFactories routeFactories, DataInputStream in, StringReader strings) throws IOException {
+		Leg leg = factory.createLeg(strings.read());
+		leg.setDepartureTime(in.readDouble());
+		leg.setTravelTime(in.readDouble());
+		if (in.readBoolean()) {
+			String routeType = strings.read();
+			String startLinkId = strings.read();
+			String endLinkId = strings.read();
+			Route route = routeFactories.createRoute(routeFactories.getRouteClassForType(routeType),
+					startLinkId == null ? null : Id.createLinkId(startLinkId), endLinkId == null ? null : Id.createLinkId(endLinkId));
+			route.setRouteDescription(strings.readUnshared());
+			route.setDistance(in.readDouble());
+			route.setTravelTime(in.readDouble());
+			leg.setRoute(route);
+		}
+		return leg;
+	}
+
+	/**
+	 * Writes each distinct string once; later occurrences are written as index.
+	 */
+	private static final class StringWriter {
+		private final DataOutputStream out;
+		private final Map<String, Integer> indices = new HashMap<>();
+
+		StringWriter(DataOutputStream out) {
+			this.out = out;
+		}
+
+		void write(String value) throws IOException {
+			if (value == null) {
+				out.writeInt(-1);
+				return;
+			}
+			Integer index = indices.get(value);
+			if (index != null) {
+				out.writeInt(index);
+				return;
+			}
+			indices.put(value, indices.size());
+			out.writeInt(-2);
+			writeUnshared(value);
+		}
+
+		/**
+		 * For strings which are (mostly) unique, such as route descriptions.  Not limited to 64k as {@link DataOutputStream#writeUTF(String)}.
+		 */
+		void writeUnshared(String value) throws IOException {
+			if (value == null) {
+				out.writeInt(-1);
+				return;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static final class StringReader {
+		private final DataInputStream in;
+		private final List<String> values = new ArrayList<>();
+
+		StringReader(DataInputStream in) {
+			this.in = in;
+		}
+
+		String read() throws IOException {
+			int index = in.readInt();
+			if (index == -1) return null;
+			if (index >= 0) return values.get(index);
+			String value = readUnshared();
+			values.add(value);
+			return value;
+		}
+
+		String readUnshared() throws IOException {
+			int length = in.readInt();
+			if (length < 0) return null;
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+}
@@ -0,0 +1,60 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.run;
+
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+import org.matsim.core.router.RoutingModule;
+import org.matsim.pt.router.TransitRouter;
+
+import ch.sbb.matsim.routing.pt.raptor.RaptorIntermodalAccessEgress;
+import ch.sbb.matsim.routing.pt.raptor.RaptorParametersForPerson;
+import ch.sbb.matsim.routing.pt.raptor.RaptorRouteSelector;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptor;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
+
+/**
+ * Creates the SwissRailRaptor like the SwissRailRaptorFactory, but with raptor data prepared once for all variants of a batch run
+ * instead of once per controler.  The other raptor components are taken from the bindings of the SwissRailRaptorModule.
+ *
+ * @author agent
+ */
+final class SharedSwissRailRaptorProvider implements Provider<TransitRouter> {
+
+	private final SwissRailRaptorData data;
+
+	@Inject private RaptorParametersForPerson raptorParametersForPerson;
+	@Inject private RaptorRouteSelector routeSelector;
+	@Inject private RaptorIntermodalAccessEgress intermodalAccessEgress;
+	@Inject private Map<String, Provider<RoutingModule>> routingModuleProviders;
+
+	SharedSwissRailRaptorProvider(SwissRailRaptorData data) {
+		this.data = data;
+	}
+
+	@Override
+	public TransitRouter get() {
+		return new SwissRailRaptor(this.data, this.raptorParametersForPerson, this.routeSelector, this.intermodalAccessEgress,
+				this.routingModuleProviders);
+	}
+
+}
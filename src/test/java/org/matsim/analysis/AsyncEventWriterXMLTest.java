@@ -0,0 +1,118 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.MatsimEventsReader;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.testcases.MatsimTestUtils;
+
+/**
+ * Events written by {@link AsyncEventWriterXML} read back with the core reader, and the reporting of a failure of the writer thread.
+ *
+ * @author agent
+ */
+public class AsyncEventWriterXMLTest {
+	
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+	
+	@Test
+	public final void testWriteAndRead() {
+		List<Event> events = new ArrayList<>();
+		events.add(new ActivityEndEvent(21600., Id.createPersonId("1"), Id.createLinkId("1"), null, "home_36000.0"));
+		events.add(new PersonDepartureEvent(21600., Id.createPersonId("1"), Id.createLinkId("1"), "car"));
+		// to be escaped
+		events.add(new PersonDepartureEvent(21601., Id.createPersonId("2"), Id.createLinkId("<1&2>"), "\"car\""));
+		
+		// more than one block, in order
+		for (int i = 0; i < 50000; i++) {
+			events.add(new LinkEnterEvent(30000. + i, Id.createVehicleId("v" + (i % 100)), Id.createLinkId("l" + (i % 1000))));
+		}
+		
+		for (String file : new String[] { utils.getOutputDirectory() + "events.xml.gz", utils.getOutputDirectory() + "events.xml" }) {
+			AsyncEventWriterXML writer = new AsyncEventWriterXML(file, 3);
+			for (Event event : events) {
+				writer.handleEvent(event);
+			}
+			writer.closeFile();
+			
+			List<Event> readEvents = new ArrayList<>();
+			EventsManager eventsManager = EventsUtils.createEventsManager();
+			eventsManager.addHandler(new BasicEventHandler() {
+				@Override
+				public void handleEvent(Event event) {
+					readEvents.add(event);
+				}
+				@Override
+				public void reset(int iteration) {
+				}
+			});
+			new MatsimEventsReader(eventsManager).readFile(file);
+			
+			Assert.assertEquals("Wrong number of events.", events.size(), readEvents.size());
+			for (int i = 0; i < events.size(); i++) {
+				Assert.assertEquals("Different event at position " + i, events.get(i).getAttributes(), readEvents.get(i).getAttributes());
+			}
+		}
+	}
+	
+	// closing after the formatting failed reports the failure instead of waiting for the writer thread forever
+	@Test(timeout = 60000)
+	public final void testFailure() {
+		Event failing = new Event(0.) {
+			@Override
+			public String getEventType() {
+				return "failing";
+			}
+			@Override
+			public Map<String, String> getAttributes() {
+				throw new RuntimeException("Cannot format this event.");
+			}
+		};
+		AsyncEventWriterXML writer = new AsyncEventWriterXML(utils.getOutputDirectory() + "events.xml.gz", 2);
+		try {
+			for (int i = 0; i < 100000; i++) {
+				writer.handleEvent(failing);
+			}
+		} catch (RuntimeException e) {
+			// the failure is reported with one of the next blocks
+		}
+		try {
+			writer.closeFile();
+			Assert.fail("The failure was not reported.");
+		} catch (RuntimeException e) {
+			Assert.assertTrue(e.getMessage().startsWith("Writing the events to"));
+		}
+	}
+	
+}
@@ -0,0 +1,147 @@
+/* *********************************************************************** *
+ * project: org.matsim.*												   *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.analysis;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonStuckEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.algorithms.EventWriterXML;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.Vehicle;
+
+/**
+ * Round trip of the binary events format, and that a binary file not converted from the current events file is not used.
+ *
+ * @author agent
+ */
+public class BinaryEventsTest {
+	
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+	
+	@Test
+	public final void testWriteAndRead() {
+		List<Event> events = new ArrayList<>();
+		events.add(new ActivityEndEvent(21600., Id.createPersonId("1"), Id.createLinkId("1"), null, "home_36000.0"));
+		events.add(new PersonDepartureEvent(21600., Id.createPersonId("1"), Id.createLinkId("1"), "car"));
+		events.add(new PersonEntersVehicleEvent(21600., Id.createPersonId("1"), Id.createVehicleId("1")));
+		events.add(new VehicleEntersTrafficEvent(21600., Id.createPersonId("1"), Id.createLinkId("1"), Id.createVehicleId("1"), "car", 1.0));
+		events.add(new LinkLeaveEvent(21601., Id.createVehicleId("1"), Id.createLinkId("1")));
+		events.add(new LinkEnterEvent(21601., Id.createVehicleId("1"), Id.createLinkId("2")));
+		events.add(new VehicleLeavesTrafficEvent(21700., Id.createPersonId("1"), Id.createLinkId("2"), Id.createVehicleId("1"), "car", 1.0));
+		
+		// more than one block
+		for (int i = 0; i < 70000; i++) {
+			Id<Vehicle> vehicleId = Id.createVehicleId("v" + (i % 100));
+			Id<Link> linkId = Id.createLinkId("l" + (i % 1000));
+			events.add(new LinkEnterEvent(30000. + i, vehicleId, linkId));
+		}
+		
+		String file = utils.getOutputDirectory() + "events.bin";
+		BinaryEventsWriter writer = new BinaryEventsWriter(file);
+		for (Event event : events) {
+			writer.handleEvent(event);
+		}
+		writer.closeFile();
+		
+		List<Event> readEvents = new ArrayList<>();
+		EventsManager eventsManager = EventsUtils.createEventsManager();
+		eventsManager.addHandler(new BasicEventHandler() {
+			@Override
+			public void handleEvent(Event event) {
+				readEvents.add(event);
+			}
+			@Override
+			public void reset(int iteration) {
+			}
+		});
+		new BinaryEventsReader(eventsManager).readFile(file);
+		
+		Assert.assertEquals("Wrong number of events.", events.size(), readEvents.size());
+		for (int i = 0; i < events.size(); i++) {
+			Assert.assertEquals("Different event at position " + i, events.get(i).getAttributes(), readEvents.get(i).getAttributes());
+		}
+	}
+	
+	@Test
+	public final void testStaleBinaryFile() {
+		List<Event> events = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			events.add(new LinkEnterEvent(30000. + i, Id.createVehicleId("v" + (i % 10)), Id.createLinkId("l" + i)));
+		}
+		events.add(new PersonStuckEvent(30100., Id.createPersonId("1"), Id.createLinkId("l1"), "car"));
+		
+		String eventsFile = utils.getOutputDirectory() + "output_events.xml.gz";
+		String binaryEventsFile = BinaryEventsFormat.getBinaryFileName(eventsFile);
+		writeXml(events, eventsFile);
+		EventsToBinaryConverter.convert(eventsFile, binaryEventsFile);
+		Assert.assertTrue(BinaryEventsReader.isConvertedFrom(binaryEventsFile, eventsFile));
+		
+		// the skipped event types are reported
+		BinaryEventsReader reader = new BinaryEventsReader(EventsUtils.createEventsManager());
+		reader.readFile(binaryEventsFile);
+		Assert.assertEquals(Long.valueOf(1), reader.getSkippedEventTypes().get(PersonStuckEvent.EVENT_TYPE));
+		
+		// a new run writes another events file; the old binary file must not be used
+		List<Event> newEvents = events.subList(0, 50);
+		writeXml(newEvents, eventsFile);
+		new File(eventsFile).setLastModified(new File(binaryEventsFile).lastModified() + 10000);
+		Assert.assertFalse(BinaryEventsReader.isConvertedFrom(binaryEventsFile, eventsFile));
+		
+		List<Event> readEvents = new ArrayList<>();
+		EventsManager eventsManager = EventsUtils.createEventsManager();
+		eventsManager.addHandler(new BasicEventHandler() {
+			@Override
+			public void handleEvent(Event event) {
+				readEvents.add(event);
+			}
+			@Override
+			public void reset(int iteration) {
+			}
+		});
+		RunOfflineAirPollutionAnalysis.readEvents(eventsManager, eventsFile);
+		Assert.assertEquals("The stale binary file was read.", newEvents.size(), readEvents.size());
+	}
+	
+	private static void writeXml(List<Event> events, String file) {
+		EventWriterXML writer = new EventWriterXML(file);
+		for (Event event : events) {
+			writer.handleEvent(event);
+		}
+		writer.closeFile();
+	}
+	
+}
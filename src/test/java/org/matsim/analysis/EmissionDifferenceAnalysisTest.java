@@ -0,0 +1,95 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.analysis;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.testcases.MatsimTestUtils;
+
+/**
+ * Link emission differences between two cases whose networks differ.
+ *
+ * @author agent
+ */
+public class EmissionDifferenceAnalysisTest {
+	
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+	
+	private static final double TIME_BIN_SIZE = 3600.;
+	
+	@Test
+	public final void testDifferenceWithNewLinks() {
+		// base case: traffic on the ring
+		Scenario baseScenario = EmissionsTestScenario.createScenario(utils.getOutputDirectory());
+		baseScenario.getConfig().qsim().setEndTime(30 * 3600.);
+		List<Event> baseEvents = EmissionsTestScenario.createEvents(baseScenario, 30, "");
+		String baseEventsFile = utils.getOutputDirectory() + "base.events.xml.gz";
+		EmissionsTestScenario.writeEvents(baseEvents, baseEventsFile);
+		
+		// policy case: a second ring which only exists in the policy network takes all the traffic
+		Scenario policyScenario = EmissionsTestScenario.createScenario(utils.getOutputDirectory());
+		policyScenario.getConfig().qsim().setEndTime(30 * 3600.);
+		EmissionsTestScenario.createRingNetwork(policyScenario.getNetwork(), "p");
+		HbefaRoadTypeAnnotator.annotate(policyScenario.getNetwork());
+		List<Event> policyEvents = EmissionsTestScenario.createEvents(policyScenario, 30, "p");
+		String policyEventsFile = utils.getOutputDirectory() + "policy.events.xml.gz";
+		EmissionsTestScenario.writeEvents(policyEvents, policyEventsFile);
+		
+		LinkEmissionsAggregator difference = new EmissionDifferenceAnalysis(TIME_BIN_SIZE, 1).run(
+				baseScenario.getConfig(), baseScenario, baseEventsFile, policyScenario.getConfig(), policyScenario, policyEventsFile);
+		
+		LinkEmissionsAggregator base = EmissionsTestScenario.computeLinkEmissions(baseScenario, baseEvents, TIME_BIN_SIZE);
+		LinkEmissionsAggregator policy = EmissionsTestScenario.computeLinkEmissions(policyScenario, policyEvents, TIME_BIN_SIZE);
+		Assert.assertEquals(base.getNumberOfTimeBins(), difference.getNumberOfTimeBins());
+		
+		int numberOfLinks = HbefaRoadTypeAnnotator.ROAD_TYPES.size();
+		Assert.assertEquals(2 * numberOfLinks, difference.getLinkIndex().size());
+		double baseTotal = 0.;
+		double policyTotal = 0.;
+		for (int i = 0; i < numberOfLinks; i++) {
+			Id<Link> baseLinkId = Id.createLinkId(Integer.toString(i));
+			Id<Link> policyLinkId = Id.createLinkId("p" + i);
+			for (int timeBin = 0; timeBin < difference.getNumberOfTimeBins(); timeBin++) {
+				for (int pollutant = 0; pollutant < difference.getPollutants().size(); pollutant++) {
+					// the emissions of the base case are subtracted
+					double baseValue = base.getValue(base.getLinkIndex().getIndex(baseLinkId), timeBin, pollutant);
+					Assert.assertEquals(-baseValue, difference.getValue(difference.getLinkIndex().getIndex(baseLinkId), timeBin, pollutant),
+							1e-9 * Math.max(1., baseValue));
+					baseTotal += baseValue;
+					
+					// the links of the policy case only are kept
+					double policyValue = policy.getValue(policy.getLinkIndex().getIndex(policyLinkId), timeBin, pollutant);
+					Assert.assertEquals(policyValue, difference.getValue(difference.getLinkIndex().getIndex(policyLinkId), timeBin, pollutant),
+							1e-9 * Math.max(1., policyValue));
+					policyTotal += policyValue;
+				}
+			}
+		}
+		Assert.assertTrue("No emissions in the base case.", baseTotal > 0.);
+		Assert.assertTrue("No emissions on the new links.", policyTotal > 0.);
+	}
+	
+}
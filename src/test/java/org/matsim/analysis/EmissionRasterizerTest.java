@@ -0,0 +1,125 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.analysis;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+
+/**
+ * Checks the raster weights of a single link and that the raster keeps the link emissions, also for kernels narrower than a cell.
+ *
+ * @author agent
+ */
+public class EmissionRasterizerTest {
+
+	@Test
+	public final void testWeightsOfSingleLink() {
+		// horizontal link through the centers of one row of cells
+		Network network = NetworkUtils.createNetwork();
+		addLink(network, "l", new Coord(0., 50.), new Coord(1000., 50.));
+		NetworkLinkIndex linkIndex = new NetworkLinkIndex(network);
+		EmissionRasterizer rasterizer = new EmissionRasterizer(linkIndex, 100., 50.);
+
+		int[] cells = rasterizer.getCells(0);
+		double[] weights = rasterizer.getWeights(0);
+		Assert.assertEquals(cells.length, weights.length);
+		double sum = 0.;
+		double[] rowWeights = new double[rasterizer.getNumberOfRows()];
+		for (int k = 0; k < cells.length; k++) {
+			Assert.assertTrue(weights[k] > 0.);
+			sum += weights[k];
+			rowWeights[cells[k] / rasterizer.getNumberOfColumns()] += weights[k];
+		}
+		Assert.assertEquals(1., sum, 1e-12);
+
+		// most of the weight in the row of the link, the rows above and below get the same
+		int linkRow = 0;
+		for (int row = 1; row < rowWeights.length; row++) {
+			if (rowWeights[row] > rowWeights[linkRow]) linkRow = row;
+		}
+		Assert.assertTrue(linkRow > 0 && linkRow < rowWeights.length - 1);
+		Assert.assertEquals(rowWeights[linkRow - 1], rowWeights[linkRow + 1], 1e-12);
+		Assert.assertTrue(rowWeights[linkRow] > 2 * rowWeights[linkRow + 1]);
+	}
+
+	@Test
+	public final void testMassConservation() {
+		Network network = NetworkUtils.createNetwork();
+		EmissionsTestScenario.createRingNetwork(network, "");
+		// shorter than a cell and diagonal
+		addLink(network, "short", new Coord(17., 23.), new Coord(61., 89.));
+		NetworkLinkIndex linkIndex = new NetworkLinkIndex(network);
+
+		LinkEmissionsAggregator linkEmissions = new LinkEmissionsAggregator(linkIndex, 3600., 2 * 3600.);
+		int numberOfPollutants = linkEmissions.getPollutants().size();
+		for (int link = 0; link < linkIndex.size(); link++) {
+			for (int pollutant = 0; pollutant < numberOfPollutants; pollutant++) {
+				linkEmissions.add(link, 1, pollutant, 1. + link + 0.1 * pollutant);
+			}
+		}
+
+		// a kernel narrower than a quarter cell reaches no cell center from most points
+		for (double smoothingRadius : new double[] { 200., 50., 10. }) {
+			EmissionRasterizer rasterizer = new EmissionRasterizer(linkIndex, 100., smoothingRadius);
+			for (int link = 0; link < linkIndex.size(); link++) {
+				double sum = 0.;
+				for (double weight : rasterizer.getWeights(link)) {
+					sum += weight;
+				}
+				Assert.assertEquals("Weights of link " + linkIndex.getLinkId(link) + " with radius " + smoothingRadius + ".", 1., sum, 1e-12);
+			}
+			for (int timeBin = 0; timeBin < linkEmissions.getNumberOfTimeBins(); timeBin++) {
+				double[] raster = rasterizer.rasterize(linkEmissions, timeBin);
+				for (int pollutant = 0; pollutant < numberOfPollutants; pollutant++) {
+					double linkTotal = 0.;
+					for (int link = 0; link < linkIndex.size(); link++) {
+						linkTotal += linkEmissions.getValue(link, timeBin, pollutant);
+					}
+					double rasterTotal = 0.;
+					for (int cell = 0; cell < raster.length / numberOfPollutants; cell++) {
+						rasterTotal += raster[cell * numberOfPollutants + pollutant];
+					}
+					Assert.assertEquals(linkTotal, rasterTotal, 1e-9 * Math.max(1., linkTotal));
+				}
+			}
+		}
+	}
+
+	private static void addLink(Network network, String id, Coord fromCoord, Coord toCoord) {
+		NetworkFactory factory = network.getFactory();
+		Node from = factory.createNode(Id.createNodeId(id + "_from"), fromCoord);
+		Node to = factory.createNode(Id.createNodeId(id + "_to"), toCoord);
+		network.addNode(from);
+		network.addNode(to);
+		Link link = factory.createLink(Id.createLinkId(id), from, to);
+		link.setLength(NetworkUtils.getEuclideanDistance(fromCoord, toCoord));
+		link.setFreespeed(10.);
+		link.setCapacity(1000.);
+		link.setNumberOfLanes(1.);
+		network.addLink(link);
+	}
+
+}
@@ -0,0 +1,109 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.network.io.NetworkWriter;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.testcases.MatsimTestUtils;
+
+/**
+ * Compares the network of {@link EmissionsScenarioLoader} with the one of the core scenario loader.
+ *
+ * @author agent
+ */
+public class EmissionsScenarioLoaderTest {
+
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils();
+
+	@Test
+	public final void testSameNetworkAsCoreLoader() {
+		Network network = NetworkUtils.createNetwork();
+		NetworkFactory factory = network.getFactory();
+		Node a = factory.createNode(Id.createNodeId("a"), new Coord(13.40, 52.52));
+		Node b = factory.createNode(Id.createNodeId("b"), new Coord(13.41, 52.53));
+		network.addNode(a);
+		network.addNode(b);
+		Link ab = factory.createLink(Id.createLinkId("ab"), a, b);
+		ab.setLength(1300.);
+		ab.setFreespeed(13.89);
+		ab.setCapacity(1800.);
+		ab.setNumberOfLanes(2.);
+		ab.setAllowedModes(new HashSet<>(Arrays.asList(TransportMode.car, "freight")));
+		ab.getAttributes().putAttribute("type", "primary");
+		network.addLink(ab);
+		Link ba = factory.createLink(Id.createLinkId("ba"), b, a);
+		ba.setLength(1300.);
+		ba.setFreespeed(8.33);
+		ba.setCapacity(600.);
+		ba.setNumberOfLanes(1.);
+		ba.setAllowedModes(new HashSet<>(Arrays.asList(TransportMode.pt)));
+		network.addLink(ba);
+		String networkFile = utils.getOutputDirectory() + "network.xml";
+		new NetworkWriter(network).write(networkFile);
+
+		Config config = ConfigUtils.createConfig();
+		config.network().setInputFile(networkFile);
+		config.network().setInputCRS("EPSG:4326");
+		config.global().setCoordinateSystem("EPSG:31468");
+
+		Network loaded = EmissionsScenarioLoader.loadNetworkAndVehicles(config).getNetwork();
+		Scenario expected = ScenarioUtils.loadScenario(config);
+
+		Assert.assertEquals(expected.getNetwork().getCapacityPeriod(), loaded.getCapacityPeriod(), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(expected.getNetwork().getNodes().keySet(), loaded.getNodes().keySet());
+		for (Node node : expected.getNetwork().getNodes().values()) {
+			// transformed to the global CRS
+			Assert.assertEquals(node.getCoord(), loaded.getNodes().get(node.getId()).getCoord());
+			Assert.assertTrue(node.getCoord().getX() > 4000000.);
+		}
+		Assert.assertEquals(expected.getNetwork().getLinks().keySet(), loaded.getLinks().keySet());
+		for (Link link : expected.getNetwork().getLinks().values()) {
+			Link other = loaded.getLinks().get(link.getId());
+			Assert.assertEquals(link.getFromNode().getId(), other.getFromNode().getId());
+			Assert.assertEquals(link.getToNode().getId(), other.getToNode().getId());
+			Assert.assertEquals(link.getLength(), other.getLength(), MatsimTestUtils.EPSILON);
+			Assert.assertEquals(link.getFreespeed(), other.getFreespeed(), MatsimTestUtils.EPSILON);
+			Assert.assertEquals(link.getCapacity(), other.getCapacity(), MatsimTestUtils.EPSILON);
+			Assert.assertEquals(link.getNumberOfLanes(), other.getNumberOfLanes(), MatsimTestUtils.EPSILON);
+			Assert.assertEquals(link.getAllowedModes(), other.getAllowedModes());
+			Assert.assertEquals(link.getAttributes().getAttribute("type"), other.getAttributes().getAttribute("type"));
+		}
+		Assert.assertEquals("primary", loaded.getLinks().get(Id.createLinkId("ab")).getAttributes().getAttribute("type"));
+		Assert.assertEquals(new HashSet<>(Arrays.asList(TransportMode.pt)), loaded.getLinks().get(Id.createLinkId("ba")).getAllowedModes());
+	}
+
+}
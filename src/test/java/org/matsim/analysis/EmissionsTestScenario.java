@@ -0,0 +1,229 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.analysis;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.contrib.emissions.EmissionModule;
+import org.matsim.contrib.emissions.types.ColdPollutant;
+import org.matsim.contrib.emissions.types.WarmPollutant;
+import org.matsim.contrib.emissions.utils.EmissionsConfigGroup;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.algorithms.EventWriterXML;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+import org.matsim.vehicles.Vehicles;
+
+/**
+ * A small ring network with one link per HBEFA road type, synthetic average HBEFA files and car trips around the ring, for the tests
+ * of the emission analysis.  The HBEFA files of the Berlin analysis are not part of the repository.
+ *
+ * @author agent
+ */
+final class EmissionsTestScenario {
+
+	static final String[] VEHICLE_CATEGORIES = { "pass. car", "HGV" };
+	static final String[] TRAFFIC_SITUATIONS = { "Freeflow", "Heavy", "Satur.", "St+Go" };
+
+	private EmissionsTestScenario() {
+	}
+
+	/**
+	 * Writes the HBEFA files into the directory and creates the scenario (network with road types, vehicle types "car" and "freight").
+	 */
+	static Scenario createScenario(String directory) {
+		String warmFile = directory + "hbefa-warm.txt";
+		String coldFile = directory + "hbefa-cold.txt";
+		writeWarmEmissionFactors(warmFile, 1.);
+		writeColdEmissionFactors(coldFile, 1.);
+
+		Config config = ConfigUtils.createConfig();
+		EmissionsConfigGroup eConfig = ConfigUtils.addOrGetModule(config, EmissionsConfigGroup.class);
+		eConfig.setAverageWarmEmissionFactorsFile(warmFile);
+		eConfig.setAverageColdEmissionFactorsFile(coldFile);
+		BerlinEmissionsSetup.configure(eConfig);
+
+		Scenario scenario = ScenarioUtils.createScenario(config);
+		createRingNetwork(scenario.getNetwork(), "");
+		HbefaRoadTypeAnnotator.annotate(scenario.getNetwork());
+
+		Vehicles vehicles = scenario.getVehicles();
+		vehicles.addVehicleType(VehicleUtils.getFactory().createVehicleType(Id.create("car", VehicleType.class)));
+		vehicles.addVehicleType(VehicleUtils.getFactory().createVehicleType(Id.create("freight", VehicleType.class)));
+		BerlinEmissionsSetup.setVehicleTypeDescriptions(vehicles);
+		return scenario;
+	}
+
+	/**
+	 * One link per road type of {@link HbefaRoadTypeAnnotator#ROAD_TYPES}, 1 km each, closed to a ring.
+	 */
+	static void createRingNetwork(Network network, String idPrefix) {
+		NetworkFactory factory = network.getFactory();
+		int numberOfLinks = HbefaRoadTypeAnnotator.ROAD_TYPES.size();
+		double[][] speedsAndLanes = {
+				{ 4., 1. }, { 5., 1. }, { 6., 1. }, { 6., 2. }, { 6., 3. }, { 8., 1. }, { 8., 2. }, { 8., 3. }, { 19., 2. }, { 22., 2. }, { 36., 3. } };
+		for (int i = 0; i < numberOfLinks; i++) {
+			double angle = 2 * Math.PI * i / numberOfLinks;
+			network.addNode(factory.createNode(Id.createNodeId(idPrefix + i), new Coord(1000. * Math.cos(angle), 1000. * Math.sin(angle))));
+		}
+		for (int i = 0; i < numberOfLinks; i++) {
+			Node from = network.getNodes().get(Id.createNodeId(idPrefix + i));
+			Node to = network.getNodes().get(Id.createNodeId(idPrefix + ((i + 1) % numberOfLinks)));
+			Link link = factory.createLink(Id.createLinkId(idPrefix + i), from, to);
+			link.setLength(1000.);
+			link.setFreespeed(speedsAndLanes[i][0]);
+			link.setNumberOfLanes(speedsAndLanes[i][1]);
+			link.setCapacity(1000. * speedsAndLanes[i][1]);
+			network.addLink(link);
+		}
+	}
+
+	/**
+	 * Adds the vehicles to the scenario: every third one a freight vehicle, the others cars.
+	 *
+	 * @return two trips per vehicle around the ring (morning and afternoon), sorted by time
+	 */
+	static List<Event> createEvents(Scenario scenario, int numberOfVehicles, String linkIdPrefix) {
+		VehicleType car = scenario.getVehicles().getVehicleTypes().get(Id.create("car", VehicleType.class));
+		VehicleType freight = scenario.getVehicles().getVehicleTypes().get(Id.create("freight", VehicleType.class));
+		int numberOfLinks = HbefaRoadTypeAnnotator.ROAD_TYPES.size();
+
+		List<Event> events = new ArrayList<>();
+		for (int v = 0; v < numberOfVehicles; v++) {
+			Id<Vehicle> vehicleId = Id.createVehicleId("v" + v);
+			Id<Person> driverId = Id.createPersonId("p" + v);
+			if (!scenario.getVehicles().getVehicles().containsKey(vehicleId)) {
+				scenario.getVehicles().addVehicle(VehicleUtils.getFactory().createVehicle(vehicleId, v % 3 == 2 ? freight : car));
+			}
+			for (int trip = 0; trip < 2; trip++) {
+				double time = (trip == 0 ? 6 * 3600. : 16 * 3600.) + 37. * v;
+				int firstLink = (v + trip * 5) % numberOfLinks;
+				int numberOfTripLinks = 3 + (v + trip) % (numberOfLinks - 3);
+				events.add(new VehicleEntersTrafficEvent(time, driverId, Id.createLinkId(linkIdPrefix + firstLink), vehicleId, "car", 1.0));
+				for (int i = 1; i < numberOfTripLinks; i++) {
+					Id<Link> previous = Id.createLinkId(linkIdPrefix + ((firstLink + i - 1) % numberOfLinks));
+					// some vehicles are slowed down by congestion
+					time += i == 1 ? 1. : 1000. / (4. + (v * 7 + i) % 20);
+					events.add(new LinkLeaveEvent(time, vehicleId, previous));
+					events.add(new LinkEnterEvent(time, vehicleId, Id.createLinkId(linkIdPrefix + ((firstLink + i) % numberOfLinks))));
+				}
+				time += 30.;
+				events.add(new VehicleLeavesTrafficEvent(time, driverId, Id.createLinkId(linkIdPrefix + ((firstLink + numberOfTripLinks - 1) % numberOfLinks)),
+						vehicleId, "car", 1.0));
+			}
+		}
+		events.sort(Comparator.comparingDouble(Event::getTime));
+		return events;
+	}
+
+	/**
+	 * @return the link emissions of the events, computed as in RunOfflineAirPollutionAnalysis with one thread
+	 */
+	static LinkEmissionsAggregator computeLinkEmissions(Scenario scenario, List<Event> events, double timeBinSize) {
+		LinkEmissionsAggregator aggregator = new LinkEmissionsAggregator(scenario.getNetwork(), timeBinSize, scenario.getConfig().qsim().getEndTime());
+		EventsManager eventsManager = EventsUtils.createEventsManager();
+		EmissionModule emissionModule = RunOfflineAirPollutionAnalysis.createEmissionModule(scenario.getConfig(), scenario, eventsManager);
+		emissionModule.getEmissionEventsManager().addHandler(aggregator);
+		for (Event event : events) {
+			eventsManager.processEvent(event);
+		}
+		return aggregator;
+	}
+
+	static void writeEvents(List<Event> events, String eventsFile) {
+		EventWriterXML writer = new EventWriterXML(eventsFile);
+		for (Event event : events) {
+			writer.handleEvent(event);
+		}
+		writer.closeFile();
+	}
+
+	/**
+	 * Average warm emission factors for all road types of {@link HbefaRoadTypeAnnotator#ROAD_TYPES}; the factors are scaled by the
+	 * given factor.
+	 */
+	static void writeWarmEmissionFactors(String fileName, double scale) {
+		try (BufferedWriter writer = IOUtils.getBufferedWriter(fileName)) {
+			writer.write("Case;VehCat;Year;TrafficScenario;Component;RoadCat;TrafficSit;Gradient;V_weighted;EFA_weighted\n");
+			for (int c = 0; c < VEHICLE_CATEGORIES.length; c++) {
+				for (int r = 0; r < HbefaRoadTypeAnnotator.ROAD_TYPES.size(); r++) {
+					String roadType = HbefaRoadTypeAnnotator.ROAD_TYPES.get(r);
+					for (int s = 0; s < TRAFFIC_SITUATIONS.length; s++) {
+						double speed = s == TRAFFIC_SITUATIONS.length - 1 ? 10. : 30. + 10. * r - 5. * s;
+						for (WarmPollutant pollutant : WarmPollutant.values()) {
+							double factor = scale * (1. + c) * (1. + 0.1 * r) * (1. + 0.5 * s) * (1. + pollutant.ordinal());
+							writer.write("HOT;" + VEHICLE_CATEGORIES[c] + ";2005;BAU;" + pollutant.getText() + ";" + roadType.substring(0, 3) + ";"
+									+ roadType + "/" + TRAFFIC_SITUATIONS[s] + ";0%;" + speed + ";" + factor + "\n");
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Average cold emission factors for parking times up to (and above) 12 h and the first two km, scaled by the given factor.
+	 */
+	static void writeColdEmissionFactors(String fileName, double scale) {
+		try (BufferedWriter writer = IOUtils.getBufferedWriter(fileName)) {
+			writer.write("Case;VehCat;Year;TrafficScenario;Component;RoadCat;AmbientCondPattern;EFA_weighted\n");
+			for (int c = 0; c < VEHICLE_CATEGORIES.length; c++) {
+				for (int h = 0; h <= 12; h++) {
+					String parkingTime = h == 12 ? ">12h" : h + "-" + (h + 1) + "h";
+					for (int km = 0; km < 2; km++) {
+						for (ColdPollutant pollutant : ColdPollutant.values()) {
+							double factor = scale * (1. + c) * (1. + 0.2 * h) * (2. - km) * (1. + pollutant.ordinal());
+							writer.write("COLD;" + VEHICLE_CATEGORIES[c] + ";2005;BAU;" + pollutant.getText() + ";-;TAvg," + parkingTime + ","
+									+ km + "-" + (km + 1) + "km;" + factor + "\n");
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.analysis;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+
+/**
+ * Checks the road types against the link loop that RunOfflineAirPollutionAnalysis used before the extraction.
+ *
+ * @author agent
+ */
+public class HbefaRoadTypeAnnotatorTest {
+
+	// free speed [m/s], lanes, road type of the former loop
+	private static final Object[][] CASES = {
+			// non-motorway free speeds are doubled before the thresholds apply
+			{ 4.0, 1., "URB/Access/30" },
+			{ 5.0, 1., "URB/Access/40" },
+			{ 6.5, 1., "URB/Local/50" },
+			{ 6.5, 2., "URB/Distr/50" },
+			{ 6.5, 3., "URB/Trunk-City/50" },
+			{ 8.0, 1., "URB/Local/60" },
+			{ 8.0, 2., "URB/Trunk-City/60" },
+			{ 8.0, 4., "URB/MW-City/60" },
+			{ 9.0, 2., "URB/MW-City/70" },
+			{ 10.5, 2., "URB/MW-Nat./80" },
+			{ 13.0, 2., "RUR/MW/>130" },
+			{ 13.888889, 2., "RUR/MW/>130" },
+			// motorways keep their free speed
+			{ 16.0, 2., "URB/Trunk-City/60" },
+			{ 16.0, 3., "URB/MW-City/60" },
+			{ 19.0, 3., "URB/MW-City/70" },
+			{ 22.0, 3., "URB/MW-Nat./80" },
+			{ 33.3, 3., "RUR/MW/>130" }
+	};
+
+	@Test
+	public final void testGetRoadType() {
+		Network network = createNetwork();
+		for (int i = 0; i < CASES.length; i++) {
+			Link link = network.getLinks().get(Id.createLinkId(i));
+			Assert.assertEquals("Wrong road type for free speed " + CASES[i][0] + " and " + CASES[i][1] + " lanes.",
+					CASES[i][2], HbefaRoadTypeAnnotator.getRoadType(link));
+		}
+	}
+
+	@Test
+	public final void testAnnotate() {
+		Network network = createNetwork();
+		HbefaRoadTypeAnnotator.annotate(network);
+		for (int i = 0; i < CASES.length; i++) {
+			Link link = network.getLinks().get(Id.createLinkId(i));
+			Assert.assertEquals(CASES[i][2], link.getAttributes().getAttribute(HbefaRoadTypeAnnotator.ROAD_TYPE_ATTRIBUTE));
+		}
+	}
+
+	private static Network createNetwork() {
+		Network network = NetworkUtils.createNetwork();
+		NetworkFactory factory = network.getFactory();
+		for (int i = 0; i <= CASES.length; i++) {
+			network.addNode(factory.createNode(Id.createNodeId(i), new Coord(100. * i, 0.)));
+		}
+		for (int i = 0; i < CASES.length; i++) {
+			Node from = network.getNodes().get(Id.createNodeId(i));
+			Node to = network.getNodes().get(Id.createNodeId(i + 1));
+			Link link = factory.createLink(Id.createLinkId(i), from, to);
+			link.setLength(100.);
+			link.setFreespeed((Double) CASES[i][0]);
+			link.setNumberOfLanes((Double) CASES[i][1]);
+			link.setCapacity(1000.);
+			network.addLink(link);
+		}
+		return network;
+	}
+
+}
@@ -0,0 +1,154 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.VehicleType;
+
+/**
+ * The incremental emission analysis gives the same link emissions as a full recompute after vehicle type and link changes.
+ *
+ * @author agent
+ */
+public class IncrementalEmissionAnalysisTest {
+	
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+	
+	private static final double TIME_BIN_SIZE = 3600.;
+	
+	@Test
+	public final void testSameEmissionsAsFullRecompute() {
+		Scenario scenario = EmissionsTestScenario.createScenario(utils.getOutputDirectory());
+		scenario.getConfig().qsim().setEndTime(30 * 3600.);
+		List<Event> events = EmissionsTestScenario.createEvents(scenario, 300, "");
+		String eventsFile = utils.getOutputDirectory() + "events.xml.gz";
+		EmissionsTestScenario.writeEvents(events, eventsFile);
+		String cacheDirectory = utils.getOutputDirectory() + "cache/";
+		File carKeyFile = new File(cacheDirectory, "car.key");
+		File freightKeyFile = new File(cacheDirectory, "freight.key");
+		File travelDataKeyFile = new File(cacheDirectory, "travel-data.key");
+		
+		// first pass
+		LinkEmissionsAggregator first = new IncrementalEmissionAnalysis(scenario.getConfig(), scenario, cacheDirectory, TIME_BIN_SIZE).run(eventsFile);
+		assertSameEmissions(EmissionsTestScenario.computeLinkEmissions(scenario, events, TIME_BIN_SIZE), first);
+		String carKey = readFile(carKeyFile);
+		String freightKey = readFile(freightKeyFile);
+		String travelDataKey = readFile(travelDataKeyFile);
+		
+		// nothing changed: reuse
+		LinkEmissionsAggregator reused = new IncrementalEmissionAnalysis(scenario.getConfig(), scenario, cacheDirectory, TIME_BIN_SIZE).run(eventsFile);
+		assertSameEmissions(EmissionsTestScenario.computeLinkEmissions(scenario, events, TIME_BIN_SIZE), reused);
+		Assert.assertEquals(carKey, readFile(carKeyFile));
+		Assert.assertEquals(freightKey, readFile(freightKeyFile));
+		Assert.assertEquals(travelDataKey, readFile(travelDataKeyFile));
+		
+		// new description of the car vehicle type: the car emissions are recomputed, the freight emissions reused
+		VehicleType car = scenario.getVehicles().getVehicleTypes().get(Id.create("car", VehicleType.class));
+		car.setDescription(BerlinEmissionsSetup.FREIGHT_EMISSIONS_DESCRIPTION);
+		LinkEmissionsAggregator newDescription = new IncrementalEmissionAnalysis(scenario.getConfig(), scenario, cacheDirectory, TIME_BIN_SIZE).run(eventsFile);
+		LinkEmissionsAggregator expectedNewDescription = EmissionsTestScenario.computeLinkEmissions(scenario, events, TIME_BIN_SIZE);
+		assertSameEmissions(expectedNewDescription, newDescription);
+		Assert.assertFalse("The car emissions did not change.", isSame(first, newDescription));
+		Assert.assertNotEquals(carKey, readFile(carKeyFile));
+		Assert.assertEquals(freightKey, readFile(freightKeyFile));
+		Assert.assertEquals(travelDataKey, readFile(travelDataKeyFile));
+		carKey = readFile(carKeyFile);
+		
+		// new road type of a link: same keys, only the warm emissions of that link are recomputed
+		Link link = scenario.getNetwork().getLinks().get(Id.createLinkId("3"));
+		Object roadType = link.getAttributes().getAttribute(HbefaRoadTypeAnnotator.ROAD_TYPE_ATTRIBUTE);
+		String newRoadType = HbefaRoadTypeAnnotator.ROAD_TYPES.get((HbefaRoadTypeAnnotator.ROAD_TYPES.indexOf(roadType) + 4) % HbefaRoadTypeAnnotator.ROAD_TYPES.size());
+		link.getAttributes().putAttribute(HbefaRoadTypeAnnotator.ROAD_TYPE_ATTRIBUTE, newRoadType);
+		LinkEmissionsAggregator newRoadTypes = new IncrementalEmissionAnalysis(scenario.getConfig(), scenario, cacheDirectory, TIME_BIN_SIZE).run(eventsFile);
+		assertSameEmissions(EmissionsTestScenario.computeLinkEmissions(scenario, events, TIME_BIN_SIZE), newRoadTypes);
+		Assert.assertFalse("The emissions on link 3 did not change.", isSame(expectedNewDescription, newRoadTypes));
+		Assert.assertEquals(carKey, readFile(carKeyFile));
+		Assert.assertEquals(freightKey, readFile(freightKeyFile));
+		Assert.assertEquals(travelDataKey, readFile(travelDataKeyFile));
+		
+		// new length of a link: same keys, the warm emissions of that link are recomputed
+		Link otherLink = scenario.getNetwork().getLinks().get(Id.createLinkId("5"));
+		otherLink.setLength(2 * otherLink.getLength());
+		LinkEmissionsAggregator newLength = new IncrementalEmissionAnalysis(scenario.getConfig(), scenario, cacheDirectory, TIME_BIN_SIZE).run(eventsFile);
+		assertSameEmissions(EmissionsTestScenario.computeLinkEmissions(scenario, events, TIME_BIN_SIZE), newLength);
+		Assert.assertFalse("The emissions on link 5 did not change.", isSame(newRoadTypes, newLength));
+		Assert.assertEquals(carKey, readFile(carKeyFile));
+		Assert.assertEquals(travelDataKey, readFile(travelDataKeyFile));
+	}
+	
+	private static void assertSameEmissions(LinkEmissionsAggregator expected, LinkEmissionsAggregator actual) {
+		Assert.assertTrue("No emissions.", count(expected) > 0);
+		Assert.assertEquals(expected.getPollutants(), actual.getPollutants());
+		Assert.assertEquals(expected.getNumberOfTimeBins(), actual.getNumberOfTimeBins());
+		Assert.assertEquals(count(expected), count(actual));
+		NetworkLinkIndex linkIndex = expected.getLinkIndex();
+		for (int link = 0; link < linkIndex.size(); link++) {
+			int actualLink = actual.getLinkIndex().getIndex(linkIndex.getLinkId(link));
+			for (int timeBin = 0; timeBin < expected.getNumberOfTimeBins(); timeBin++) {
+				for (int pollutant = 0; pollutant < expected.getPollutants().size(); pollutant++) {
+					double value = expected.getValue(link, timeBin, pollutant);
+					Assert.assertEquals("Different emissions on link " + linkIndex.getLinkId(link) + ", time bin " + timeBin + ", " + expected.getPollutants().get(pollutant) + ".",
+							value, actual.getValue(actualLink, timeBin, pollutant), 1e-9 * Math.max(1., Math.abs(value)));
+				}
+			}
+		}
+	}
+	
+	private static boolean isSame(LinkEmissionsAggregator a, LinkEmissionsAggregator b) {
+		for (int link = 0; link < a.getLinkIndex().size(); link++) {
+			for (int timeBin = 0; timeBin < a.getNumberOfTimeBins(); timeBin++) {
+				for (int pollutant = 0; pollutant < a.getPollutants().size(); pollutant++) {
+					if (Math.abs(a.getValue(link, timeBin, pollutant) - b.getValue(link, timeBin, pollutant)) > 1e-9) return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	private static int count(LinkEmissionsAggregator aggregator) {
+		int count = 0;
+		for (int link = 0; link < aggregator.getLinkIndex().size(); link++) {
+			if (aggregator.hasValues(link)) count++;
+		}
+		return count;
+	}
+	
+	private static String readFile(File file) {
+		try {
+			return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+}
@@ -0,0 +1,189 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.contrib.emissions.events.ColdEmissionEvent;
+import org.matsim.contrib.emissions.events.WarmEmissionEvent;
+import org.matsim.contrib.emissions.types.ColdPollutant;
+import org.matsim.contrib.emissions.types.WarmPollutant;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.Vehicle;
+
+/**
+ * Time bins, the common columns of warm and cold pollutants, the csv output and the binary round trip of the link emission table.
+ *
+ * @author agent
+ */
+public class LinkEmissionsAggregatorTest {
+
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils();
+
+	private static final Id<Vehicle> VEHICLE = Id.createVehicleId("v");
+
+	@Test
+	public final void testTimeBinsAndPollutants() {
+		Network network = createNetwork();
+		LinkEmissionsAggregator aggregator = new LinkEmissionsAggregator(network, 3600., 3 * 3600.);
+		Assert.assertEquals(3, aggregator.getNumberOfTimeBins());
+		Assert.assertEquals(0, aggregator.getTimeBin(0.));
+		Assert.assertEquals(0, aggregator.getTimeBin(3599.));
+		Assert.assertEquals(1, aggregator.getTimeBin(3600.));
+		// after the end time: the last bin
+		Assert.assertEquals(2, aggregator.getTimeBin(10 * 3600.));
+
+		// one column per pollutant name, warm and cold NOX share theirs
+		List<String> pollutants = aggregator.getPollutants();
+		Assert.assertEquals(pollutants.size(), new HashSet<>(pollutants).size());
+		Assert.assertTrue(pollutants.contains(WarmPollutant.CO2_TOTAL.name()));
+		int nox = pollutants.indexOf(WarmPollutant.NOX.name());
+		Assert.assertEquals(nox, pollutants.indexOf(ColdPollutant.NOX.name()));
+		int co2 = pollutants.indexOf(WarmPollutant.CO2_TOTAL.name());
+
+		Id<Link> linkId = Id.createLinkId("3");
+		int link = aggregator.getLinkIndex().getIndex(linkId);
+		Assert.assertEquals(linkId, aggregator.getLinkIndex().getLinkId(link));
+		Assert.assertEquals(-1, aggregator.getLinkIndex().getIndex(Id.createLinkId("unknown")));
+
+		aggregator.handleEvent(new WarmEmissionEvent(100., linkId, VEHICLE, Collections.singletonMap(WarmPollutant.NOX, 2.)));
+		aggregator.handleEvent(new ColdEmissionEvent(200., linkId, VEHICLE, Collections.singletonMap(ColdPollutant.NOX, 3.)));
+		aggregator.handleEvent(new WarmEmissionEvent(4000., linkId, VEHICLE, Collections.singletonMap(WarmPollutant.CO2_TOTAL, 10.)));
+		aggregator.handleEvent(new WarmEmissionEvent(20 * 3600., linkId, VEHICLE, Collections.singletonMap(WarmPollutant.CO2_TOTAL, 1.)));
+		// ignored
+		aggregator.handleEvent(new WarmEmissionEvent(100., Id.createLinkId("unknown"), VEHICLE, Collections.singletonMap(WarmPollutant.NOX, 2.)));
+
+		Assert.assertEquals(5., aggregator.getValue(link, 0, nox), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(0., aggregator.getValue(link, 0, co2), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(10., aggregator.getValue(link, 1, co2), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(1., aggregator.getValue(link, 2, co2), MatsimTestUtils.EPSILON);
+		Assert.assertTrue(aggregator.hasValues(link));
+		Assert.assertFalse(aggregator.hasValues(aggregator.getLinkIndex().getIndex(Id.createLinkId("4"))));
+
+		aggregator.reset(1);
+		Assert.assertFalse(aggregator.hasValues(link));
+	}
+
+	@Test
+	public final void testCsv() throws IOException {
+		LinkEmissionsAggregator aggregator = new LinkEmissionsAggregator(createNetwork(), 3600., 3 * 3600.);
+		int nox = aggregator.getPollutants().indexOf(WarmPollutant.NOX.name());
+		aggregator.handleEvent(new WarmEmissionEvent(100., Id.createLinkId("3"), VEHICLE, Collections.singletonMap(WarmPollutant.NOX, 2.)));
+		aggregator.handleEvent(new WarmEmissionEvent(7300., Id.createLinkId("3"), VEHICLE, Collections.singletonMap(WarmPollutant.NOX, 4.)));
+		String file = utils.getOutputDirectory() + "linkEmissions.csv";
+		aggregator.writeCsv(file);
+
+		List<String[]> rows = new ArrayList<>();
+		try (BufferedReader reader = IOUtils.getBufferedReader(file)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				rows.add(line.split(";"));
+			}
+		}
+		// header and one row per link and time bin with emissions
+		Assert.assertEquals(3, rows.size());
+		Assert.assertEquals("linkId", rows.get(0)[0]);
+		Assert.assertEquals(WarmPollutant.NOX.name() + " [g]", rows.get(0)[3 + nox]);
+		Assert.assertEquals(3 + aggregator.getPollutants().size(), rows.get(0).length);
+		Assert.assertEquals("3", rows.get(1)[0]);
+		Assert.assertEquals(0., Double.parseDouble(rows.get(1)[1]), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(3600., Double.parseDouble(rows.get(1)[2]), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(2., Double.parseDouble(rows.get(1)[3 + nox]), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(7200., Double.parseDouble(rows.get(2)[1]), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(4., Double.parseDouble(rows.get(2)[3 + nox]), MatsimTestUtils.EPSILON);
+	}
+
+	@Test
+	public final void testBinaryRoundTripAndAddAll() {
+		Network network = createNetwork();
+		NetworkLinkIndex linkIndex = new NetworkLinkIndex(network);
+		LinkEmissionsAggregator aggregator = new LinkEmissionsAggregator(linkIndex, 900., 24 * 3600.);
+		for (int i = 0; i < 100; i++) {
+			Id<Link> linkId = Id.createLinkId(String.valueOf(i % 7));
+			aggregator.handleEvent(new WarmEmissionEvent(i * 601., linkId, VEHICLE, Collections.singletonMap(WarmPollutant.CO2_TOTAL, 0.1 * i)));
+			aggregator.handleEvent(new ColdEmissionEvent(i * 601., linkId, VEHICLE, Collections.singletonMap(ColdPollutant.PM, 0.01 * i)));
+		}
+
+		for (String fileName : new String[] { "linkEmissions.bin", "linkEmissions.bin.gz" }) {
+			String file = utils.getOutputDirectory() + fileName;
+			aggregator.writeBinary(file);
+			LinkEmissionsAggregator read = LinkEmissionsAggregator.readBinary(linkIndex, file);
+			assertEquals(aggregator, read, 1.);
+		}
+
+		// addAll with a factor: the difference to itself is zero, adding it twice doubles the values
+		LinkEmissionsAggregator sum = new LinkEmissionsAggregator(linkIndex, 900., 24 * 3600.);
+		sum.addAll(aggregator);
+		sum.addAll(aggregator);
+		assertEquals(aggregator, sum, 2.);
+		sum.addAll(aggregator, -2.);
+		for (int link = 0; link < linkIndex.size(); link++) {
+			for (int bin = 0; bin < sum.getNumberOfTimeBins(); bin++) {
+				for (int p = 0; p < sum.getPollutants().size(); p++) {
+					Assert.assertEquals(0., sum.getValue(link, bin, p), MatsimTestUtils.EPSILON);
+				}
+			}
+		}
+
+		try {
+			sum.addAll(new LinkEmissionsAggregator(linkIndex, 3600., 24 * 3600.));
+			Assert.fail("Tables with different time bins must not be added.");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Asserts that every value of the actual table is the factor times the expected value.
+	 */
+	private static void assertEquals(LinkEmissionsAggregator expected, LinkEmissionsAggregator actual, double factor) {
+		Assert.assertEquals(expected.getTimeBinSize(), actual.getTimeBinSize(), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(expected.getNumberOfTimeBins(), actual.getNumberOfTimeBins());
+		Assert.assertEquals(expected.getPollutants(), actual.getPollutants());
+		for (int link = 0; link < expected.getLinkIndex().size(); link++) {
+			Assert.assertEquals(expected.hasValues(link), actual.hasValues(link));
+			for (int bin = 0; bin < expected.getNumberOfTimeBins(); bin++) {
+				for (int p = 0; p < expected.getPollutants().size(); p++) {
+					Assert.assertEquals(factor * expected.getValue(link, bin, p), actual.getValue(link, bin, p), MatsimTestUtils.EPSILON);
+				}
+			}
+		}
+	}
+
+	private static Network createNetwork() {
+		Network network = NetworkUtils.createNetwork();
+		EmissionsTestScenario.createRingNetwork(network, "");
+		return network;
+	}
+
+}
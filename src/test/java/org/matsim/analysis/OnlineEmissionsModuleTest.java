@@ -0,0 +1,108 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.contrib.emissions.types.WarmPollutant;
+import org.matsim.contrib.emissions.utils.EmissionsConfigGroup;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.config.groups.QSimConfigGroup.VehiclesSource;
+import org.matsim.core.controler.Controler;
+import org.matsim.core.controler.OutputDirectoryHierarchy.OverwriteFileSetting;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+import org.matsim.vehicles.Vehicles;
+
+/**
+ * Runs equil with the online emission calculation in every second and the last iteration.
+ *
+ * @author agent
+ */
+public class OnlineEmissionsModuleTest {
+
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils();
+
+	@Test
+	public final void testEmissionFilesPerIteration() {
+		String warmFile = utils.getOutputDirectory() + "hbefa-warm.txt";
+		String coldFile = utils.getOutputDirectory() + "hbefa-cold.txt";
+		EmissionsTestScenario.writeWarmEmissionFactors(warmFile, 1.);
+		EmissionsTestScenario.writeColdEmissionFactors(coldFile, 1.);
+
+		Config config = ConfigUtils.loadConfig("scenarios/equil/config.xml");
+		config.controler().setLastIteration(3);
+		config.controler().setOverwriteFileSetting(OverwriteFileSetting.deleteDirectoryIfExists);
+		String outputDirectory = utils.getOutputDirectory() + "output/";
+		config.controler().setOutputDirectory(outputDirectory);
+		// hourly link emission tables up to the end of the mobsim
+		config.qsim().setEndTime(30 * 3600.);
+		// the emission module only handles the vehicles of the scenario
+		config.qsim().setVehiclesSource(VehiclesSource.fromVehiclesData);
+		EmissionsConfigGroup eConfig = ConfigUtils.addOrGetModule(config, EmissionsConfigGroup.class);
+		eConfig.setAverageWarmEmissionFactorsFile(warmFile);
+		eConfig.setAverageColdEmissionFactorsFile(coldFile);
+		BerlinEmissionsSetup.configure(eConfig);
+
+		Scenario scenario = ScenarioUtils.loadScenario(config);
+		Vehicles vehicles = scenario.getVehicles();
+		VehicleType car = VehicleUtils.getFactory().createVehicleType(Id.create("car", VehicleType.class));
+		vehicles.addVehicleType(car);
+		vehicles.addVehicleType(VehicleUtils.getFactory().createVehicleType(Id.create("freight", VehicleType.class)));
+		for (Id<Person> personId : scenario.getPopulation().getPersons().keySet()) {
+			vehicles.addVehicle(VehicleUtils.getFactory().createVehicle(Id.createVehicleId(personId), car));
+		}
+		BerlinEmissionsSetup.prepareScenario(scenario);
+
+		Controler controler = new Controler(scenario);
+		controler.addOverridingModule(new OnlineEmissionsModule(2, true));
+		controler.run();
+
+		for (int iteration = 0; iteration <= 3; iteration++) {
+			String prefix = outputDirectory + "ITERS/it." + iteration + "/" + iteration + ".";
+			// iterations 0 and 2 by the interval, 3 as the last one
+			boolean active = iteration != 1;
+			Assert.assertEquals(active, new File(prefix + "emission.events.xml.gz").exists());
+			Assert.assertEquals(active, new File(prefix + "emissions.links.csv.gz").exists());
+			Assert.assertEquals(active, new File(prefix + "emissions.links.bin").exists());
+			if (active) {
+				LinkEmissionsAggregator linkEmissions = LinkEmissionsAggregator.readBinary(new NetworkLinkIndex(scenario.getNetwork()), prefix + "emissions.links.bin");
+				int co2 = linkEmissions.getPollutants().indexOf(WarmPollutant.CO2_TOTAL.name());
+				double sum = 0.;
+				for (int link = 0; link < linkEmissions.getLinkIndex().size(); link++) {
+					for (int bin = 0; bin < linkEmissions.getNumberOfTimeBins(); bin++) {
+						sum += linkEmissions.getValue(link, bin, co2);
+					}
+				}
+				Assert.assertTrue("No emissions in iteration " + iteration, sum > 0.);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.contrib.emissions.EmissionModule;
+import org.matsim.contrib.emissions.events.ColdEmissionEvent;
+import org.matsim.contrib.emissions.events.WarmEmissionEvent;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.testcases.MatsimTestUtils;
+
+/**
+ * The parallel replay produces the same emission events as the single-threaded calculation.
+ *
+ * @author agent
+ */
+public class ParallelEmissionEventsReplayTest {
+	
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+	
+	@Test
+	public final void testSameEventsAsSingleThreaded() {
+		Scenario scenario = EmissionsTestScenario.createScenario(utils.getOutputDirectory());
+		List<Event> events = EmissionsTestScenario.createEvents(scenario, 600, "");
+		
+		// more than one batch of the replay
+		Assert.assertTrue(events.size() > 10000);
+		
+		// as in RunOfflineAirPollutionAnalysis with one thread
+		List<Map<String, String>> expected = new ArrayList<>();
+		EventsManager outputEventsManager = createCollectingEventsManager(expected);
+		EventsManager eventsManager = EventsUtils.createEventsManager();
+		EmissionModule emissionModule = RunOfflineAirPollutionAnalysis.createEmissionModule(scenario.getConfig(), scenario, eventsManager);
+		emissionModule.getEmissionEventsManager().addHandler(new ForwardingEventHandler(outputEventsManager));
+		for (Event event : events) {
+			eventsManager.processEvent(event);
+		}
+		
+		long warmEmissionEvents = expected.stream().filter(attributes -> WarmEmissionEvent.EVENT_TYPE.equals(attributes.get("type"))).count();
+		long coldEmissionEvents = expected.stream().filter(attributes -> ColdEmissionEvent.EVENT_TYPE.equals(attributes.get("type"))).count();
+		Assert.assertTrue("No warm emission events.", warmEmissionEvents > 0);
+		Assert.assertTrue("No cold emission events.", coldEmissionEvents > 0);
+		
+		for (int numberOfWorkers : new int[] { 1, 3 }) {
+			List<Map<String, String>> actual = new ArrayList<>();
+			ParallelEmissionEventsReplay replay = new ParallelEmissionEventsReplay(scenario.getConfig(), scenario, numberOfWorkers,
+					createCollectingEventsManager(actual));
+			for (Event event : events) {
+				replay.handleEvent(event);
+			}
+			replay.finish();
+			
+			Assert.assertEquals("Wrong number of events with " + numberOfWorkers + " workers.", expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++) {
+				Assert.assertEquals("Different event at position " + i + " with " + numberOfWorkers + " workers.", expected.get(i), actual.get(i));
+			}
+		}
+	}
+	
+	private static EventsManager createCollectingEventsManager(List<Map<String, String>> events) {
+		EventsManager eventsManager = EventsUtils.createEventsManager();
+		eventsManager.addHandler(new BasicEventHandler() {
+			@Override
+			public void handleEvent(Event event) {
+				events.add(event.getAttributes());
+			}
+			@Override
+			public void reset(int iteration) {
+			}
+		});
+		return eventsManager;
+	}
+	
+}
@@ -0,0 +1,125 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.analysis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.testcases.MatsimTestUtils;
+
+/**
+ * {@link ParallelGzipInputStream} gives the content of {@link java.util.zip.GZIPInputStream} for single- and multi-member files, with and without index.
+ *
+ * @author agent
+ */
+public class ParallelGzipInputStreamTest {
+	
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+	
+	@Test
+	public final void testSingleMember() throws IOException {
+		String file = utils.getOutputDirectory() + "single.xml.gz";
+		writeMembers(file, 1);
+		
+		// no index for a single member, even if requested
+		assertSameContent(file);
+		readFully(new ParallelGzipInputStream(file, 3, true));
+		Assert.assertFalse(new File(file + ParallelGzipInputStream.INDEX_SUFFIX).exists());
+		assertSameContent(file);
+	}
+	
+	@Test
+	public final void testMultipleMembers() throws IOException {
+		String file = utils.getOutputDirectory() + "members.xml.gz";
+		writeMembers(file, 200);
+		
+		// no index unless requested
+		assertSameContent(file);
+		Assert.assertFalse(new File(file + ParallelGzipInputStream.INDEX_SUFFIX).exists());
+		
+		// the indexing read writes the index, the next one inflates in parallel
+		Assert.assertArrayEquals(readFully(new GZIPInputStream(new FileInputStream(file))), readFully(new ParallelGzipInputStream(file, 3, true)));
+		Assert.assertTrue(new File(file + ParallelGzipInputStream.INDEX_SUFFIX).exists());
+		assertSameContent(file);
+		
+		// an outdated index is not used
+		writeMembers(file, 50);
+		assertSameContent(file);
+	}
+	
+	@Test(expected = IOException.class)
+	public final void testCorruptFile() throws IOException {
+		String file = utils.getOutputDirectory() + "corrupt.xml.gz";
+		writeMembers(file, 1);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			// the crc of the trailer
+			raf.seek(raf.length() - 8);
+			raf.write(~raf.read());
+		}
+		readFully(new ParallelGzipInputStream(file, 2));
+	}
+	
+	private static void writeMembers(String file, int numberOfMembers) throws IOException {
+		try (OutputStream out = new FileOutputStream(file)) {
+			for (int member = 0; member < numberOfMembers; member++) {
+				GZIPOutputStream gzip = new GZIPOutputStream(out) {
+					@Override
+					public void close() throws IOException {
+						finish();
+					}
+				};
+				for (int i = 0; i < 2000; i++) {
+					gzip.write(("\t<event time=\"" + (member * 2000 + i) + "\" type=\"entered link\" link=\"" + (i % 97) + "\" />\n").getBytes(StandardCharsets.UTF_8));
+				}
+				gzip.close();
+			}
+		}
+	}
+	
+	private static void assertSameContent(String file) throws IOException {
+		byte[] expected = readFully(new GZIPInputStream(new FileInputStream(file)));
+		byte[] actual = readFully(new ParallelGzipInputStream(file, 3));
+		Assert.assertArrayEquals("Different content of " + file, expected, actual);
+	}
+	
+	private static byte[] readFully(InputStream in) throws IOException {
+		try (InputStream stream = in) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[7919];
+			int n;
+			while ((n = stream.read(buffer)) >= 0) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		}
+	}
+	
+}
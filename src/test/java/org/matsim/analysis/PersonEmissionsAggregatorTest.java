@@ -0,0 +1,83 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.PersonArrivalEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.contrib.emissions.events.ColdEmissionEvent;
+import org.matsim.contrib.emissions.events.WarmEmissionEvent;
+import org.matsim.contrib.emissions.types.ColdPollutant;
+import org.matsim.contrib.emissions.types.WarmPollutant;
+import org.matsim.vehicles.Vehicle;
+
+/**
+ * Attribution of emissions to the driver, over trips with stage activities.
+ *
+ * @author agent
+ */
+public class PersonEmissionsAggregatorTest {
+	
+	@Test
+	public final void testAttribution() {
+		Id<Person> driver = Id.createPersonId("driver");
+		Id<Person> passenger = Id.createPersonId("passenger");
+		Id<Vehicle> vehicle = Id.createVehicleId("car");
+		Id<Link> link = Id.createLinkId("1");
+		
+		PersonEmissionsAggregator aggregator = new PersonEmissionsAggregator();
+		int co2 = aggregator.getPollutants().indexOf(WarmPollutant.CO2_TOTAL.name());
+		int nox = aggregator.getPollutants().indexOf(ColdPollutant.NOX.name());
+		
+		// two trips, the second one with a stage activity
+		for (int trip = 0; trip < 2; trip++) {
+			double time = 1000. * trip;
+			aggregator.handleEvent(new ActivityEndEvent(time, driver, link, null, "home"));
+			aggregator.handleEvent(new PersonDepartureEvent(time, driver, link, "car"));
+			aggregator.handleEvent(new PersonEntersVehicleEvent(time, driver, vehicle));
+			aggregator.handleEvent(new PersonEntersVehicleEvent(time, passenger, vehicle));
+			aggregator.handleEvent(new ColdEmissionEvent(time + 1., link, vehicle, Collections.singletonMap(ColdPollutant.NOX, 1.)));
+			aggregator.handleEvent(new WarmEmissionEvent(time + 2., link, vehicle, Collections.singletonMap(WarmPollutant.CO2_TOTAL, 10.)));
+			aggregator.handleEvent(new PersonLeavesVehicleEvent(time + 3., passenger, vehicle));
+			aggregator.handleEvent(new PersonLeavesVehicleEvent(time + 3., driver, vehicle));
+			aggregator.handleEvent(new PersonArrivalEvent(time + 3., driver, link, "car"));
+			if (trip == 1) {
+				aggregator.handleEvent(new ActivityEndEvent(time + 4., driver, link, null, "car interaction"));
+				aggregator.handleEvent(new PersonEntersVehicleEvent(time + 4., driver, vehicle));
+				aggregator.handleEvent(new WarmEmissionEvent(time + 5., link, vehicle, Collections.singletonMap(WarmPollutant.CO2_TOTAL, 10.)));
+			}
+		}
+		
+		Assert.assertEquals(30., aggregator.getPersonValue(driver, co2), 1e-9);
+		Assert.assertEquals(2., aggregator.getPersonValue(driver, nox), 1e-9);
+		Assert.assertEquals(0., aggregator.getPersonValue(passenger, co2), 1e-9);
+		Assert.assertEquals(2, aggregator.getNumberOfTripsWithEmissions());
+	}
+	
+}
@@ -0,0 +1,80 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.analysis;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.controler.Controler;
+import org.matsim.core.controler.OutputDirectoryHierarchy.OverwriteFileSetting;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.testcases.MatsimTestUtils;
+
+/**
+ * Runs equil with the phase statistics and checks the rows of {@value PhaseStatisticsModule#FILE_NAME}.
+ *
+ * @author agent
+ */
+public class PhaseStatisticsModuleTest {
+
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils();
+
+	@Test
+	public final void testPhaseStatisticsFile() throws IOException {
+		Config config = ConfigUtils.loadConfig("scenarios/equil/config.xml");
+		config.controler().setLastIteration(2);
+		config.controler().setOverwriteFileSetting(OverwriteFileSetting.deleteDirectoryIfExists);
+		config.controler().setOutputDirectory(utils.getOutputDirectory());
+
+		Controler controler = new Controler(config);
+		controler.addOverridingModule(new PhaseStatisticsModule());
+		controler.run();
+
+		List<String[]> rows = new ArrayList<>();
+		try (BufferedReader reader = IOUtils.getBufferedReader(utils.getOutputDirectory() + PhaseStatisticsModule.FILE_NAME)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				rows.add(line.split(";"));
+			}
+		}
+		Assert.assertEquals("iteration", rows.get(0)[0]);
+		List<String> phases = Arrays.asList(PhaseStatisticsModule.REPLANNING, PhaseStatisticsModule.MOBSIM, PhaseStatisticsModule.SCORING,
+				PhaseStatisticsModule.ITERATION_ENDS);
+		// all phases of all iterations, the last one completed at shutdown
+		Assert.assertEquals(1 + 3 * phases.size(), rows.size());
+		for (int i = 1; i < rows.size(); i++) {
+			String[] row = rows.get(i);
+			Assert.assertEquals(6, row.length);
+			Assert.assertEquals((i - 1) / phases.size(), Integer.parseInt(row[0]));
+			Assert.assertEquals(phases.get((i - 1) % phases.size()), row[1]);
+			Assert.assertTrue(Double.parseDouble(row[2]) >= 0.);
+			Assert.assertTrue(Double.parseDouble(row[5]) > 0.);
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.prepare;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.analysis.ScoreStatsControlerListener.ScoreItem;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.config.groups.StrategyConfigGroup.StrategySettings;
+import org.matsim.core.controler.Controler;
+import org.matsim.core.controler.OutputDirectoryHierarchy.OverwriteFileSetting;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.testcases.MatsimTestUtils;
+
+/**
+ * Cuts half of equil and runs the sub-scenario.
+ *
+ * @author agent
+ */
+public class SubScenarioExtractorTest {
+
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+
+	@Test
+	public final void testHalfOfEquil() {
+		Config config = ConfigUtils.loadConfig("scenarios/equil/config.xml");
+		new SubScenarioExtractor(config, 0.5, null, 4711).run(utils.getOutputDirectory());
+
+		Config subConfig = ConfigUtils.loadConfig(utils.getOutputDirectory() + "config.xml");
+		Scenario subScenario = ScenarioUtils.loadScenario(subConfig);
+		int persons = subScenario.getPopulation().getPersons().size();
+		Assert.assertTrue(persons > 20 && persons < 80);
+		Assert.assertEquals(persons / 100., subConfig.qsim().getFlowCapFactor(), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(persons / 100., subConfig.qsim().getStorageCapFactor(), MatsimTestUtils.EPSILON);
+		// all car links are kept, so that re-routing works as in the full scenario
+		Assert.assertEquals(23, subScenario.getNetwork().getLinks().size());
+		for (StrategySettings settings : subConfig.strategy().getStrategySettings()) {
+			if (settings.getStrategyName().equals("ReRoute")) {
+				Assert.assertEquals(0.1, settings.getWeight(), MatsimTestUtils.EPSILON);
+			}
+		}
+
+		// every route only uses links of the cut network
+		for (Person person : subScenario.getPopulation().getPersons().values()) {
+			for (Plan plan : person.getPlans()) {
+				for (PlanElement planElement : plan.getPlanElements()) {
+					if (planElement instanceof Leg && ((Leg) planElement).getRoute() instanceof NetworkRoute) {
+						NetworkRoute route = (NetworkRoute) ((Leg) planElement).getRoute();
+						Assert.assertTrue(subScenario.getNetwork().getLinks().containsKey(route.getStartLinkId()));
+						Assert.assertTrue(subScenario.getNetwork().getLinks().containsKey(route.getEndLinkId()));
+						for (Id<Link> linkId : route.getLinkIds()) {
+							Assert.assertTrue(subScenario.getNetwork().getLinks().containsKey(linkId));
+						}
+					}
+				}
+			}
+		}
+		
+		// the sub-scenario runs, with re-routing
+		subConfig.controler().setLastIteration(2);
+		subConfig.controler().setOverwriteFileSetting(OverwriteFileSetting.deleteDirectoryIfExists);
+		subConfig.controler().setOutputDirectory(utils.getOutputDirectory() + "run/");
+		Controler controler = new Controler(subScenario);
+		controler.run();
+		Assert.assertEquals(persons, controler.getScenario().getPopulation().getPersons().size());
+		Assert.assertTrue(controler.getScoreStats().getScoreHistory().get(ScoreItem.executed).containsKey(2));
+	}
+
+}
@@ -0,0 +1,97 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.run;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.Controler;
+import org.matsim.core.controler.OutputDirectoryHierarchy.OverwriteFileSetting;
+import org.matsim.core.controler.listener.IterationStartsListener;
+import org.matsim.core.mobsim.framework.events.MobsimInitializedEvent;
+import org.matsim.core.mobsim.framework.listeners.MobsimInitializedListener;
+import org.matsim.core.mobsim.qsim.QSim;
+import org.matsim.testcases.MatsimTestUtils;
+
+/**
+ * The candidate thread numbers and the qsim threads per iteration of an equil run.
+ *
+ * @author agent
+ */
+public class AdaptiveQSimThreadsModuleTest {
+	
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+
+	@Test
+	public final void testCandidates() {
+		Assert.assertArrayEquals(new int[] { 64, 32, 16, 8 }, AdaptiveQSimThreadsModule.getCandidates(64));
+		Assert.assertArrayEquals(new int[] { 6, 3, 1 }, AdaptiveQSimThreadsModule.getCandidates(6));
+		Assert.assertArrayEquals(new int[] { 1 }, AdaptiveQSimThreadsModule.getCandidates(1));
+	}
+	
+	@Test
+	public final void testThreadsChangeDuringTheRun() {
+		Config config = ConfigUtils.loadConfig("scenarios/equil/config.xml");
+		config.controler().setLastIteration(5);
+		config.controler().setOverwriteFileSetting(OverwriteFileSetting.deleteDirectoryIfExists);
+		config.controler().setOutputDirectory(utils.getOutputDirectory());
+		config.qsim().setNumberOfThreads(4);
+		
+		// the number of threads the network engine of each qsim reads
+		Map<Integer, Integer> threadsPerIteration = new TreeMap<>();
+		int[] iteration = new int[1];
+		Controler controler = new Controler(config);
+		controler.addOverridingModule(new AdaptiveQSimThreadsModule(4));
+		controler.addOverridingModule(new AbstractModule() {
+			@Override
+			public void install() {
+				addControlerListenerBinding().toInstance((IterationStartsListener) event -> iteration[0] = event.getIteration());
+				addMobsimListenerBinding().toInstance(new MobsimInitializedListener() {
+					@Override
+					public void notifyMobsimInitialized(MobsimInitializedEvent e) {
+						QSim qsim = (QSim) e.getQueueSimulation();
+						threadsPerIteration.put(iteration[0], qsim.getScenario().getConfig().qsim().getNumberOfThreads());
+					}
+				});
+			}
+		});
+		controler.run();
+		
+		// iteration 0 as in the config, then 4, 2 and 1 threads, then the fastest of these
+		Assert.assertEquals(6, threadsPerIteration.size());
+		Assert.assertEquals(4, (int) threadsPerIteration.get(0));
+		Assert.assertEquals(4, (int) threadsPerIteration.get(1));
+		Assert.assertEquals(2, (int) threadsPerIteration.get(2));
+		Assert.assertEquals(1, (int) threadsPerIteration.get(3));
+		int best = threadsPerIteration.get(4);
+		Assert.assertTrue(best == 4 || best == 2 || best == 1);
+		Assert.assertEquals(best, (int) threadsPerIteration.get(5));
+		
+		// the config of the run keeps the configured number
+		Assert.assertEquals(4, config.qsim().getNumberOfThreads());
+	}
+
+}
@@ -0,0 +1,55 @@
+/* *********************************************************************** *
+ * project: org.matsim.*												   *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.run;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.config.groups.PlanCalcScoreConfigGroup.ActivityParams;
+
+/**
+ * The generated activity params of the Berlin activity types.
+ *
+ * @author agent
+ */
+public class BerlinActivityTypesTest {
+
+	@Test
+	public final void testActivityParams() {
+		Config config = ConfigUtils.createConfig();
+		BerlinActivityTypes.addActivityParams(config.planCalcScore());
+
+		// as generated before
+		for (String base : new String[] { "home", "work", "leisure", "shopping", "other" }) {
+			for (long ii = 600; ii <= 97200; ii += 600) {
+				Assert.assertEquals(ii, config.planCalcScore().getActivityParams(base + "_" + ii + ".0").getTypicalDuration(), 0.);
+			}
+		}
+		ActivityParams work = config.planCalcScore().getActivityParams("work_3600.0");
+		Assert.assertEquals(3600., work.getTypicalDuration(), 0.);
+		Assert.assertEquals(6. * 3600., work.getOpeningTime(), 0.);
+		Assert.assertEquals(20. * 3600., work.getClosingTime(), 0.);
+		ActivityParams leisure = config.planCalcScore().getActivityParams("leisure_97200.0");
+		Assert.assertEquals(97200., leisure.getTypicalDuration(), 0.);
+		Assert.assertEquals(27. * 3600., leisure.getClosingTime(), 0.);
+		Assert.assertEquals(12. * 3600., config.planCalcScore().getActivityParams("freight").getTypicalDuration(), 0.);
+	}
+
+}
@@ -0,0 +1,90 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.run;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.routes.CompressedNetworkRouteImpl;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.scenario.ScenarioUtils;
+
+/**
+ * The compact population keeps the routes of the plans.
+ *
+ * @author agent
+ */
+public class CompactPopulationTest {
+
+	@Test
+	public final void testSameRoutes() {
+		Config config = ConfigUtils.createConfig();
+		config.network().setInputFile("scenarios/equil/network.xml");
+		config.plans().setInputFile("scenarios/equil/plans100.xml");
+		Scenario scenario = ScenarioUtils.loadScenario(config);
+		Scenario compact = CompactPopulation.loadScenario(config);
+
+		int networkRoutes = 0;
+		for (Person person : scenario.getPopulation().getPersons().values()) {
+			Person compactPerson = compact.getPopulation().getPersons().get(person.getId());
+			Assert.assertEquals(person.getPlans().size(), compactPerson.getPlans().size());
+			for (int p = 0; p < person.getPlans().size(); p++) {
+				PlanElement[] elements = person.getPlans().get(p).getPlanElements().toArray(new PlanElement[0]);
+				PlanElement[] compactElements = compactPerson.getPlans().get(p).getPlanElements().toArray(new PlanElement[0]);
+				Assert.assertEquals(elements.length, compactElements.length);
+				for (int i = 0; i < elements.length; i++) {
+					if (elements[i] instanceof Activity) {
+						Assert.assertEquals(((Activity) elements[i]).getType(), ((Activity) compactElements[i]).getType());
+						Assert.assertEquals(((Activity) elements[i]).getCoord(), ((Activity) compactElements[i]).getCoord());
+					} else {
+						Leg leg = (Leg) elements[i];
+						Leg compactLeg = (Leg) compactElements[i];
+						Assert.assertEquals(leg.getMode(), compactLeg.getMode());
+						if (leg.getRoute() instanceof NetworkRoute) {
+							Assert.assertTrue(compactLeg.getRoute() instanceof CompressedNetworkRouteImpl);
+							Assert.assertEquals(((NetworkRoute) leg.getRoute()).getLinkIds(), ((NetworkRoute) compactLeg.getRoute()).getLinkIds());
+							Assert.assertEquals(leg.getRoute().getStartLinkId(), compactLeg.getRoute().getStartLinkId());
+							Assert.assertEquals(leg.getRoute().getEndLinkId(), compactLeg.getRoute().getEndLinkId());
+							networkRoutes++;
+						}
+					}
+				}
+			}
+		}
+		Assert.assertTrue(networkRoutes > 0);
+
+		// compacting an already loaded population gives the same routes
+		CompactPopulation.compact(scenario);
+		for (Person person : scenario.getPopulation().getPersons().values()) {
+			for (PlanElement element : person.getSelectedPlan().getPlanElements()) {
+				if (element instanceof Leg && ((Leg) element).getRoute() instanceof NetworkRoute) {
+					Assert.assertTrue(((Leg) element).getRoute() instanceof CompressedNetworkRouteImpl);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.run;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.analysis.ScoreStatsControlerListener.ScoreItem;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.controler.Controler;
+import org.matsim.core.controler.OutputDirectoryHierarchy.OverwriteFileSetting;
+import org.matsim.testcases.MatsimTestUtils;
+
+/**
+ * The convergence criteria and the early end of an equil run.
+ *
+ * @author agent
+ */
+public class ConvergenceStoppingModuleTest {
+	
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+
+	@Test
+	public final void testCriteria() {
+		Assert.assertEquals(0.01, ConvergenceStoppingModule.getScoreChange(100., 99.), 1e-9);
+		Assert.assertTrue(Double.isInfinite(ConvergenceStoppingModule.getScoreChange(Double.NaN, 99.)));
+
+		Map<String, Integer> previousLegs = new HashMap<>();
+		previousLegs.put("car", 50);
+		previousLegs.put("pt", 50);
+		Map<String, Integer> legs = new HashMap<>();
+		legs.put("car", 40);
+		legs.put("pt", 50);
+		legs.put("bicycle", 10);
+		Assert.assertEquals(0.1, ConvergenceStoppingModule.getModeShareChange(previousLegs, legs), 1e-9);
+
+		Assert.assertEquals(0.2, ConvergenceStoppingModule.getLinkVolumeChange(new int[] { 10, 10 }, new int[] { 12, 8 }), 1e-9);
+		Assert.assertEquals(0., ConvergenceStoppingModule.getLinkVolumeChange(new int[] { 0 }, new int[] { 0 }), 1e-9);
+	}
+
+	@Test
+	public final void testIterationsWithoutInnovation() {
+		// 80% with innovation: a quarter more iterations without
+		Assert.assertEquals(25, ConvergenceStoppingModule.getIterationsWithoutInnovation(100, 0.8));
+		Assert.assertEquals(1, ConvergenceStoppingModule.getIterationsWithoutInnovation(3, 0.8));
+		Assert.assertEquals(0, ConvergenceStoppingModule.getIterationsWithoutInnovation(100, 1.));
+	}
+
+	@Test
+	public final void testRunEndsEarly() {
+		Config config = ConfigUtils.loadConfig("scenarios/equil/config.xml");
+		config.controler().setLastIteration(20);
+		config.controler().setOverwriteFileSetting(OverwriteFileSetting.deleteDirectoryIfExists);
+		config.controler().setOutputDirectory(utils.getOutputDirectory());
+		config.strategy().setFractionOfIterationsToDisableInnovation(0.8);
+		
+		// every iteration counts as stable
+		BerlinExperimentalConfigGroup berlinCfg = ConfigUtils.addOrGetModule(config, BerlinExperimentalConfigGroup.class);
+		berlinCfg.setConvergenceIterations(1);
+		berlinCfg.setConvergenceScoreTolerance(Double.MAX_VALUE);
+		berlinCfg.setConvergenceModeShareTolerance(Double.MAX_VALUE);
+		berlinCfg.setConvergenceLinkVolumeTolerance(Double.MAX_VALUE);
+		
+		Controler controler = new Controler(config);
+		controler.addOverridingModule(new ConvergenceStoppingModule(berlinCfg));
+		controler.run();
+		
+		// converged after iteration 1 (the first comparison), then a quarter of the 2 iterations without innovation
+		Assert.assertEquals(3, controler.getScoreStats().getScoreHistory().get(ScoreItem.executed).size());
+		Assert.assertTrue(new File(utils.getOutputDirectory() + "ITERS/it.2").exists());
+		Assert.assertFalse(new File(utils.getOutputDirectory() + "ITERS/it.3").exists());
+	}
+
+}
@@ -0,0 +1,71 @@
+/* *********************************************************************** *
+ * project: org.matsim.*												   *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.run;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.testcases.MatsimTestUtils;
+
+/**
+ * Remote input files are taken from a pre-seeded cache without downloading.
+ *
+ * @author agent
+ */
+public class InputFileCacheTest {
+
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+
+	@Test
+	public final void testPreSeededCache() throws MalformedURLException {
+		// the host does not exist; the test fails if the cache tries to download anything
+		URL networkUrl = new URL("https://cache-test.invalid/equil/network.xml");
+		URL plansUrl = new URL("https://cache-test.invalid/equil/plans100.xml");
+
+		String cacheDirectory = utils.getOutputDirectory() + "cache/";
+		InputFileCache seed = new InputFileCache(cacheDirectory);
+		seed.add(networkUrl, new File("scenarios/equil/network.xml"));
+		seed.add(plansUrl, new File("scenarios/equil/plans100.xml"));
+
+		Config config = ConfigUtils.createConfig();
+		config.network().setInputFile(networkUrl.toString());
+		config.plans().setInputFile(plansUrl.toString());
+
+		// a new instance, reading the index
+		new InputFileCache(cacheDirectory).localizeInputs(config);
+
+		File localNetworkFile = new File(config.network().getInputFile());
+		Assert.assertTrue(localNetworkFile.exists());
+		Assert.assertEquals("network.xml", localNetworkFile.getName());
+		Assert.assertEquals(InputFileCache.computeChecksum(new File("scenarios/equil/network.xml")), localNetworkFile.getParentFile().getName());
+
+		Scenario scenario = ScenarioUtils.loadScenario(config);
+		Assert.assertEquals(23, scenario.getNetwork().getLinks().size());
+		Assert.assertEquals(100, scenario.getPopulation().getPersons().size());
+	}
+
+}
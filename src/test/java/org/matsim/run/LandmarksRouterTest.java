@@ -0,0 +1,75 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.run;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.network.io.MatsimNetworkReader;
+import org.matsim.core.router.DijkstraFactory;
+import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
+import org.matsim.core.router.util.LeastCostPathCalculator;
+import org.matsim.core.router.util.LeastCostPathCalculator.Path;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
+import org.matsim.testcases.MatsimTestUtils;
+
+/**
+ * The landmarks router finds routes as cheap as Dijkstra, with computed and persisted landmarks.
+ *
+ * @author agent
+ */
+public class LandmarksRouterTest {
+	
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+	
+	@Test
+	public final void testSameCostsAsDijkstra() {
+		Network network = NetworkUtils.createNetwork();
+		new MatsimNetworkReader(network).readFile("scenarios/equil/network.xml");
+		TravelTime travelTime = new FreeSpeedTravelTime();
+		TravelDisutility travelDisutility = new OnlyTimeDependentTravelDisutility(travelTime);
+		
+		LeastCostPathCalculator dijkstra = new DijkstraFactory().createPathCalculator(network, travelDisutility, travelTime);
+		String directory = utils.getOutputDirectory() + "landmarks";
+		
+		// computed and written, then mapped from the file
+		for (int run = 0; run < 2; run++) {
+			LeastCostPathCalculator router = new LandmarksRouterFactory(directory).createPathCalculator(network, travelDisutility, travelTime);
+			for (Node from : network.getNodes().values()) {
+				for (Node to : network.getNodes().values()) {
+					Path expected = dijkstra.calcLeastCostPath(from, to, 8. * 3600., null, null);
+					Path actual = router.calcLeastCostPath(from, to, 8. * 3600., null, null);
+					Assert.assertEquals("Different costs from " + from.getId() + " to " + to.getId(), expected.travelCost, actual.travelCost, 1e-6);
+					Assert.assertEquals(expected.travelTime, actual.travelTime, 1e-6);
+					Assert.assertEquals(actual.nodes.size(), actual.links.size() + 1);
+				}
+			}
+			Assert.assertEquals(1, new File(directory).listFiles().length);
+		}
+	}
+	
+}
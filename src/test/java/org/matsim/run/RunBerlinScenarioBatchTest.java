@@ -0,0 +1,125 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.run;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.analysis.HbefaRoadTypeAnnotator;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.testcases.MatsimTestUtils;
+
+/**
+ * Batch runs of equil variants sharing the network and the raptor data, and the checks for incompatible variants.
+ *
+ * @author agent
+ */
+public class RunBerlinScenarioBatchTest {
+
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+
+	@Test
+	public final void testSharedNetwork() {
+		String configFileName = "scenarios/equil/config.xml";
+		Scenario infrastructure = RunBerlinScenarioBatch.loadInfrastructure(configFileName);
+		Assert.assertEquals(23, infrastructure.getNetwork().getLinks().size());
+		Assert.assertTrue(infrastructure.getPopulation().getPersons().isEmpty());
+		// annotated once, before any variant starts
+		for (Link link : infrastructure.getNetwork().getLinks().values()) {
+			Assert.assertEquals(HbefaRoadTypeAnnotator.getRoadType(link), link.getAttributes().getAttribute(HbefaRoadTypeAnnotator.ROAD_TYPE_ATTRIBUTE));
+		}
+
+		RunBerlinScenario variant1 = new RunBerlinScenario(configFileName, null);
+		variant1.setSharedInfrastructure(infrastructure);
+		Scenario scenario1 = variant1.prepareScenario();
+
+		RunBerlinScenario variant2 = new RunBerlinScenario(configFileName, null);
+		variant2.setSharedInfrastructure(infrastructure);
+		Scenario scenario2 = variant2.prepareScenario();
+
+		Assert.assertSame(infrastructure.getNetwork(), scenario1.getNetwork());
+		Assert.assertSame(infrastructure.getNetwork(), scenario2.getNetwork());
+		Assert.assertEquals(100, scenario1.getPopulation().getPersons().size());
+		Assert.assertNotSame(scenario1.getPopulation(), scenario2.getPopulation());
+		// the config still refers to the network file
+		Assert.assertEquals("network.xml", scenario1.getConfig().network().getInputFile());
+	}
+
+	@Test
+	public final void testTwoVariants() throws IOException {
+		String configFileName = "scenarios/equil/config.xml";
+		List<String> overridingConfigFileNames = new ArrayList<>();
+		for (String variant : new String[] { "a", "b" }) {
+			String overridingConfigFileName = utils.getOutputDirectory() + variant + ".config.xml";
+			try (BufferedWriter writer = IOUtils.getBufferedWriter(overridingConfigFileName)) {
+				writer.write("<?xml version=\"1.0\" ?>\n");
+				writer.write("<!DOCTYPE config SYSTEM \"http://www.matsim.org/files/dtd/config_v2.dtd\">\n");
+				writer.write("<config>\n");
+				writer.write("\t<module name=\"controler\">\n");
+				writer.write("\t\t<param name=\"outputDirectory\" value=\"" + utils.getOutputDirectory() + variant + "\" />\n");
+				writer.write("\t\t<param name=\"runId\" value=\"" + variant + "\" />\n");
+				writer.write("\t\t<param name=\"lastIteration\" value=\"1\" />\n");
+				writer.write("\t\t<param name=\"writeEventsInterval\" value=\"1\" />\n");
+				writer.write("\t</module>\n");
+				writer.write("</config>\n");
+			}
+			overridingConfigFileNames.add(overridingConfigFileName);
+		}
+
+		new RunBerlinScenarioBatch(configFileName, overridingConfigFileNames, 2).run();
+
+		for (String variant : new String[] { "a", "b" }) {
+			String outputDirectory = utils.getOutputDirectory() + variant + "/";
+			Assert.assertTrue(new File(outputDirectory + variant + ".output_events.xml.gz").exists());
+			Assert.assertTrue(new File(outputDirectory + "ITERS/it.1/" + variant + ".1.events.xml.gz").exists());
+			Population population = PopulationUtils.readPopulation(outputDirectory + variant + ".output_plans.xml.gz");
+			Assert.assertEquals(100, population.getPersons().size());
+		}
+	}
+
+	@Test(expected = RuntimeException.class)
+	public final void testDifferentNetwork() {
+		Scenario infrastructure = RunBerlinScenarioBatch.loadInfrastructure("scenarios/equil/config.xml");
+		Config config = ConfigUtils.loadConfig("scenarios/equil/config.xml");
+		config.network().setInputFile("other-network.xml");
+		RunBerlinScenarioBatch.loadScenario(config, infrastructure);
+	}
+
+	@Test(expected = RuntimeException.class)
+	public final void testDifferentRaptorSettings() {
+		Config infrastructureConfig = ConfigUtils.loadConfig("scenarios/equil/config.xml");
+		Config config = ConfigUtils.loadConfig("scenarios/equil/config.xml");
+		config.transitRouter().setMaxBeelineWalkConnectionDistance(2 * infrastructureConfig.transitRouter().getMaxBeelineWalkConnectionDistance());
+		RunBerlinScenarioBatch.checkSameRaptorSettings(config, infrastructureConfig);
+	}
+
+}
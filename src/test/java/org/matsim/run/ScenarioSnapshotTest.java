@@ -0,0 +1,89 @@
+/* *********************************************************************** *
+ * project: org.matsim.*												   *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2018 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.run;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.testcases.MatsimTestUtils;
+
+/**
+ * Writing and reading a scenario snapshot, and its fingerprint of the input files.
+ *
+ * @author agent
+ */
+public class ScenarioSnapshotTest {
+
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+
+	@Test
+	public final void testWriteAndRead() {
+		Config config = ConfigUtils.createConfig();
+		config.network().setInputFile("scenarios/equil/network.xml");
+		config.plans().setInputFile("scenarios/equil/plans100.xml");
+		Scenario scenario = ScenarioUtils.loadScenario(config);
+
+		String file = utils.getOutputDirectory() + "scenario.snapshot";
+		String fingerprint = ScenarioSnapshot.computeFingerprint(config);
+		ScenarioSnapshot.write(scenario, file, fingerprint);
+
+		Assert.assertTrue(ScenarioSnapshot.matches(file, fingerprint));
+		Assert.assertFalse(ScenarioSnapshot.matches(file, "other input files"));
+
+		Scenario restored = ScenarioSnapshot.loadScenario(config, file, fingerprint);
+		// the config is not modified
+		Assert.assertEquals("scenarios/equil/network.xml", config.network().getInputFile());
+
+		Assert.assertEquals(scenario.getNetwork().getNodes().size(), restored.getNetwork().getNodes().size());
+		Assert.assertEquals(scenario.getNetwork().getLinks().size(), restored.getNetwork().getLinks().size());
+		for (Link link : scenario.getNetwork().getLinks().values()) {
+			Link restoredLink = restored.getNetwork().getLinks().get(link.getId());
+			Assert.assertEquals(link.getFreespeed(), restoredLink.getFreespeed(), 0.);
+			Assert.assertEquals(link.getNumberOfLanes(), restoredLink.getNumberOfLanes(), 0.);
+			Assert.assertEquals(link.getAllowedModes(), restoredLink.getAllowedModes());
+		}
+
+		Assert.assertEquals(scenario.getPopulation().getPersons().size(), restored.getPopulation().getPersons().size());
+		for (Person person : scenario.getPopulation().getPersons().values()) {
+			Person restoredPerson = restored.getPopulation().getPersons().get(person.getId());
+			Assert.assertEquals(person.getPlans().size(), restoredPerson.getPlans().size());
+			Plan plan = person.getSelectedPlan();
+			Plan restoredPlan = restoredPerson.getSelectedPlan();
+			Assert.assertEquals(plan.getScore(), restoredPlan.getScore());
+			Assert.assertTrue(PopulationUtils.equalPlans(plan, restoredPlan));
+		}
+	}
+
+	@Test
+	public final void testNoFingerprintOfRemoteInputs() {
+		Config config = ConfigUtils.createConfig();
+		config.network().setInputFile("scenarios/equil/network.xml");
+		config.plans().setInputFile("https://svn.vsp.tu-berlin.de/repos/public-svn/matsim/scenarios/countries/de/berlin/berlin-v5.2-1pct/input/berlin-v5.2-1pct.plans.xml.gz");
+		Assert.assertNull(ScenarioSnapshot.computeFingerprint(config));
+	}
+
+}